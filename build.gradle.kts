@@ -5,6 +5,7 @@ plugins {
     java
     `maven-publish`
     id("io.papermc.hangar-publish-plugin") version "0.1.3"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "net.nando256"
@@ -22,6 +23,68 @@ repositories {
 
 dependencies {
     compileOnly("io.papermc.paper:paper-api:1.21.9-R0.1-SNAPSHOT")
+    // ベンチマークはサーバー無しで動かすので、API を実行時クラスパスにも載せる
+    jmh("io.papermc.paper:paper-api:1.21.9-R0.1-SNAPSHOT")
+}
+
+// ./gradlew jmh で全ベンチマーク、-Pjmh.includes=Render で絞り込み
+jmh {
+    jmhVersion.set("1.37")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    (findProperty("jmh.includes") as String?)?.let { includes.set(listOf(it)) }
+    resultFormat.set("JSON")
+}
+
+// 負荷シミュレーター（サーバー無しでボードと視聴者を動かす）
+val sim: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+dependencies {
+    "simImplementation"("io.papermc.paper:paper-api:1.21.9-R0.1-SNAPSHOT")
+}
+
+// ./gradlew simulate --args="--scenario=lecture-hall --boards=40 --viewers=200"
+tasks.register<JavaExec>("simulate") {
+    group = "verification"
+    description = "Runs the headless board load simulator."
+    classpath = sim.runtimeClasspath
+    mainClass.set("net.nando256.whiteboard.LoadSimulator")
+    jvmArgs("-Djava.awt.headless=true", "-Xmx2g")
+}
+
+// 描いた文字が textBounds に収まるか（タイルの継ぎ目・damage の範囲がずれないこと）
+val checkTextBounds = tasks.register<JavaExec>("checkTextBounds") {
+    group = "verification"
+    description = "Checks that text bounds contain every drawn pixel."
+    classpath = sim.runtimeClasspath
+    mainClass.set("net.nando256.whiteboard.TextBoundsCheck")
+    jvmArgs("-Djava.awt.headless=true")
+}
+
+// ボードファイルの書き出し -> 読み込みで履歴・パスワードのハッシュ・画像が変わらないか
+val checkBoardStore = tasks.register<JavaExec>("checkBoardStore") {
+    group = "verification"
+    description = "Checks that board files round-trip history, password hashes and images."
+    classpath = sim.runtimeClasspath
+    mainClass.set("net.nando256.whiteboard.BoardStoreCheck")
+    jvmArgs("-Djava.awt.headless=true")
+}
+
+// 予算を超えて逃がした履歴を読み戻し、undo / redo で正しい操作が出てくるか
+val checkBoardHistory = tasks.register<JavaExec>("checkBoardHistory") {
+    group = "verification"
+    description = "Checks that spilled undo/redo history pages back in correctly."
+    classpath = sim.runtimeClasspath
+    mainClass.set("net.nando256.whiteboard.BoardHistoryCheck")
+    jvmArgs("-Djava.awt.headless=true")
+}
+
+tasks.named("check") {
+    dependsOn(checkTextBounds, checkBoardStore, checkBoardHistory)
 }
 
 tasks.withType<JavaCompile> {
@@ -0,0 +1,48 @@
+package net.nando256.whiteboard;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.nando256.whiteboard.WhiteboardPlugin.BoardGroup;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// ボードいっぱいの行をタイルへ分配する。盤面を一定に保つため、最後に同じ操作を外す
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ApplyTextAtomBenchmark {
+
+  @Param({"1x1", "3x2", "8x4", "16x9"})
+  public String boardSize;
+
+  private BoardGroup group;
+  private List<TextAtom> atoms;
+
+  @Setup
+  public void setUp() {
+    String[] wh = boardSize.split("x");
+    group = BenchFixtures.board(Integer.parseInt(wh[0]), Integer.parseInt(wh[1]));
+    atoms = BenchFixtures.atomsFor(group);
+  }
+
+  @Benchmark
+  public int applyTextAtom() {
+    TextAction action = new TextAction();
+    for (TextAtom atom : atoms) {
+      WhiteboardPlugin.applyTextAtom(group, atom, action, BenchFixtures.FONT);
+    }
+    int removed = 0;
+    for (int i = action.tiles.nextSetBit(0); i >= 0; i = action.tiles.nextSetBit(i + 1)) {
+      removed += group.tiles[i / group.W][i % group.W].removeAction(action.id).size();
+    }
+    return removed;
+  }
+}
@@ -0,0 +1,75 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Image;
+import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapCursorCollection;
+import org.bukkit.map.MapFont;
+import org.bukkit.map.MapView;
+
+// サーバー無しで render を呼ぶためのキャンバス（setPixel の内容と回数だけを持つ）
+final class BenchCanvas implements MapCanvas {
+
+  final byte[] pixels = new byte[128 * 128];
+  long writes;
+  private MapCursorCollection cursors = new MapCursorCollection();
+
+  @Override
+  public MapView getMapView() {
+    return null;
+  }
+
+  @Override
+  public MapCursorCollection getCursors() {
+    return cursors;
+  }
+
+  @Override
+  public void setCursors(MapCursorCollection cursors) {
+    this.cursors = cursors;
+  }
+
+  @Override
+  public void setPixelColor(int x, int y, Color color) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Color getPixelColor(int x, int y) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Color getBasePixelColor(int x, int y) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  @Deprecated
+  public void setPixel(int x, int y, byte color) {
+    pixels[y * 128 + x] = color;
+    writes++;
+  }
+
+  @Override
+  @Deprecated
+  public byte getPixel(int x, int y) {
+    return pixels[y * 128 + x];
+  }
+
+  @Override
+  @Deprecated
+  public byte getBasePixel(int x, int y) {
+    return 0;
+  }
+
+  @Override
+  public void drawImage(int x, int y, Image image) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void drawText(int x, int y, MapFont font, String text) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,146 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import net.nando256.whiteboard.WhiteboardPlugin.BoardGroup;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+/* =========================================================
+ * ベンチマーク用の入力
+ *
+ *  - 本は 100 ページ（1ページ約 600 文字）の日本語。授業の板書を想定
+ *  - 乱数は使わず、毎回同じ内容を作る
+ * ========================================================= */
+final class BenchFixtures {
+
+  static final int PAGES = 100;
+  static final Font FONT = new Font("Noto Sans CJK JP", Font.PLAIN, 16);
+
+  private static final String[] SENTENCES = {
+    "今日の授業では、光の屈折と反射について実験を通して確かめます。",
+    "水を入れたコップに鉛筆を差すと、水面のところで折れ曲がって見えます。",
+    "これは光が水から空気へ進むときに、進む向きが変わるためです。",
+    "入射角と屈折角の関係を表にまとめ、グラフに表してみましょう。",
+    "鏡に当たった光は、入射角と等しい角度で反射します。",
+    "班ごとに測定した値を黒板に書き出し、結果を比べてください。",
+    "誤差が大きかった班は、分度器の当て方を見直しましょう。",
+    "次回は凸レンズを使って、像ができる位置を調べます。",
+    "宿題：教科書 84 ページの問 1〜3 をノートに解いてくること。",
+    "Keyword: refraction, reflection, angle of incidence.",
+  };
+
+  private static final String[] COLORS = {
+    "#c00000", "#0050c0", "#008000", "navy", "rgb(128,0,128)"
+  };
+
+  private BenchFixtures() {}
+
+  // 本のページ（平文）
+  static List<String> plainPages() {
+    List<String> pages = new ArrayList<>(PAGES);
+    int n = 0;
+    for (int page = 0; page < PAGES; page++) {
+      StringBuilder sb = new StringBuilder();
+      while (sb.length() < 600) {
+        sb.append(SENTENCES[n++ % SENTENCES.length]);
+        if (n % 4 == 0) sb.append('\n');
+      }
+      pages.add(sb.toString());
+    }
+    return pages;
+  }
+
+  // 本のページ（HTML：色・大きさの span、段落、改行、実体参照を混ぜる）
+  static List<String> htmlPages() {
+    List<String> pages = new ArrayList<>(PAGES);
+    int n = 0;
+    for (int page = 0; page < PAGES; page++) {
+      StringBuilder sb = new StringBuilder("<p>");
+      while (sb.length() < 900) {
+        String sentence = SENTENCES[n % SENTENCES.length];
+        switch (n % 5) {
+          case 0 -> {
+            String color = COLORS[n % COLORS.length];
+            sb.append("<span style=\"color:").append(color).append(";font-size:20px\">");
+            sb.append(sentence).append("</span>");
+          }
+          case 1 -> {
+            String color = COLORS[(n + 2) % COLORS.length];
+            sb.append("<font color=\"").append(color).append("\" size=\"120%\">");
+            sb.append(sentence).append("</font><br>");
+          }
+          case 2 -> sb.append(sentence).append(" &lt;注&gt; ");
+          case 3 -> sb.append("</p><p>").append(sentence);
+          default -> sb.append(sentence);
+        }
+        n++;
+      }
+      sb.append("</p>");
+      pages.add(sb.toString());
+    }
+    return pages;
+  }
+
+  // 読み込み時と同じく、ページを改行でつなぐ
+  static String join(List<String> pages) {
+    return String.join("\n", pages);
+  }
+
+  static String directiveHeader() {
+    return "[size 20] [color #204080] [pos 8 24] [line 26] [boardsize 6x4] [lock on] [clear] ";
+  }
+
+  // W x H のボード（額縁は x 方向へ右、y 方向へ下に並ぶ）
+  static BoardGroup board(int width, int height) {
+    BoardGroup g = new BoardGroup(UUID.randomUUID().toString(), width, height);
+    g.baseTopLeft = new Location(null, 0, 64, 0);
+    g.rightUnit = new Vector(1, 0, 0);
+    g.downUnit = new Vector(0, -1, 0);
+    g.font = FONT;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        WhiteboardRenderer r = new WhiteboardRenderer();
+        r.setBaseFont(FONT);
+        g.tiles[y][x] = r;
+        g.centers[y][x] = new Location(null, x, 64 - y, 0);
+      }
+    }
+    return g;
+  }
+
+  // ボードの幅で本をレイアウトし、ボードに収まる行だけを返す
+  static List<TextAtom> atomsFor(BoardGroup g) {
+    List<HtmlParser.HtmlToken> tokens = HtmlParser.parse(join(htmlPages()), Color.BLACK, 16);
+    List<TextAtom> atoms = new ArrayList<>();
+    for (TextAtom atom : TextLayout.layout(tokens, FONT, g.W * 128, 4, 20, 20).atoms) {
+      if (atom.gy < g.H * 128) atoms.add(atom);
+    }
+    return atoms;
+  }
+
+  // 1タイル分に count 件の文字を敷き詰める
+  static List<TextEntry> tileEntries(int count) {
+    List<HtmlParser.HtmlToken> tokens =
+        HtmlParser.plainTokens(join(plainPages()), Color.BLACK, 12);
+    List<TextAtom> atoms = TextLayout.layout(tokens, FONT, 124, 2, 14, 14).atoms;
+    List<TextEntry> entries = new ArrayList<>(count);
+    UUID action = UUID.randomUUID();
+    for (int i = 0; i < count; i++) {
+      TextAtom a = atoms.get(i % atoms.size());
+      // 128px を超えた行は折り返して重ねる（重なりも実際の板書では起こる）
+      int y = 14 + (a.gy % 112);
+      Color color = COLOR_CYCLE[i % COLOR_CYCLE.length];
+      entries.add(new TextEntry(a.msg, a.size, color, a.gx, y, action));
+    }
+    return entries;
+  }
+
+  private static final Color[] COLOR_CYCLE = {
+    Color.BLACK, new Color(0xC00000), new Color(0x0050C0), new Color(0x008000)
+  };
+}
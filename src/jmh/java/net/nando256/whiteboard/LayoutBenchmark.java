@@ -0,0 +1,54 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 折り返し位置の計算と、本1冊分の行送り（ボード幅ごと）
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LayoutBenchmark {
+
+  @Param({"1", "4", "16"})
+  public int boardWidth;
+
+  private List<HtmlParser.HtmlToken> tokens;
+  private String line;
+  private float[] prefix;
+
+  @Setup
+  public void setUp() {
+    tokens = HtmlParser.parse(BenchFixtures.join(BenchFixtures.htmlPages()), Color.BLACK, 16);
+    line = BenchFixtures.plainPages().get(0).replace("\n", "");
+    prefix = LineWrapper.prefixAdvances(FontCache.get(BenchFixtures.FONT, 16), line);
+  }
+
+  @Benchmark
+  public TextAction renderTokens() {
+    return TextLayout.layout(tokens, BenchFixtures.FONT, boardWidth * 128, 4, 20, 20);
+  }
+
+  // 1ページ分の行を、ボード幅で端から端まで折り返す
+  @Benchmark
+  public int findWrapPoint() {
+    int width = boardWidth * 128;
+    int start = 0;
+    int lines = 0;
+    while (start < line.length()) {
+      int next = LineWrapper.findWrapPoint(line, prefix, start, width);
+      start = next > start ? next : start + 1;
+      lines++;
+    }
+    return lines;
+  }
+}
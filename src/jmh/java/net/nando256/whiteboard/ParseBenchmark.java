@@ -0,0 +1,45 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 本1冊（100 ページ）の解析
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParseBenchmark {
+
+  private String html;
+  private String plain;
+  private String directives;
+
+  @Setup
+  public void setUp() {
+    html = BenchFixtures.join(BenchFixtures.htmlPages());
+    plain = BenchFixtures.join(BenchFixtures.plainPages());
+    directives = BenchFixtures.directiveHeader() + BenchFixtures.plainPages().get(0);
+  }
+
+  @Benchmark
+  public List<HtmlParser.HtmlToken> parseHtmlTokens() {
+    return HtmlParser.parse(html, Color.BLACK, 16);
+  }
+
+  @Benchmark
+  public List<HtmlParser.HtmlToken> plainTokens() {
+    return HtmlParser.plainTokens(plain, Color.BLACK, 16);
+  }
+
+  @Benchmark
+  public BookDirectives parseBookDirectives() {
+    return BookDirectives.parse(directives);
+  }
+}
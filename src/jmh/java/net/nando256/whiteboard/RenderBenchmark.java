@@ -0,0 +1,51 @@
+package net.nando256.whiteboard;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// 1タイルの render：全面の再描画と、変更が無いときの呼び出し
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenderBenchmark {
+
+  @Param({"0", "50", "500"})
+  public int entries;
+
+  @Param({"ATLAS", "JAVA2D"})
+  public TileRasterizer.Mode rasterizer;
+
+  private WhiteboardRenderer renderer;
+  private BenchCanvas canvas;
+
+  @Setup
+  public void setUp() {
+    TileRasterizer.setMode(rasterizer);
+    MapColors.warmUp();
+    renderer = new WhiteboardRenderer();
+    renderer.setBaseFont(BenchFixtures.FONT);
+    for (TextEntry te : BenchFixtures.tileEntries(entries)) renderer.addText(te);
+    canvas = new BenchCanvas();
+    renderer.render(null, canvas, null); // キャンバスへの初回の全面書き込みを済ませておく
+  }
+
+  @Benchmark
+  public long redrawAll() {
+    renderer.requestRedraw();
+    renderer.render(null, canvas, null);
+    return canvas.writes;
+  }
+
+  @Benchmark
+  public long idle() {
+    renderer.render(null, canvas, null);
+    return canvas.writes;
+  }
+}
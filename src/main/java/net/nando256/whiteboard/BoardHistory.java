@@ -0,0 +1,349 @@
+package net.nando256.whiteboard;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+
+/* =========================================================
+ * ボード1枚分の undo / redo 履歴（メインスレッド専用）
+ *
+ *  - どちらのリストも末尾が先頭（次に取り出すもの）
+ *  - メモリ上の見積もりが予算を超えたら、古い操作から履歴ログへ逃がす
+ *    （undo 側は盤面に文字が残るので、逃がすのは操作の写しだけ）
+ *  - 逃がした操作は各リストの底に連続して並ぶ。取り出す前に pageInUndo / pageInRedo で
+ *    I/O スレッドから読み戻しておく（読まずに undo / redo するとその場で読み、警告を残す）
+ *  - 盤面に出ている操作の文字をまとめて欲しいとき（フォント変更）は readUndoAtoms で読む
+ * ========================================================= */
+final class BoardHistory {
+
+  private static final int ACTION_OVERHEAD = 96;
+  private static final int ATOM_OVERHEAD = 64;
+  private static final int ENTRY_OVERHEAD = 56;
+
+  private final BoardStore.SpillLog log;
+  private final long budget; // 0 以下なら無制限
+  private final List<TextAction> undo = new ArrayList<>();
+  private final List<TextAction> redo = new ArrayList<>();
+  private int spilledUndo; // undo の底から何件がログ上にあるか
+  private int spilledRedo;
+  private long residentBytes;
+  private int version; // 積む・取り出す・消すたびに増える（非同期の読み戻しの間の変更検出用）
+
+  BoardHistory(BoardStore.SpillLog log, long budget) {
+    this.log = log;
+    this.budget = budget;
+  }
+
+  // 新しい操作を積む（redo は捨てる）
+  void push(TextAction action) {
+    dropRedo();
+    version++;
+    undo.add(action);
+    residentBytes += weight(action);
+    enforceBudget();
+  }
+
+  boolean canUndo() {
+    return !undo.isEmpty();
+  }
+
+  boolean canRedo() {
+    return !redo.isEmpty();
+  }
+
+  // 次の undo / redo がログ上の操作なら true（先に pageInUndo / pageInRedo を呼ぶ）
+  boolean undoNeedsPageIn() {
+    return !undo.isEmpty() && spilledUndo == undo.size();
+  }
+
+  boolean redoNeedsPageIn() {
+    return !redo.isEmpty() && spilledRedo == redo.size();
+  }
+
+  // 次の undo の操作を I/O スレッドで読み戻し、mainThread で then を呼ぶ。
+  // 読んでいる間に履歴が変わっていれば読んだものは捨てる（then で状態を確かめ直す）。
+  // 読めなければ failed を呼ぶ
+  void pageInUndo(Executor mainThread, Runnable then, Consumer<Throwable> failed) {
+    pageInTop(undo, true, mainThread, then, failed);
+  }
+
+  void pageInRedo(Executor mainThread, Runnable then, Consumer<Throwable> failed) {
+    pageInTop(redo, false, mainThread, then, failed);
+  }
+
+  // 取り出した操作は redo へ移る。呼び出し側が placed を詰めたら placed() で知らせる
+  TextAction undo() {
+    if (undo.isEmpty()) return null;
+    TextAction action = undo.remove(undo.size() - 1);
+    version++;
+    if (spilledUndo > undo.size()) {
+      spilledUndo--;
+      pageIn(action);
+    } else {
+      residentBytes -= weight(action);
+    }
+    redo.add(action);
+    residentBytes += weight(action);
+    return action;
+  }
+
+  TextAction redo() {
+    if (redo.isEmpty()) return null;
+    TextAction action = redo.remove(redo.size() - 1);
+    version++;
+    if (spilledRedo > redo.size()) {
+      spilledRedo--;
+      pageIn(action);
+    } else {
+      residentBytes -= weight(action);
+    }
+    undo.add(action);
+    residentBytes += weight(action);
+    compactIfEmpty();
+    enforceBudget();
+    return action;
+  }
+
+  // undo 直後に外したエントリを持たせた時の見積もり直し
+  void placed(TextAction action, Map<Integer, List<TextEntry>> placed) {
+    residentBytes -= weight(action);
+    action.placed = placed;
+    residentBytes += weight(action);
+    enforceBudget();
+  }
+
+  // フォント変更などでタイル割り当てが変わったら、redo 側の控えは使えない
+  void forgetPlacements() {
+    for (int i = spilledRedo; i < redo.size(); i++) {
+      TextAction action = redo.get(i);
+      residentBytes -= weight(action);
+      action.placed = null;
+      residentBytes += weight(action);
+    }
+  }
+
+  void clear() {
+    version++;
+    undo.clear();
+    redo.clear();
+    spilledUndo = 0;
+    spilledRedo = 0;
+    residentBytes = 0;
+    log.reset();
+  }
+
+  // ボード破棄時：ログファイルも消す
+  void close() {
+    clear();
+    log.close();
+  }
+
+  // 読み込み時：盤面へ反映済みの操作を古い順で受け取る
+  void restore(List<TextAction> undoOldestFirst, List<TextAction> redoOldestFirst) {
+    clear();
+    for (TextAction action : undoOldestFirst) {
+      undo.add(action);
+      residentBytes += weight(action);
+    }
+    for (TextAction action : redoOldestFirst) {
+      redo.add(action);
+      residentBytes += weight(action);
+    }
+    enforceBudget();
+  }
+
+  // 保存用の写し（古い順）。ログ上の操作は Slot ごと渡し、I/O スレッドで読む
+  List<TextAction> undoOldestFirst() {
+    return snapshot(undo);
+  }
+
+  List<TextAction> redoOldestFirst() {
+    return snapshot(redo);
+  }
+
+  // 盤面に出ている操作（古い順、読み取り専用）
+  List<TextAction> undoActions() {
+    return Collections.unmodifiableList(undo);
+  }
+
+  int version() {
+    return version;
+  }
+
+  // 盤面に出ている操作の文字を古い順に集め、mainThread で then に渡す（添字は undoActions と同じ）。
+  // ログ上の操作は I/O スレッドで読む。ログ上の操作が無ければその場で then を呼ぶ。
+  // 読んでいる間に履歴が変わっていることがあるので、then の側で version() を確かめる
+  void readUndoAtoms(
+      Executor mainThread, Consumer<List<List<TextAtom>>> then, Consumer<Throwable> failed) {
+    List<List<TextAtom>> atoms = new ArrayList<>(undo.size());
+    List<CompletableFuture<List<TextAtom>>> reads = new ArrayList<>(undo.size());
+    List<CompletableFuture<?>> pending = new ArrayList<>();
+    for (TextAction action : undo) {
+      if (action.spilled != null) {
+        // I/O スレッドでは投入順に実行されるので、後の reset() より先に読み終わる
+        CompletableFuture<List<TextAtom>> read = action.spilled.readAsync();
+        atoms.add(null);
+        reads.add(read);
+        pending.add(read);
+      } else {
+        atoms.add(new ArrayList<>(action.atoms));
+        reads.add(null);
+      }
+    }
+    if (pending.isEmpty()) {
+      then.accept(atoms);
+      return;
+    }
+    CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+        .whenComplete(
+            (ignored, error) ->
+                mainThread.execute(
+                    () -> {
+                      if (error != null) {
+                        failed.accept(error);
+                        return;
+                      }
+                      for (int i = 0; i < atoms.size(); i++) {
+                        if (reads.get(i) != null) atoms.set(i, reads.get(i).join());
+                      }
+                      then.accept(atoms);
+                    }));
+  }
+
+  int undoSize() {
+    return undo.size();
+  }
+
+  int redoSize() {
+    return redo.size();
+  }
+
+  int spilled() {
+    return spilledUndo + spilledRedo;
+  }
+
+  long residentBytes() {
+    return residentBytes;
+  }
+
+  // ログへ逃がしていれば読み戻す（保存時に I/O スレッドから呼ばれる）
+  static List<TextAtom> atomsOf(TextAction action) {
+    BoardStore.Slot slot = action.spilled;
+    if (slot == null) return action.atoms;
+    try {
+      return slot.read();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  private static List<TextAction> snapshot(List<TextAction> actions) {
+    List<TextAction> out = new ArrayList<>(actions.size());
+    for (TextAction action : actions) {
+      TextAction copy = new TextAction(action.id);
+      if (action.spilled != null) copy.spilled = action.spilled;
+      else copy.atoms.addAll(action.atoms);
+      out.add(copy);
+    }
+    return out;
+  }
+
+  private void dropRedo() {
+    for (int i = spilledRedo; i < redo.size(); i++) residentBytes -= weight(redo.get(i));
+    redo.clear();
+    spilledRedo = 0;
+    compactIfEmpty();
+  }
+
+  // 古い undo から逃がし、それでも足りなければ最も遠い redo を逃がす（直近の1件は残す）
+  private void enforceBudget() {
+    if (budget <= 0) return;
+    while (residentBytes > budget) {
+      if (spilledUndo < undo.size() - 1) {
+        spill(undo.get(spilledUndo++));
+      } else if (spilledRedo < redo.size() - 1) {
+        spill(redo.get(spilledRedo++));
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void spill(TextAction action) {
+    residentBytes -= weight(action);
+    action.spilled = log.append(action.atoms);
+    action.atoms.clear();
+    action.placed = null;
+  }
+
+  private void pageInTop(
+      List<TextAction> list,
+      boolean undoSide,
+      Executor mainThread,
+      Runnable then,
+      Consumer<Throwable> failed) {
+    if (!(undoSide ? undoNeedsPageIn() : redoNeedsPageIn())) {
+      then.run();
+      return;
+    }
+    TextAction action = list.get(list.size() - 1);
+    BoardStore.Slot slot = action.spilled;
+    slot.readAsync()
+        .whenComplete(
+            (atoms, error) ->
+                mainThread.execute(
+                    () -> {
+                      if (error != null) {
+                        failed.accept(error);
+                        return;
+                      }
+                      // まだ先頭にあり、ログ上のままなら、その場で読み戻した扱いにする
+                      if (action.spilled == slot
+                          && !list.isEmpty()
+                          && list.get(list.size() - 1) == action
+                          && (undoSide ? undoNeedsPageIn() : redoNeedsPageIn())) {
+                        action.spilled = null;
+                        action.atoms.addAll(atoms);
+                        if (undoSide) spilledUndo--;
+                        else spilledRedo--;
+                        residentBytes += weight(action);
+                        compactIfEmpty();
+                      }
+                      then.run();
+                    }));
+  }
+
+  // pageInUndo / pageInRedo を済ませていれば来ない。来たらメインスレッドでファイルを読むので警告する
+  private void pageIn(TextAction action) {
+    log.warnBlockingRead();
+    List<TextAtom> atoms = atomsOf(action);
+    action.spilled = null;
+    action.atoms.addAll(atoms);
+    compactIfEmpty();
+  }
+
+  // ログ上の操作が無くなったら、ファイルを空にして追記位置を戻す
+  private void compactIfEmpty() {
+    if (spilledUndo == 0 && spilledRedo == 0) log.reset();
+  }
+
+  // メモリ上の大きさの見積もり（文字列は UTF-16 として数える）
+  private static long weight(TextAction action) {
+    long bytes = ACTION_OVERHEAD;
+    for (TextAtom atom : action.atoms) bytes += ATOM_OVERHEAD + 2L * atom.msg.length();
+    if (action.placed != null) {
+      for (List<TextEntry> entries : action.placed.values()) {
+        for (TextEntry te : entries) bytes += ENTRY_OVERHEAD + 2L * te.text.length();
+      }
+    }
+    return bytes;
+  }
+}
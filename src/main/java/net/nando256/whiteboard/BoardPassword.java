@@ -0,0 +1,70 @@
+package net.nando256.whiteboard;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/* =========================================================
+ * ボードのパスワードはソルト付きハッシュでだけ持つ
+ *
+ *  - 形式は "pbkdf2$<回数>$<ソルト>$<ハッシュ>"（Base64）
+ *  - 平文は保存もメモリ上の保持もしない（本の指示から受け取った時に照合・変換するだけ）
+ *  - hash / matches は重いので、RenderPipeline.submitPassword の専用スレッドで呼ぶ
+ * ========================================================= */
+final class BoardPassword {
+
+  private static final String PREFIX = "pbkdf2";
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  // OWASP の推奨値。重いので専用スレッドから呼ぶ（メインスレッドでは呼ばない）。
+  // 回数はハッシュに含めるので、変えても既存のハッシュはそのまま照合できる
+  private static final int ITERATIONS = 600_000;
+  private static final int SALT_BYTES = 16;
+  private static final int HASH_BITS = 256;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private BoardPassword() {}
+
+  static String hash(String password) {
+    byte[] salt = new byte[SALT_BYTES];
+    RANDOM.nextBytes(salt);
+    Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+    return PREFIX
+        + '$'
+        + ITERATIONS
+        + '$'
+        + b64.encodeToString(salt)
+        + '$'
+        + b64.encodeToString(derive(password, salt, ITERATIONS));
+  }
+
+  // stored は hash() の結果。壊れた値とは一致しない
+  static boolean matches(String stored, String password) {
+    if (stored == null || password == null) return false;
+    String[] parts = stored.split("\\$");
+    if (parts.length != 4 || !parts[0].equals(PREFIX)) return false;
+    try {
+      int iterations = Integer.parseInt(parts[1]);
+      byte[] salt = Base64.getDecoder().decode(parts[2]);
+      byte[] expected = Base64.getDecoder().decode(parts[3]);
+      if (iterations <= 0) return false;
+      return MessageDigest.isEqual(expected, derive(password, salt, iterations));
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static byte[] derive(String password, byte[] salt, int iterations) {
+    PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(ALGORITHM + " is not available", e);
+    } finally {
+      spec.clearPassword();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package net.nando256.whiteboard;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/* =========================================================
+ * ボード1枚分の計測値
+ *
+ *  - 記録は render（メインスレッド）とレイアウト（ワーカー）の両方から来る
+ *  - スケジューラーの塗り直し（redraw）は render とは別に数える（render の回数に混ぜない）
+ *  - 履歴の深さや保持バイト数はメインスレッドで定期的に写す（sample）
+ *  - 全体（WhiteboardStats）にも同じ値を足し込む
+ * ========================================================= */
+final class BoardStats implements BoardStatsMBean {
+
+  final String id;
+  private final int tiles;
+  private final WhiteboardStats global;
+
+  final Histogram render = new Histogram(); // render 1回の所要時間（ns）
+  final Histogram repaint = new Histogram(); // スケジューラーの塗り直し1回（ns）
+  final Histogram layout = new Histogram(); // 本/HTML のレイアウト1回（ns）
+  final Histogram fanOut = new Histogram(); // 1行あたりの配置先タイル数
+  private final LongAdder redraws = new LongAdder();
+  private final LongAdder entriesAdded = new LongAdder();
+
+  private volatile int undoDepth;
+  private volatile int redoDepth;
+  private volatile int spilledActions;
+  private volatile long heldBytes;
+
+  BoardStats(String id, int tiles, WhiteboardStats global) {
+    this.id = id;
+    this.tiles = tiles;
+    this.global = global;
+  }
+
+  void recordRender(long nanos, boolean redrew) {
+    render.record(nanos);
+    global.render.record(nanos);
+    if (redrew) {
+      redraws.increment();
+      global.redraws.increment();
+    }
+  }
+
+  // redraws には render の中での塗り直しと合わせて数える
+  void recordRepaint(long nanos) {
+    repaint.record(nanos);
+    global.repaint.record(nanos);
+    redraws.increment();
+    global.redraws.increment();
+  }
+
+  void recordLayout(long nanos) {
+    layout.record(nanos);
+    global.layout.record(nanos);
+  }
+
+  void recordFanOut(int tileCount) {
+    fanOut.record(tileCount);
+    global.fanOut.record(tileCount);
+    entriesAdded.add(tileCount);
+    global.entriesAdded.add(tileCount);
+  }
+
+  void sample(int undo, int redo, int spilled, long bytes) {
+    undoDepth = undo;
+    redoDepth = redo;
+    spilledActions = spilled;
+    heldBytes = bytes;
+  }
+
+  long redraws() {
+    return redraws.sum();
+  }
+
+  // render と塗り直しの合計（ns）
+  long paintNanos() {
+    return render.sum() + repaint.sum();
+  }
+
+  static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  /* =================== JMX =================== */
+
+  @Override
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public int getTiles() {
+    return tiles;
+  }
+
+  @Override
+  public long getRenderCount() {
+    return render.count();
+  }
+
+  @Override
+  public long getRedrawCount() {
+    return redraws.sum();
+  }
+
+  @Override
+  public long getRenderTimeTotalMicros() {
+    return micros(render.sum());
+  }
+
+  @Override
+  public long getRenderTimeMeanMicros() {
+    return micros(render.mean());
+  }
+
+  @Override
+  public long getRenderTimeP99Micros() {
+    return micros(render.percentile(0.99));
+  }
+
+  @Override
+  public long getRenderTimeMaxMicros() {
+    return micros(render.max());
+  }
+
+  @Override
+  public long getRepaintCount() {
+    return repaint.count();
+  }
+
+  @Override
+  public long getRepaintTimeMeanMicros() {
+    return micros(repaint.mean());
+  }
+
+  @Override
+  public long getRepaintTimeP99Micros() {
+    return micros(repaint.percentile(0.99));
+  }
+
+  @Override
+  public long getRepaintTimeMaxMicros() {
+    return micros(repaint.max());
+  }
+
+  @Override
+  public long getLayoutCount() {
+    return layout.count();
+  }
+
+  @Override
+  public long getLayoutTimeMeanMicros() {
+    return micros(layout.mean());
+  }
+
+  @Override
+  public long getLayoutTimeP99Micros() {
+    return micros(layout.percentile(0.99));
+  }
+
+  @Override
+  public long getAtomsApplied() {
+    return fanOut.count();
+  }
+
+  @Override
+  public long getTileEntriesAdded() {
+    return entriesAdded.sum();
+  }
+
+  @Override
+  public int getUndoDepth() {
+    return undoDepth;
+  }
+
+  @Override
+  public int getRedoDepth() {
+    return redoDepth;
+  }
+
+  @Override
+  public int getSpilledActions() {
+    return spilledActions;
+  }
+
+  @Override
+  public long getHeldBytes() {
+    return heldBytes;
+  }
+}
@@ -0,0 +1,48 @@
+package net.nando256.whiteboard;
+
+// JMX 用（net.nando256.whiteboard:type=Board,name=<groupId>）。時間はマイクロ秒
+public interface BoardStatsMBean {
+
+  String getId();
+
+  int getTiles();
+
+  long getRenderCount();
+
+  long getRedrawCount();
+
+  long getRenderTimeTotalMicros();
+
+  long getRenderTimeMeanMicros();
+
+  long getRenderTimeP99Micros();
+
+  long getRenderTimeMaxMicros();
+
+  // スケジューラーによる塗り直し（render の回数・時間には含まない）
+  long getRepaintCount();
+
+  long getRepaintTimeMeanMicros();
+
+  long getRepaintTimeP99Micros();
+
+  long getRepaintTimeMaxMicros();
+
+  long getLayoutCount();
+
+  long getLayoutTimeMeanMicros();
+
+  long getLayoutTimeP99Micros();
+
+  long getAtomsApplied();
+
+  long getTileEntriesAdded();
+
+  int getUndoDepth();
+
+  int getRedoDepth();
+
+  int getSpilledActions();
+
+  long getHeldBytes();
+}
@@ -0,0 +1,503 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+
+/* =========================================================
+ * ボードの永続化（plugins/Whiteboard/boards/<groupId>.wbd）
+ *
+ *  - 先頭 8 バイト（マジック + バージョン）以降は Deflate 圧縮
+ *  - 整数は可変長（zigzag varint）で詰める
+ *  - 読み書きは専用スレッドで行い、メインスレッドはスナップショットの受け渡しだけ
+ *  - 予算を超えた undo/redo 履歴は <groupId>.hist へ追記して逃がす（起動ごとに作り直す）
+ * ========================================================= */
+final class BoardStore {
+
+  private static final int MAGIC = 0x57424431; // "WBD1"
+  private static final int VERSION = 1;
+  private static final int IMAGE_BYTES = 128 * 128;
+  private static final String EXTENSION = ".wbd";
+  private static final String HISTORY_EXTENSION = ".hist";
+
+  private final File dir;
+  private final Logger logger;
+  private final ExecutorService io =
+      Executors.newSingleThreadExecutor(
+          r -> {
+            Thread t = new Thread(r, "Whiteboard-Storage");
+            t.setDaemon(true);
+            return t;
+          });
+  private final Set<SpillLog> logs = ConcurrentHashMap.newKeySet();
+
+  BoardStore(File dataFolder, Logger logger) {
+    this.dir = new File(dataFolder, "boards");
+    this.logger = logger;
+  }
+
+  // すべてのボードファイルを順番に読み、1枚ずつ consumer へ渡す（I/O スレッド上）
+  void loadAllAsync(Consumer<BoardData> consumer, Runnable done) {
+    io.execute(
+        () -> {
+          // 前回の履歴ログは保存済みの .wbd に含まれているので捨てる
+          File[] stale = dir.listFiles((d, name) -> name.endsWith(HISTORY_EXTENSION));
+          if (stale != null) {
+            for (File file : stale) file.delete();
+          }
+          File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+          if (files != null) {
+            for (File file : files) {
+              try {
+                consumer.accept(read(file));
+              } catch (Exception ex) {
+                logger.log(Level.WARNING, "Failed to load board file " + file.getName(), ex);
+              }
+            }
+          }
+          done.run();
+        });
+  }
+
+  // 書けなかったら I/O スレッドで failed を呼ぶ（呼び出し側が書き直しの印を戻す）
+  void saveAsync(BoardData data, Runnable failed) {
+    io.execute(
+        () -> {
+          if (!saveQuietly(data)) failed.run();
+        });
+  }
+
+  void deleteAsync(String groupId) {
+    io.execute(
+        () -> {
+          File file = fileFor(groupId);
+          if (file.exists() && !file.delete()) {
+            logger.warning("Could not delete board file " + file.getName());
+          }
+          new File(dir, groupId + HISTORY_EXTENSION).delete();
+        });
+  }
+
+  // ボードごとの履歴ログ（ファイルは最初の書き込みで作る）
+  SpillLog openSpillLog(String groupId) {
+    SpillLog log = new SpillLog(new File(dir, groupId + HISTORY_EXTENSION));
+    logs.add(log);
+    return log;
+  }
+
+  // onDisable 用：キュー済みの書き込みを待ってから同期で保存する
+  void shutdown(List<BoardData> finalSaves) {
+    io.shutdown();
+    try {
+      if (!io.awaitTermination(10, TimeUnit.SECONDS)) {
+        logger.warning("Timed out waiting for pending board saves");
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    for (BoardData data : finalSaves) saveQuietly(data);
+    for (SpillLog log : logs) log.delete();
+    logs.clear();
+  }
+
+  // 履歴ログを読めない（UncheckedIOException）なども含め、失敗はログに残して false
+  private boolean saveQuietly(BoardData data) {
+    try {
+      write(data);
+      return true;
+    } catch (IOException | RuntimeException ex) {
+      logger.log(Level.WARNING, "Failed to save board " + data.id, ex);
+      return false;
+    }
+  }
+
+  private File fileFor(String groupId) {
+    return new File(dir, groupId + EXTENSION);
+  }
+
+  private void write(BoardData data) throws IOException {
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir.getAbsolutePath());
+    }
+    File target = fileFor(data.id);
+    File temp = new File(dir, data.id + EXTENSION + ".tmp");
+    try {
+      try (OutputStream raw = new FileOutputStream(temp)) {
+        DataOutputStream header = new DataOutputStream(raw);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.flush();
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(raw)));
+        writeBody(out, data);
+        out.close();
+      }
+      Files.move(
+          temp.toPath(),
+          target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException ex) {
+      // 書きかけは残さない（前回の .wbd はそのまま）
+      temp.delete();
+      throw ex;
+    }
+  }
+
+  private BoardData read(File file) throws IOException {
+    try (InputStream raw = new FileInputStream(file)) {
+      DataInputStream header = new DataInputStream(raw);
+      if (header.readInt() != MAGIC) throw new IOException("Not a whiteboard file");
+      int version = header.readInt();
+      if (version != VERSION) throw new IOException("Unsupported version " + version);
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(new InflaterInputStream(raw)));
+      return readBody(in);
+    }
+  }
+
+  private static void writeBody(DataOutputStream out, BoardData d) throws IOException {
+    out.writeUTF(d.id);
+    writeUuid(out, d.worldId);
+    out.writeUTF(d.facing);
+    out.writeDouble(d.baseX);
+    out.writeDouble(d.baseY);
+    out.writeDouble(d.baseZ);
+    for (int v : d.right) writeVarInt(out, v);
+    for (int v : d.down) writeVarInt(out, v);
+    writeVarInt(out, d.width);
+    writeVarInt(out, d.height);
+    for (int y = 0; y < d.height; y++) {
+      for (int x = 0; x < d.width; x++) {
+        writeVarInt(out, d.mapIds[y][x]);
+        UUID frame = d.frameIds[y][x];
+        out.writeBoolean(frame != null);
+        if (frame != null) writeUuid(out, frame);
+      }
+    }
+    out.writeInt(d.background);
+    out.writeUTF(d.fontFamily);
+    writeVarInt(out, d.fontStyle);
+    out.writeBoolean(d.locked);
+    out.writeBoolean(d.password != null);
+    if (d.password != null) out.writeUTF(d.password);
+    writeActions(out, d.undo);
+    writeActions(out, d.redo);
+    for (int i = 0; i < d.width * d.height; i++) {
+      byte[] image = d.images != null ? d.images[i] : null;
+      out.writeBoolean(image != null);
+      if (image != null) out.write(image);
+    }
+  }
+
+  private static BoardData readBody(DataInputStream in) throws IOException {
+    BoardData d = new BoardData();
+    d.id = in.readUTF();
+    d.worldId = readUuid(in);
+    d.facing = in.readUTF().toUpperCase(Locale.ROOT);
+    d.baseX = in.readDouble();
+    d.baseY = in.readDouble();
+    d.baseZ = in.readDouble();
+    for (int i = 0; i < 3; i++) d.right[i] = readVarInt(in);
+    for (int i = 0; i < 3; i++) d.down[i] = readVarInt(in);
+    d.width = readVarInt(in);
+    d.height = readVarInt(in);
+    if (d.width <= 0 || d.height <= 0 || d.width * d.height > 4096) {
+      throw new IOException("Invalid board size " + d.width + "x" + d.height);
+    }
+    d.mapIds = new int[d.height][d.width];
+    d.frameIds = new UUID[d.height][d.width];
+    for (int y = 0; y < d.height; y++) {
+      for (int x = 0; x < d.width; x++) {
+        d.mapIds[y][x] = readVarInt(in);
+        if (in.readBoolean()) d.frameIds[y][x] = readUuid(in);
+      }
+    }
+    d.background = in.readInt();
+    d.fontFamily = in.readUTF();
+    d.fontStyle = readVarInt(in);
+    d.locked = in.readBoolean();
+    d.password = in.readBoolean() ? in.readUTF() : null;
+    d.undo = readActions(in);
+    d.redo = readActions(in);
+    d.images = new byte[d.width * d.height][];
+    for (int i = 0; i < d.images.length; i++) {
+      if (!in.readBoolean()) continue;
+      d.images[i] = new byte[IMAGE_BYTES];
+      in.readFully(d.images[i]);
+    }
+    return d;
+  }
+
+  // 古いものから順に書く
+  private static void writeActions(DataOutputStream out, List<TextAction> actions)
+      throws IOException {
+    writeVarInt(out, actions.size());
+    for (TextAction action : actions) {
+      writeUuid(out, action.id);
+      writeAtoms(out, BoardHistory.atomsOf(action));
+    }
+  }
+
+  private static void writeAtoms(DataOutputStream out, List<TextAtom> atoms) throws IOException {
+    writeVarInt(out, atoms.size());
+    for (TextAtom atom : atoms) {
+      out.writeUTF(atom.msg);
+      writeVarInt(out, atom.size);
+      out.writeInt(atom.col.getRGB());
+      writeVarInt(out, atom.gx);
+      writeVarInt(out, atom.gy);
+    }
+  }
+
+  private static List<TextAtom> readAtoms(DataInputStream in) throws IOException {
+    int count = readVarInt(in);
+    List<TextAtom> atoms = new ArrayList<>(Math.min(count, 1024));
+    for (int j = 0; j < count; j++) {
+      String msg = in.readUTF();
+      int size = readVarInt(in);
+      Color color = new Color(in.readInt(), true);
+      int gx = readVarInt(in);
+      int gy = readVarInt(in);
+      atoms.add(new TextAtom(msg, size, color, gx, gy));
+    }
+    return atoms;
+  }
+
+  private static List<TextAction> readActions(DataInputStream in) throws IOException {
+    int count = readVarInt(in);
+    List<TextAction> actions = new ArrayList<>(Math.min(count, 1024));
+    for (int i = 0; i < count; i++) {
+      TextAction action = new TextAction(readUuid(in));
+      action.atoms.addAll(readAtoms(in));
+      actions.add(action);
+    }
+    return actions;
+  }
+
+  private static void writeUuid(DataOutputStream out, UUID id) throws IOException {
+    out.writeLong(id.getMostSignificantBits());
+    out.writeLong(id.getLeastSignificantBits());
+  }
+
+  private static UUID readUuid(DataInputStream in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    int v = (value << 1) ^ (value >> 31);
+    while ((v & ~0x7F) != 0) {
+      out.writeByte((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int v = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.read();
+      if (b < 0) throw new EOFException();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return (v >>> 1) ^ -(v & 1);
+    }
+    throw new IOException("VarInt too long");
+  }
+
+  /* =================== 履歴ログ =================== */
+
+  // 追記専用。書き込みは I/O スレッドで行い、書き終わるまでは Slot が中身を持っておく
+  final class SpillLog {
+    private final File file;
+    private FileChannel channel; // I/O スレッドで開く
+    private long size; // 追記位置（メインスレッドで進める）
+
+    private SpillLog(File file) {
+      this.file = file;
+    }
+
+    Slot append(List<TextAtom> atoms) {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(buf)) {
+        writeAtoms(out, atoms);
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+      Slot slot = new Slot(this, size, buf.toByteArray());
+      size += slot.length;
+      io.execute(() -> write(slot));
+      return slot;
+    }
+
+    private ExecutorService io() {
+      return io;
+    }
+
+    // 逃がした履歴が無くなったら呼ぶ（以前の Slot は使えなくなる）
+    void reset() {
+      if (size == 0) return;
+      size = 0;
+      io.execute(this::truncate);
+    }
+
+    // 呼び出したスレッドでログを読むことになった（本来は readAsync で I/O スレッドから読む）
+    void warnBlockingRead() {
+      logger.log(
+          Level.WARNING,
+          "Reading history log " + file.getName() + " on " + Thread.currentThread().getName(),
+          new IllegalStateException("spilled history was not paged in first"));
+    }
+
+    void close() {
+      logs.remove(this);
+      io.execute(this::delete);
+    }
+
+    private synchronized void write(Slot slot) {
+      try {
+        if (channel == null) {
+          if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir.getAbsolutePath());
+          }
+          channel =
+              FileChannel.open(
+                  file.toPath(),
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.READ,
+                  StandardOpenOption.WRITE,
+                  StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        ByteBuffer data = ByteBuffer.wrap(slot.bytes);
+        long pos = slot.offset;
+        while (data.hasRemaining()) pos += channel.write(data, pos);
+        slot.bytes = null;
+      } catch (IOException ex) {
+        // 書けなかった分はメモリに残したままにする
+        logger.log(Level.WARNING, "Failed to write history log " + file.getName(), ex);
+      }
+    }
+
+    private synchronized byte[] read(long offset, int length) throws IOException {
+      ByteBuffer data = ByteBuffer.allocate(length);
+      while (data.hasRemaining()) {
+        if (channel.read(data, offset + data.position()) < 0) throw new EOFException();
+      }
+      return data.array();
+    }
+
+    private synchronized void truncate() {
+      if (channel == null) return;
+      try {
+        channel.truncate(0);
+      } catch (IOException ex) {
+        logger.log(Level.WARNING, "Failed to reset history log " + file.getName(), ex);
+      }
+    }
+
+    private synchronized void delete() {
+      try {
+        if (channel != null) channel.close();
+      } catch (IOException ignored) {
+        // 閉じられなくても削除は試す
+      }
+      channel = null;
+      file.delete();
+    }
+  }
+
+  // ログ上の1操作分。bytes は書き込みが終わると null になる
+  static final class Slot {
+    private final SpillLog log;
+    final long offset;
+    final int length;
+    volatile byte[] bytes;
+
+    private Slot(SpillLog log, long offset, byte[] bytes) {
+      this.log = log;
+      this.offset = offset;
+      this.length = bytes.length;
+      this.bytes = bytes;
+    }
+
+    List<TextAtom> read() throws IOException {
+      byte[] data = bytes;
+      if (data == null) data = log.read(offset, length);
+      return readAtoms(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    // I/O スレッドで読む（書き込みと同じスレッドなので、未書き込みの分を追い越さない）
+    CompletableFuture<List<TextAtom>> readAsync() {
+      CompletableFuture<List<TextAtom>> result = new CompletableFuture<>();
+      try {
+        log.io().execute(
+            () -> {
+              try {
+                result.complete(read());
+              } catch (Exception ex) {
+                result.completeExceptionally(ex);
+              }
+            });
+      } catch (RejectedExecutionException ex) {
+        result.completeExceptionally(ex);
+      }
+      return result;
+    }
+  }
+
+  /* =================== 保存形式 =================== */
+
+  static final class BoardData {
+    String id;
+    UUID worldId;
+    String facing;
+    double baseX, baseY, baseZ;
+    final int[] right = new int[3];
+    final int[] down = new int[3];
+    int width, height;
+    int[][] mapIds; // [H][W]
+    UUID[][] frameIds; // [H][W]
+    int background;
+    String fontFamily;
+    int fontStyle;
+    boolean locked;
+    String password; // BoardPassword.hash() の結果
+    List<TextAction> undo = new ArrayList<>(); // 古い順
+    List<TextAction> redo = new ArrayList<>(); // 古い順
+    byte[][] images; // タイル番号 (y*W+x) -> 画像のパレット番号（無ければ null）
+  }
+}
@@ -0,0 +1,237 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/* =========================================================
+ * 本の先頭に並ぶ指定（[size 20] [color #f00] [pos 10 40] など）
+ *
+ *  - 解釈できない [..] が出た所で止め、残りを本文とする
+ * ========================================================= */
+final class BookDirectives {
+
+  private static final Pattern INT_PATTERN = Pattern.compile("-?\\d+");
+
+  final String content;
+  final Integer size;
+  final Color color;
+  final Integer gx;
+  final Integer gy;
+  final Integer lineHeight;
+  final boolean clearBefore;
+  final Integer boardWidth;
+  final Integer boardHeight;
+  final Boolean lockOn;
+  final String providedPassword;
+  final String newPassword;
+
+  BookDirectives(
+      String content,
+      Integer size,
+      Color color,
+      Integer gx,
+      Integer gy,
+      Integer lineHeight,
+      boolean clearBefore,
+      Integer boardWidth,
+      Integer boardHeight,
+      Boolean lockOn,
+      String providedPassword,
+      String newPassword) {
+    this.content = content;
+    this.size = size;
+    this.color = color;
+    this.gx = gx;
+    this.gy = gy;
+    this.lineHeight = lineHeight;
+    this.clearBefore = clearBefore;
+    this.boardWidth = boardWidth;
+    this.boardHeight = boardHeight;
+    this.lockOn = lockOn;
+    this.providedPassword = providedPassword;
+    this.newPassword = newPassword;
+  }
+
+  static BookDirectives parse(String content) {
+    if (content == null)
+      return new BookDirectives("", null, null, null, null, null, false, null, null, null, null, null);
+    String working = content.stripLeading();
+    Integer size = null;
+    Color color = null;
+    Integer gx = null;
+    Integer gy = null;
+    Integer lineHeight = null;
+    boolean clearBefore = false;
+    Integer boardWidth = null;
+    Integer boardHeight = null;
+    Boolean lockOn = null;
+    String providedPassword = null;
+    String newPassword = null;
+
+    while (true) {
+      String trimmed = working.stripLeading();
+      if (!trimmed.startsWith("[")) break;
+      int close = trimmed.indexOf(']');
+      if (close < 0) break;
+
+      String token = trimmed.substring(1, close).trim();
+      String remainder = trimmed.substring(close + 1);
+      boolean matched = false;
+      String lower = token.toLowerCase(Locale.ROOT);
+
+      if (lower.startsWith("size")) {
+        Integer value = parseFirstInt(token);
+        if (value != null) {
+          size = clamp(value, 8, 64);
+          matched = true;
+        }
+      } else if (lower.startsWith("line")) {
+        Integer value = parseFirstInt(token);
+        if (value != null) {
+          lineHeight = clamp(value, 8, 256);
+          matched = true;
+        }
+      } else if (lower.equals("clear")) {
+        clearBefore = true;
+        matched = true;
+      } else if (lower.startsWith("color")) {
+        String arg = token.replaceFirst("(?i)color", "").trim();
+        while (!arg.isEmpty()
+            && (arg.charAt(0) == '=' || arg.charAt(0) == ':' || arg.charAt(0) == ',')) {
+          arg = arg.substring(1).trim();
+        }
+        if (arg.isEmpty()) arg = token;
+        Color parsed = CssColors.parseToken(arg);
+        if (parsed == null) parsed = CssColors.parseToken(token);
+        if (parsed != null) {
+          color = parsed;
+          matched = true;
+        }
+      } else if (lower.startsWith("pos") || lower.startsWith("xy") || lower.startsWith("offset")) {
+        Integer[] pos = parsePositionToken(token);
+        if (pos != null) {
+          gx = pos[0];
+          gy = pos[1];
+          matched = true;
+        }
+      } else if (lower.startsWith("boardsize")) {
+        Integer[] dims = parseBoardSizeToken(token);
+        if (dims != null) {
+          boardWidth = Math.max(1, dims[0]);
+          boardHeight = Math.max(1, dims[1]);
+          matched = true;
+        }
+      } else if (lower.startsWith("password")) {
+        String value = extractDirectiveValue(token, "password");
+        if (value != null) {
+          newPassword = value;
+          matched = true;
+        }
+      } else if (lower.startsWith("pass")) {
+        String value = extractDirectiveValue(token, "pass");
+        if (value != null) {
+          if (providedPassword == null) {
+            providedPassword = value;
+          }
+          matched = true;
+        }
+      } else if (lower.startsWith("lock")) {
+        String arg = token.replaceFirst("(?i)lock", "").trim().toLowerCase(Locale.ROOT);
+        if (arg.isEmpty() || arg.equals("on")) {
+          lockOn = true;
+          matched = true;
+        } else if (arg.equals("off")) {
+          lockOn = false;
+          matched = true;
+        }
+      }
+
+      if (matched) {
+        working = remainder;
+      } else {
+        break;
+      }
+    }
+    return new BookDirectives(
+        working.stripLeading(),
+        size,
+        color,
+        gx,
+        gy,
+        lineHeight,
+        clearBefore,
+        boardWidth,
+        boardHeight,
+        lockOn,
+        providedPassword,
+        newPassword);
+  }
+
+  private static Integer parseFirstInt(String token) {
+    java.util.regex.Matcher matcher = INT_PATTERN.matcher(token);
+    if (!matcher.find()) return null;
+    try {
+      return Integer.parseInt(matcher.group());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static Integer[] parsePositionToken(String token) {
+    java.util.regex.Matcher matcher = INT_PATTERN.matcher(token);
+    if (!matcher.find()) return null;
+    Integer x;
+    Integer y = 0;
+    try {
+      x = Integer.parseInt(matcher.group());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (matcher.find()) {
+      try {
+        y = Integer.parseInt(matcher.group());
+      } catch (NumberFormatException e) {
+        y = 0;
+      }
+    }
+    return new Integer[] {x, y};
+  }
+
+  private static Integer[] parseBoardSizeToken(String token) {
+    java.util.regex.Matcher matcher = INT_PATTERN.matcher(token);
+    if (!matcher.find()) return null;
+    Integer w;
+    Integer h;
+    try {
+      w = Math.max(1, Integer.parseInt(matcher.group()));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (!matcher.find()) return null;
+    try {
+      h = Math.max(1, Integer.parseInt(matcher.group()));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    return new Integer[] {w, h};
+  }
+
+  private static String extractDirectiveValue(String token, String keyword) {
+    if (token == null || keyword == null) return null;
+    String remainder = token.replaceFirst("(?i)^" + keyword, "").trim();
+    while (!remainder.isEmpty()) {
+      char ch = remainder.charAt(0);
+      if (ch == '=' || ch == ':' || ch == ',') {
+        remainder = remainder.substring(1).trim();
+        continue;
+      }
+      break;
+    }
+    return remainder.isEmpty() ? null : remainder;
+  }
+
+  private static int clamp(int v, int lo, int hi) {
+    return Math.max(lo, Math.min(hi, v));
+  }
+}
@@ -0,0 +1,205 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/* =========================================================
+ * 色指定の解析（#RGB / #RRGGBB / rgb() / CSS の色名）
+ * ========================================================= */
+final class CssColors {
+
+  private static final Map<String, Color> NAMED = createNamedMap();
+  // 位置ベースの照合用（NAMED と同じ中身）
+  private static final String[] NAMES = NAMED.keySet().toArray(new String[0]);
+  private static final int[] NAMED_ARGB = new int[NAMES.length];
+
+  static {
+    for (int i = 0; i < NAMES.length; i++) NAMED_ARGB[i] = NAMED.get(NAMES[i]).getRGB();
+  }
+
+  private CssColors() {}
+
+  static Color parse(String raw, Color fallback) {
+    if (raw == null) return fallback;
+    String v = raw.trim();
+    if (v.isEmpty()) return fallback;
+    String lower = v.toLowerCase(Locale.ROOT);
+    if (lower.startsWith("rgb(") && lower.endsWith(")")) {
+      String inner = lower.substring(4, lower.length() - 1);
+      String[] parts = inner.split(",");
+      if (parts.length == 3) {
+        try {
+          int r = clamp(component(parts[0]), 0, 255);
+          int g = clamp(component(parts[1]), 0, 255);
+          int b = clamp(component(parts[2]), 0, 255);
+          return new Color(r, g, b);
+        } catch (NumberFormatException ignored) {
+          return fallback;
+        }
+      }
+      return fallback;
+    }
+    Color named = NAMED.get(lower.replace(" ", ""));
+    if (named != null) return named;
+    return parseHex(v, fallback);
+  }
+
+  // parse と同じ規則で s の [from, to) を読む（結果は ARGB）。
+  // HTML の属性値をその場で読むためのもので、rgb() 以外は文字列を作らない
+  static int parseArgb(CharSequence s, int from, int to, int fallback) {
+    int a = HtmlParser.trimStart(s, from, to);
+    int b = HtmlParser.trimEnd(s, a, to);
+    if (a == b) return fallback;
+    if (b - a >= 5 && HtmlParser.equalsIgnoreCase(s, a, a + 4, "rgb(") && s.charAt(b - 1) == ')') {
+      Color c = parse(s.subSequence(a, b).toString(), null);
+      return c != null ? c.getRGB() : fallback;
+    }
+    for (int i = 0; i < NAMES.length; i++) {
+      if (equalsIgnoringSpaces(s, a, b, NAMES[i])) return NAMED_ARGB[i];
+    }
+    int h = s.charAt(a) == '#' ? a + 1 : a;
+    int len = b - h;
+    if (len == 6) {
+      // parseHex と同じく Integer.parseInt で読む（"-12345" のような符号付きも通る）
+      long rgb = HtmlParser.parseInt(s, h, b, 16);
+      return rgb == Long.MIN_VALUE ? fallback : 0xFF000000 | ((int) rgb & 0xFFFFFF);
+    }
+    if (len != 3) return fallback;
+    int rgb = 0;
+    for (int i = h; i < b; i++) {
+      int digit = Character.digit(s.charAt(i), 16);
+      if (digit < 0) return fallback;
+      rgb = (rgb << 8) | (digit << 4) | digit;
+    }
+    return 0xFF000000 | rgb;
+  }
+
+  static Color parseToken(String token) {
+    if (token == null) return null;
+    String trimmed = token.trim();
+    if (trimmed.isEmpty()) return null;
+    String normalized = trimmed.toLowerCase(Locale.ROOT).replace(" ", "");
+
+    Color named = NAMED.get(normalized);
+    if (named != null) return named;
+
+    if (normalized.startsWith("rgb(") && normalized.endsWith(")")) {
+      String inner = normalized.substring(4, normalized.length() - 1);
+      String[] parts = inner.split(",");
+      if (parts.length == 3) {
+        try {
+          int r = clamp(component(parts[0]), 0, 255);
+          int g = clamp(component(parts[1]), 0, 255);
+          int b = clamp(component(parts[2]), 0, 255);
+          return new Color(r, g, b);
+        } catch (Exception ignored) {
+          return null;
+        }
+      }
+      return null;
+    }
+
+    String hex = trimmed.startsWith("#") ? trimmed.substring(1) : trimmed;
+    if (hex.length() == 3 && isHexDigits(hex)) {
+      StringBuilder sb = new StringBuilder(6);
+      for (int i = 0; i < 3; i++) sb.append(hex.charAt(i)).append(hex.charAt(i));
+      hex = sb.toString();
+    }
+    if (hex.length() == 6 && isHexDigits(hex)) {
+      try {
+        return new Color(Integer.parseInt(hex, 16));
+      } catch (NumberFormatException ignored) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  static Color parseHex(String s, Color def) {
+    if (s == null) return def;
+    String v = s.trim();
+    if (v.isEmpty()) return def;
+    if (v.charAt(0) == '#') v = v.substring(1);
+    if (v.length() == 3) {
+      StringBuilder sb = new StringBuilder(6);
+      for (int i = 0; i < 3; i++) sb.append(v.charAt(i)).append(v.charAt(i));
+      v = sb.toString();
+    }
+    if (v.length() != 6) return def;
+    try {
+      return new Color(Integer.parseInt(v, 16));
+    } catch (NumberFormatException e) {
+      return def;
+    }
+  }
+
+  // 空白を飛ばして小文字の name と比べる
+  private static boolean equalsIgnoringSpaces(CharSequence s, int from, int to, String name) {
+    int j = 0;
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      if (c == ' ') continue;
+      if (c >= 'A' && c <= 'Z') c = (char) (c + ('a' - 'A'));
+      if (j >= name.length() || c != name.charAt(j++)) return false;
+    }
+    return j == name.length();
+  }
+
+  private static int component(String raw) {
+    String v = raw.trim();
+    if (v.endsWith("%")) {
+      double pct = Double.parseDouble(v.substring(0, v.length() - 1));
+      return (int) Math.round(255 * (pct / 100.0));
+    }
+    return Integer.parseInt(v);
+  }
+
+  private static boolean isHexDigits(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (!(c >= '0' && c <= '9')
+          && !(c >= 'a' && c <= 'f')
+          && !(c >= 'A' && c <= 'F')) return false;
+    }
+    return true;
+  }
+
+  private static Map<String, Color> createNamedMap() {
+    Map<String, Color> map = new HashMap<>();
+    map.put("black", new Color(0x000000));
+    map.put("white", new Color(0xFFFFFF));
+    map.put("red", new Color(0xFF0000));
+    map.put("green", new Color(0x008000));
+    map.put("blue", new Color(0x0000FF));
+    map.put("yellow", new Color(0xFFFF00));
+    map.put("cyan", new Color(0x00FFFF));
+    map.put("aqua", new Color(0x00FFFF));
+    map.put("magenta", new Color(0xFF00FF));
+    map.put("fuchsia", new Color(0xFF00FF));
+    map.put("gray", new Color(0x808080));
+    map.put("grey", new Color(0x808080));
+    map.put("lightgray", new Color(0xD3D3D3));
+    map.put("lightgrey", new Color(0xD3D3D3));
+    map.put("darkgray", new Color(0xA9A9A9));
+    map.put("darkgrey", new Color(0xA9A9A9));
+    map.put("orange", new Color(0xFFA500));
+    map.put("brown", new Color(0xA52A2A));
+    map.put("purple", new Color(0x800080));
+    map.put("pink", new Color(0xFFC0CB));
+    map.put("lime", new Color(0x00FF00));
+    map.put("navy", new Color(0x000080));
+    map.put("teal", new Color(0x008080));
+    map.put("olive", new Color(0x808000));
+    map.put("maroon", new Color(0x800000));
+    map.put("silver", new Color(0xC0C0C0));
+    map.put("gold", new Color(0xFFD700));
+    return Collections.unmodifiableMap(map);
+  }
+
+  private static int clamp(int v, int lo, int hi) {
+    return Math.max(lo, Math.min(hi, v));
+  }
+}
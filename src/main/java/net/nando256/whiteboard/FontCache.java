@@ -0,0 +1,191 @@
+package net.nando256.whiteboard;
+
+import java.awt.Font;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.awt.geom.AffineTransform;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* =========================================================
+ * 派生フォントと文字送り幅のキャッシュ（レイアウト・描画で共用）
+ *
+ *  - キーは (family, style, size)。上限を超えたら古いものから捨てる
+ *  - 送り幅はコードポイント単位で一度だけ測る
+ *  - ワーカースレッドからも呼ばれるのでスレッドセーフにしてある
+ * ========================================================= */
+final class FontCache {
+
+  // 描画（GlyphAtlas・Java2D とも AA あり・整数送り幅）と同じ条件で測る。
+  // 小数の送り幅で測ると、長い行で描いた文字が測った幅からはみ出す
+  static final FontRenderContext FONT_CONTEXT =
+      new FontRenderContext(new AffineTransform(), true, false);
+
+  private static final int MAX_FONTS = 256;
+  private static final int PAGE_BITS = 8;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  private static final Map<Key, Metrics> FONTS =
+      new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Metrics> eldest) {
+          return size() > MAX_FONTS;
+        }
+      };
+
+  private static final LongAdder fontHits = new LongAdder();
+  private static final LongAdder fontMisses = new LongAdder();
+  private static final LongAdder advanceHits = new LongAdder();
+  private static final LongAdder advanceMisses = new LongAdder();
+
+  private FontCache() {}
+
+  // base のファミリー・スタイルで size ポイントのフォント情報を返す
+  static Metrics get(Font base, int size) {
+    Key key = new Key(base.getName(), base.getStyle(), size);
+    synchronized (FONTS) {
+      Metrics cached = FONTS.get(key);
+      if (cached != null) {
+        fontHits.increment();
+        return cached;
+      }
+    }
+    fontMisses.increment();
+    Metrics created = new Metrics(base.deriveFont((float) size));
+    synchronized (FONTS) {
+      Metrics raced = FONTS.putIfAbsent(key, created);
+      return raced != null ? raced : created;
+    }
+  }
+
+  static Font derive(Font base, int size) {
+    return get(base, size).font;
+  }
+
+  static int cachedFonts() {
+    synchronized (FONTS) {
+      return FONTS.size();
+    }
+  }
+
+  static long fontHits() {
+    return fontHits.sum();
+  }
+
+  static long fontMisses() {
+    return fontMisses.sum();
+  }
+
+  static long advanceHits() {
+    return advanceHits.sum();
+  }
+
+  static long advanceMisses() {
+    return advanceMisses.sum();
+  }
+
+  static final class Metrics {
+    final Font font;
+    final int ascent;
+    final int descent;
+    // BMP はページ単位の配列（未計測は NaN）、それ以外はマップ
+    private final AtomicReferenceArray<float[]> pages =
+        new AtomicReferenceArray<>(0x10000 >> PAGE_BITS);
+    private final Map<Integer, Float> supplementary = new ConcurrentHashMap<>();
+    // GlyphAtlas 用のアルファマスク（フォントと一緒に捨てられる）
+    final Map<Integer, GlyphAtlas.Glyph> glyphs = new ConcurrentHashMap<>();
+
+    private Metrics(Font font) {
+      this.font = font;
+      LineMetrics lm = font.getLineMetrics("Hg", FONT_CONTEXT);
+      this.ascent = (int) Math.ceil(lm.getAscent());
+      this.descent = (int) Math.ceil(lm.getDescent());
+    }
+
+    float advance(int cp) {
+      if (cp > 0xFFFF) {
+        Float cached = supplementary.get(cp);
+        if (cached != null) {
+          advanceHits.increment();
+          return cached;
+        }
+        advanceMisses.increment();
+        float measured = measure(cp);
+        supplementary.put(cp, measured);
+        return measured;
+      }
+      int pageIndex = cp >>> PAGE_BITS;
+      float[] page = pages.get(pageIndex);
+      if (page == null) {
+        float[] fresh = new float[PAGE_SIZE];
+        Arrays.fill(fresh, Float.NaN);
+        page = pages.compareAndSet(pageIndex, null, fresh) ? fresh : pages.get(pageIndex);
+      }
+      int slot = cp & (PAGE_SIZE - 1);
+      float value = page[slot];
+      if (!Float.isNaN(value)) {
+        advanceHits.increment();
+        return value;
+      }
+      advanceMisses.increment();
+      value = measure(cp);
+      page[slot] = value;
+      return value;
+    }
+
+    // 文字列全体の送り幅（切り上げ）
+    int width(String text) {
+      float total = 0f;
+      for (int i = 0; i < text.length(); ) {
+        int cp = text.codePointAt(i);
+        total += advance(cp);
+        i += Character.charCount(cp);
+      }
+      return (int) Math.ceil(total);
+    }
+
+    int width(char[] chars, int offset, int length) {
+      float total = 0f;
+      int end = offset + length;
+      for (int i = offset; i < end; ) {
+        int cp = Character.codePointAt(chars, i, end);
+        total += advance(cp);
+        i += Character.charCount(cp);
+      }
+      return (int) Math.ceil(total);
+    }
+
+    private float measure(int cp) {
+      char[] chars = Character.toChars(cp);
+      return font.createGlyphVector(FONT_CONTEXT, chars).getGlyphMetrics(0).getAdvanceX();
+    }
+  }
+
+  private static final class Key {
+    final String name;
+    final int style;
+    final int size;
+
+    Key(String name, int style, int size) {
+      this.name = name;
+      this.style = style;
+      this.size = size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key other)) return false;
+      return size == other.size && style == other.style && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(name, style, size);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package net.nando256.whiteboard;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.Location;
+import org.bukkit.block.BlockFace;
+import org.bukkit.util.Vector;
+
+/* =========================================================
+ * ボードの額縁の位置索引：(world, x, y, z, facing) -> 額縁 UUID・グループ
+ *
+ *  - 視線判定はこの索引上のボクセル走査（DDA）だけで行い、エンティティ検索をしない
+ *  - 同じブロックに向きの違う額縁が入ることがあるので、セルごとに連結リストで持つ
+ *  - メインスレッド専用
+ * ========================================================= */
+final class FrameIndex {
+
+  // 額縁の当たり判定の厚み（1/16 ブロック）
+  private static final double DEPTH = 1.0 / 16.0;
+
+  private final Map<UUID, Map<Long, Entry>> worlds = new HashMap<>();
+
+  void add(Location blockCenter, BlockFace facing, UUID frameId, String groupId) {
+    if (blockCenter == null || blockCenter.getWorld() == null || facing == null) return;
+    int x = blockCenter.getBlockX();
+    int y = blockCenter.getBlockY();
+    int z = blockCenter.getBlockZ();
+    Map<Long, Entry> cells =
+        worlds.computeIfAbsent(blockCenter.getWorld().getUID(), k -> new HashMap<>());
+    long key = pack(x, y, z);
+    Entry head = cells.get(key);
+    for (Entry e = head; e != null; e = e.next) {
+      if (e.facing == facing) {
+        e.frameId = frameId;
+        e.groupId = groupId;
+        return;
+      }
+    }
+    cells.put(key, new Entry(x, y, z, facing, frameId, groupId, head));
+  }
+
+  void remove(Location blockCenter, BlockFace facing) {
+    if (blockCenter == null || blockCenter.getWorld() == null) return;
+    Map<Long, Entry> cells = worlds.get(blockCenter.getWorld().getUID());
+    if (cells == null) return;
+    long key = pack(blockCenter.getBlockX(), blockCenter.getBlockY(), blockCenter.getBlockZ());
+    Entry head = cells.get(key);
+    Entry prev = null;
+    for (Entry e = head; e != null; prev = e, e = e.next) {
+      if (e.facing != facing) continue;
+      if (prev == null) head = e.next;
+      else prev.next = e.next;
+      break;
+    }
+    if (head == null) cells.remove(key);
+    else cells.put(key, head);
+    if (cells.isEmpty()) worlds.remove(blockCenter.getWorld().getUID());
+  }
+
+  // 視点から maxDist 以内で最初に当たる額縁（索引にあるものだけ）
+  Hit trace(Location eye, double maxDist) {
+    if (eye.getWorld() == null) return null;
+    Map<Long, Entry> cells = worlds.get(eye.getWorld().getUID());
+    if (cells == null || cells.isEmpty()) return null;
+
+    Vector dir = eye.getDirection();
+    double ox = eye.getX();
+    double oy = eye.getY();
+    double oz = eye.getZ();
+    double dx = dir.getX();
+    double dy = dir.getY();
+    double dz = dir.getZ();
+
+    int x = (int) Math.floor(ox);
+    int y = (int) Math.floor(oy);
+    int z = (int) Math.floor(oz);
+    int stepX = dx > 0 ? 1 : -1;
+    int stepY = dy > 0 ? 1 : -1;
+    int stepZ = dz > 0 ? 1 : -1;
+    double tDeltaX = dx != 0 ? Math.abs(1.0 / dx) : Double.POSITIVE_INFINITY;
+    double tDeltaY = dy != 0 ? Math.abs(1.0 / dy) : Double.POSITIVE_INFINITY;
+    double tDeltaZ = dz != 0 ? Math.abs(1.0 / dz) : Double.POSITIVE_INFINITY;
+    double tMaxX = boundary(ox, dx, x) * tDeltaX;
+    double tMaxY = boundary(oy, dy, y) * tDeltaY;
+    double tMaxZ = boundary(oz, dz, z) * tDeltaZ;
+
+    double t = 0.0;
+    while (t <= maxDist) {
+      Entry best = null;
+      double bestT = Double.POSITIVE_INFINITY;
+      for (Entry e = cells.get(pack(x, y, z)); e != null; e = e.next) {
+        double hit = intersect(e, ox, oy, oz, dx, dy, dz);
+        if (hit >= 0 && hit <= maxDist && hit < bestT) {
+          best = e;
+          bestT = hit;
+        }
+      }
+      // 当たり判定はセルの内側にあるので、最初に当たったセルで確定する
+      if (best != null) return new Hit(best.frameId, best.groupId);
+
+      if (tMaxX < tMaxY && tMaxX < tMaxZ) {
+        x += stepX;
+        t = tMaxX;
+        tMaxX += tDeltaX;
+      } else if (tMaxY < tMaxZ) {
+        y += stepY;
+        t = tMaxY;
+        tMaxY += tDeltaY;
+      } else {
+        z += stepZ;
+        t = tMaxZ;
+        tMaxZ += tDeltaZ;
+      }
+    }
+    return null;
+  }
+
+  // 次のセル境界までの距離（方向成分が 0 なら無限大）
+  private static double boundary(double origin, double d, int cell) {
+    if (d == 0) return Double.POSITIVE_INFINITY;
+    return d > 0 ? cell + 1 - origin : origin - cell;
+  }
+
+  // 支えのブロック側に張り付いた厚さ 1/16 の板との交差距離（当たらなければ -1）
+  private static double intersect(
+      Entry e, double ox, double oy, double oz, double dx, double dy, double dz) {
+    double minX = e.x, maxX = e.x + 1.0;
+    double minY = e.y, maxY = e.y + 1.0;
+    double minZ = e.z, maxZ = e.z + 1.0;
+    switch (e.facing) {
+      case NORTH -> minZ = maxZ - DEPTH;
+      case SOUTH -> maxZ = minZ + DEPTH;
+      case WEST -> minX = maxX - DEPTH;
+      case EAST -> maxX = minX + DEPTH;
+      case DOWN -> minY = maxY - DEPTH;
+      case UP -> maxY = minY + DEPTH;
+      default -> {}
+    }
+    double tMin = 0.0;
+    double tMax = Double.POSITIVE_INFINITY;
+    double[] origin = {ox, oy, oz};
+    double[] delta = {dx, dy, dz};
+    double[] lo = {minX, minY, minZ};
+    double[] hi = {maxX, maxY, maxZ};
+    for (int axis = 0; axis < 3; axis++) {
+      if (delta[axis] == 0) {
+        if (origin[axis] < lo[axis] || origin[axis] > hi[axis]) return -1;
+        continue;
+      }
+      double t1 = (lo[axis] - origin[axis]) / delta[axis];
+      double t2 = (hi[axis] - origin[axis]) / delta[axis];
+      tMin = Math.max(tMin, Math.min(t1, t2));
+      tMax = Math.min(tMax, Math.max(t1, t2));
+      if (tMax < tMin) return -1;
+    }
+    return tMin;
+  }
+
+  private static long pack(int x, int y, int z) {
+    return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+  }
+
+  static final class Hit {
+    final UUID frameId;
+    final String groupId;
+
+    Hit(UUID frameId, String groupId) {
+      this.frameId = frameId;
+      this.groupId = groupId;
+    }
+  }
+
+  private static final class Entry {
+    final int x;
+    final int y;
+    final int z;
+    final BlockFace facing;
+    UUID frameId;
+    String groupId;
+    Entry next;
+
+    Entry(int x, int y, int z, BlockFace facing, UUID frameId, String groupId, Entry next) {
+      this.x = x;
+      this.y = y;
+      this.z = z;
+      this.facing = facing;
+      this.frameId = frameId;
+      this.groupId = groupId;
+      this.next = next;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.concurrent.atomic.LongAdder;
+
+/* =========================================================
+ * グリフアトラス：文字ごとのアルファマスクを一度だけ作り、
+ * 以降は Java2D を通さずタイルの ARGB 配列へ直接合成する
+ *
+ *  - マスクは FontCache.Metrics（= family, style, size）ごとに保持
+ *  - 状態は不変なので、ワーカースレッドからも安全に使える
+ * ========================================================= */
+final class GlyphAtlas {
+
+  // 1フォントあたりの上限（超えた分は都度作って捨てる）
+  static final int MAX_GLYPHS_PER_FONT = 4096;
+
+  // Java2D の drawString と同じ条件（AA あり・整数送り幅）でマスクを作る。
+  // 送り幅を測る FontCache と同じものを使う（描いた文字が textBounds に収まるように）
+  private static final FontRenderContext MASK_CONTEXT = FontCache.FONT_CONTEXT;
+
+  private static final byte[] EMPTY = new byte[0];
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+
+  private GlyphAtlas() {}
+
+  static long hits() {
+    return hits.sum();
+  }
+
+  static long misses() {
+    return misses.sum();
+  }
+
+  static Glyph glyph(FontCache.Metrics metrics, int cp) {
+    Glyph cached = metrics.glyphs.get(cp);
+    if (cached != null) {
+      hits.increment();
+      return cached;
+    }
+    misses.increment();
+    Glyph created = render(metrics.font, cp);
+    if (metrics.glyphs.size() < MAX_GLYPHS_PER_FONT) {
+      Glyph raced = metrics.glyphs.putIfAbsent(cp, created);
+      if (raced != null) return raced;
+    }
+    return created;
+  }
+
+  // (x, y) をベースラインの始点として chars[offset, offset + length) を
+  // dst（128x128 ARGB）へ合成する。[cx0, cx1) x [cy0, cy1) の外側には書かない
+  static void drawChars(
+      int[] dst,
+      FontCache.Metrics metrics,
+      char[] chars,
+      int offset,
+      int length,
+      int x,
+      int y,
+      int argb,
+      int cx0,
+      int cy0,
+      int cx1,
+      int cy1) {
+    int size = TileRasterizer.SIZE;
+    // 完全に範囲外の行は何もしない
+    if (y + metrics.descent < cy0 || y - metrics.ascent >= cy1 || x >= cx1) return;
+
+    int sr = (argb >> 16) & 0xFF;
+    int sg = (argb >> 8) & 0xFF;
+    int sb = argb & 0xFF;
+    int opaque = argb | 0xFF000000;
+
+    float pen = x;
+    int end = offset + length;
+    for (int i = offset; i < end; ) {
+      int cp = Character.codePointAt(chars, i, end);
+      i += Character.charCount(cp);
+      Glyph glyph = glyph(metrics, cp);
+      int gx = Math.round(pen) + glyph.x;
+      int gy = y + glyph.y;
+      pen += glyph.advance;
+      if (glyph.alpha.length == 0) continue;
+      if (gx >= cx1) break;
+      if (gx + glyph.width <= cx0 || gy >= cy1 || gy + glyph.height <= cy0) continue;
+
+      int x0 = Math.max(0, cx0 - gx);
+      int y0 = Math.max(0, cy0 - gy);
+      int x1 = Math.min(glyph.width, cx1 - gx);
+      int y1 = Math.min(glyph.height, cy1 - gy);
+      for (int row = y0; row < y1; row++) {
+        int src = row * glyph.width;
+        int out = (gy + row) * size + gx;
+        for (int col = x0; col < x1; col++) {
+          int a = glyph.alpha[src + col] & 0xFF;
+          if (a == 0) continue;
+          if (a == 0xFF) {
+            dst[out + col] = opaque;
+            continue;
+          }
+          int d = dst[out + col];
+          int inv = 0xFF - a;
+          int r = (sr * a + ((d >> 16) & 0xFF) * inv + 127) / 255;
+          int g = (sg * a + ((d >> 8) & 0xFF) * inv + 127) / 255;
+          int b = (sb * a + (d & 0xFF) * inv + 127) / 255;
+          dst[out + col] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+      }
+    }
+  }
+
+  private static Glyph render(Font font, int cp) {
+    GlyphVector gv = font.createGlyphVector(MASK_CONTEXT, Character.toChars(cp));
+    float advance = gv.getGlyphMetrics(0).getAdvanceX();
+    Rectangle bounds = gv.getGlyphPixelBounds(0, MASK_CONTEXT, 0f, 0f);
+    if (bounds.width <= 0 || bounds.height <= 0) {
+      return new Glyph(0, 0, 0, 0, advance, EMPTY);
+    }
+    // アンチエイリアスの縁が欠けないよう 1px 広げる
+    bounds.grow(1, 1);
+
+    BufferedImage mask =
+        new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_BYTE_GRAY);
+    Graphics2D g = mask.createGraphics();
+    try {
+      g.setRenderingHint(
+          RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setColor(Color.WHITE);
+      g.drawGlyphVector(gv, -bounds.x, -bounds.y);
+    } finally {
+      g.dispose();
+    }
+    byte[] alpha = ((DataBufferByte) mask.getRaster().getDataBuffer()).getData();
+    return new Glyph(bounds.x, bounds.y, bounds.width, bounds.height, advance, alpha);
+  }
+
+  static final class Glyph {
+    final int x; // 描画位置からマスク左上までのずれ
+    final int y;
+    final int width;
+    final int height;
+    final float advance;
+    final byte[] alpha; // width * height、空白などは長さ 0
+
+    Glyph(int x, int y, int width, int height, float advance, byte[] alpha) {
+      this.x = x;
+      this.y = y;
+      this.width = width;
+      this.height = height;
+      this.advance = advance;
+      this.alpha = alpha;
+    }
+  }
+}
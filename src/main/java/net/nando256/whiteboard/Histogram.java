@@ -0,0 +1,79 @@
+package net.nando256.whiteboard;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* =========================================================
+ * 固定バケットの分布（ナノ秒や件数）
+ *
+ *  - 16 未満はそのまま、それ以上は 2 の冪ごとに 4 分割（誤差 25% 以内）
+ *  - record は配列の加算だけで、オブジェクトを作らない
+ *  - どのスレッドから記録・参照してもよい
+ * ========================================================= */
+final class Histogram {
+
+  private static final int LINEAR = 16;
+  private static final int SUB_BITS = 2;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int BUCKETS = LINEAR + (64 - 4) * SUB_COUNT;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  void record(long value) {
+    if (value < 0) value = 0;
+    buckets.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    long seen = max.get();
+    while (value > seen && !max.compareAndSet(seen, value)) seen = max.get();
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  long sum() {
+    return sum.sum();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  long mean() {
+    long n = count.sum();
+    return n == 0 ? 0 : sum.sum() / n;
+  }
+
+  // q (0..1) 番目の値が入るバケットの上端
+  long percentile(double q) {
+    long n = count.sum();
+    if (n == 0) return 0;
+    long rank = Math.max(1, (long) Math.ceil(q * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) return Math.min(upperBound(i), max.get());
+    }
+    return max.get();
+  }
+
+  private static int bucketOf(long v) {
+    if (v < LINEAR) return (int) v;
+    int exp = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+    return LINEAR + (exp - 4) * SUB_COUNT + sub;
+  }
+
+  private static long upperBound(int index) {
+    if (index < LINEAR) return index;
+    int exp = (index - LINEAR) / SUB_COUNT + 4;
+    int sub = (index - LINEAR) % SUB_COUNT;
+    long step = 1L << (exp - SUB_BITS);
+    return ((long) (SUB_COUNT + sub) << (exp - SUB_BITS)) + step - 1;
+  }
+}
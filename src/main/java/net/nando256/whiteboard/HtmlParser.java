@@ -0,0 +1,445 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* =========================================================
+ * 本・コマンドの HTML（と平文）をトークン列にする
+ *
+ *  - 対応タグ: span / font（色・大きさ）、br、p / div（段落）
+ *  - ボードの状態に触れないので、ワーカーからそのまま呼べる
+ *  - 入力は1回だけ前から読む。タグ名・属性名は位置で照合し、文字列を作らない
+ *  - 同じ（色, 大きさ）のスタイルは共有する。作られるのはほぼ出力のトークンだけ
+ * ========================================================= */
+final class HtmlParser {
+
+  private static final int MIN_SIZE = 8;
+  private static final int MAX_SIZE = 256;
+
+  private HtmlParser() {}
+
+  static List<HtmlToken> parse(CharSequence html, Color defaultColor, int defaultSize) {
+    List<HtmlToken> tokens = new ArrayList<>();
+    if (html == null || html.length() == 0) return tokens;
+    new Scanner(html, tokens, HtmlStyle.of(defaultColor.getRGB(), defaultSize)).run();
+    return tokens;
+  }
+
+  static List<HtmlToken> plainTokens(CharSequence text, Color color, int size) {
+    List<HtmlToken> tokens = new ArrayList<>();
+    if (text == null || text.length() == 0) return tokens;
+    StringBuilder current = new StringBuilder();
+    boolean lineStart = true;
+    boolean pendingSpace = false;
+    for (int i = 0; i < text.length(); i++) {
+      char ch = text.charAt(i);
+      if (ch == '\r') continue;
+      if (ch == '\n') {
+        if (current.length() > 0) {
+          tokens.add(HtmlToken.text(current.toString(), color, size));
+          current.setLength(0);
+        }
+        tokens.add(HtmlToken.lineBreak());
+        lineStart = true;
+        pendingSpace = false;
+        continue;
+      }
+      if (Character.isWhitespace(ch)) {
+        if (!lineStart) pendingSpace = true;
+        continue;
+      }
+      if (pendingSpace) {
+        current.append(' ');
+        pendingSpace = false;
+      }
+      current.append(ch);
+      lineStart = false;
+    }
+    if (current.length() > 0) {
+      tokens.add(HtmlToken.text(current.toString(), color, size));
+    }
+    return tokens;
+  }
+
+  /* ===== 走査（1回の parse ごとに1つ） ===== */
+
+  private static final class Scanner {
+    private final CharSequence in;
+    private final int n;
+    private final List<HtmlToken> tokens;
+    private final Deque<HtmlStyle> stack = new ArrayDeque<>();
+    private final StringBuilder current = new StringBuilder();
+    // タグとタグの間の文字（1区切り）ごとの空白の状態
+    private boolean inRun;
+    private boolean lineStart;
+    private boolean pendingSpace;
+
+    Scanner(CharSequence in, List<HtmlToken> tokens, HtmlStyle base) {
+      this.in = in;
+      this.n = in.length();
+      this.tokens = tokens;
+      stack.push(base);
+    }
+
+    void run() {
+      int i = 0;
+      while (i < n) {
+        char ch = in.charAt(i);
+        if (ch == '<') {
+          endRun();
+          int close = indexOf(in, '>', i + 1, n);
+          if (close < 0) break; // 閉じていないタグ以降は捨てる
+          tag(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+        if (ch == '&') {
+          int semi = indexOf(in, ';', i + 1, n);
+          if (semi > i) {
+            entity(i + 1, semi);
+            i = semi + 1;
+            continue;
+          }
+        }
+        if (ch != '\r') text(ch);
+        i++;
+      }
+      endRun();
+    }
+
+    /* ----- 文字（空白をまとめ、改行でトークンを分ける） ----- */
+
+    private void text(char ch) {
+      if (!inRun) {
+        inRun = true;
+        lineStart = tokens.isEmpty() || tokens.get(tokens.size() - 1).lineBreak;
+        pendingSpace = false;
+      }
+      if (ch == '\n') {
+        flushWord();
+        tokens.add(HtmlToken.lineBreak());
+        lineStart = true;
+        pendingSpace = false;
+        return;
+      }
+      if (Character.isWhitespace(ch)) {
+        if (!lineStart) pendingSpace = true;
+        return;
+      }
+      if (pendingSpace) {
+        current.append(' ');
+        pendingSpace = false;
+      }
+      current.append(ch);
+      lineStart = false;
+    }
+
+    private void text(CharSequence s, int from, int to) {
+      for (int i = from; i < to; i++) {
+        char ch = s.charAt(i);
+        if (ch != '\r') text(ch);
+      }
+    }
+
+    // 区切りの末尾の空白は捨てる（タグをまたいで持ち越さない）
+    private void endRun() {
+      flushWord();
+      inRun = false;
+    }
+
+    private void flushWord() {
+      if (current.length() == 0) return;
+      HtmlStyle style = stack.peek();
+      tokens.add(HtmlToken.text(current.toString(), style.color, style.size));
+      current.setLength(0);
+    }
+
+    /* ----- タグ: [from, to) は < と > の間 ----- */
+
+    private void tag(int from, int to) {
+      int a = trimStart(in, from, to);
+      int b = trimEnd(in, a, to);
+      boolean closing = a < b && in.charAt(a) == '/';
+      boolean selfClosing = a < b && in.charAt(b - 1) == '/';
+      if (closing) {
+        a = trimStart(in, a + 1, b);
+      }
+      if (selfClosing && a < b) {
+        b = trimEnd(in, a, b - 1);
+      }
+      int nameEnd = indexOf(in, ' ', a, b);
+      if (nameEnd < 0) nameEnd = b;
+
+      boolean styled = nameIs(a, nameEnd, "span") || nameIs(a, nameEnd, "font");
+      boolean block = nameIs(a, nameEnd, "p") || nameIs(a, nameEnd, "div");
+      if (closing) {
+        if (styled && stack.size() > 1) {
+          stack.pop();
+        } else if (block) {
+          tokens.add(HtmlToken.lineBreak());
+          tokens.add(HtmlToken.lineBreak());
+        }
+      } else if (nameIs(a, nameEnd, "br")) {
+        tokens.add(HtmlToken.lineBreak());
+      } else if (block) {
+        if (!tokens.isEmpty() && !tokens.get(tokens.size() - 1).lineBreak) {
+          tokens.add(HtmlToken.lineBreak());
+        }
+        tokens.add(HtmlToken.lineBreak());
+      } else if (styled && !selfClosing) {
+        // 自己終了の span は何も変えない
+        stack.push(deriveStyle(stack.peek(), Math.min(nameEnd + 1, b), b));
+      }
+    }
+
+    private boolean nameIs(int from, int to, String lowerName) {
+      return equalsIgnoreCase(in, from, to, lowerName);
+    }
+
+    /* ----- 属性（同じ名前は後勝ち。適用順は color, size, font-size, style） ----- */
+
+    private HtmlStyle deriveStyle(HtmlStyle parent, int from, int to) {
+      int colorFrom = -1, colorTo = -1;
+      int sizeFrom = -1, sizeTo = -1;
+      int fontSizeFrom = -1, fontSizeTo = -1;
+      int styleFrom = -1, styleTo = -1;
+
+      int i = from;
+      while (i < to) {
+        while (i < to && Character.isWhitespace(in.charAt(i))) i++;
+        if (i >= to) break;
+        int eq = indexOf(in, '=', i, to);
+        if (eq < 0) break;
+        int keyFrom = trimStart(in, i, eq);
+        int keyTo = trimEnd(in, keyFrom, eq);
+        i = eq + 1;
+        if (i >= to) break;
+
+        int valueFrom;
+        int valueTo;
+        char quote = in.charAt(i);
+        if (quote == '"' || quote == '\'') {
+          valueFrom = ++i;
+          int end = indexOf(in, quote, i, to);
+          valueTo = end < 0 ? to : end;
+          i = end < 0 ? to : end + 1;
+        } else {
+          valueFrom = i;
+          while (i < to && !Character.isWhitespace(in.charAt(i))) i++;
+          valueTo = i;
+        }
+
+        if (equalsIgnoreCase(in, keyFrom, keyTo, "color")) {
+          colorFrom = valueFrom;
+          colorTo = valueTo;
+        } else if (equalsIgnoreCase(in, keyFrom, keyTo, "size")) {
+          sizeFrom = valueFrom;
+          sizeTo = valueTo;
+        } else if (equalsIgnoreCase(in, keyFrom, keyTo, "font-size")) {
+          fontSizeFrom = valueFrom;
+          fontSizeTo = valueTo;
+        } else if (equalsIgnoreCase(in, keyFrom, keyTo, "style")) {
+          styleFrom = valueFrom;
+          styleTo = valueTo;
+        }
+      }
+
+      int argb = parent.color.getRGB();
+      int size = parent.size;
+      if (colorFrom >= 0) argb = CssColors.parseArgb(in, colorFrom, colorTo, argb);
+      if (sizeFrom >= 0) size = clamp(parseFontSize(in, sizeFrom, sizeTo, size));
+      if (fontSizeFrom >= 0) size = clamp(parseFontSize(in, fontSizeFrom, fontSizeTo, size));
+      if (styleFrom >= 0) {
+        // style="color: red; font-size: 20px"
+        int d = styleFrom;
+        while (d < styleTo) {
+          int semi = indexOf(in, ';', d, styleTo);
+          int declTo = semi < 0 ? styleTo : semi;
+          int colon = indexOf(in, ':', d, declTo);
+          if (colon >= 0) {
+            int keyFrom = trimStart(in, d, colon);
+            int keyTo = trimEnd(in, keyFrom, colon);
+            int valueFrom = trimStart(in, colon + 1, declTo);
+            int valueTo = trimEnd(in, valueFrom, declTo);
+            if (equalsIgnoreCase(in, keyFrom, keyTo, "color")) {
+              argb = CssColors.parseArgb(in, valueFrom, valueTo, argb);
+            } else if (equalsIgnoreCase(in, keyFrom, keyTo, "font-size")) {
+              size = clamp(parseFontSize(in, valueFrom, valueTo, size));
+            }
+          }
+          d = declTo + 1;
+        }
+      }
+      if (argb == parent.color.getRGB() && size == parent.size) return parent;
+      return HtmlStyle.of(argb, size);
+    }
+
+    /* ----- 実体参照: [from, to) は & と ; の間 ----- */
+
+    private void entity(int from, int to) {
+      int a = trimStart(in, from, to);
+      int b = trimEnd(in, a, to);
+      if (a == b) return;
+      if (in.charAt(a) == '#') {
+        boolean hex = a + 1 < b && (in.charAt(a + 1) == 'x' || in.charAt(a + 1) == 'X');
+        long code = parseInt(in, hex ? a + 2 : a + 1, b, hex ? 16 : 10);
+        if (code != Long.MIN_VALUE) {
+          text((char) code);
+          return;
+        }
+      } else if (equalsIgnoreCase(in, a, b, "lt")) {
+        text('<');
+        return;
+      } else if (equalsIgnoreCase(in, a, b, "gt")) {
+        text('>');
+        return;
+      } else if (equalsIgnoreCase(in, a, b, "amp")) {
+        text('&');
+        return;
+      } else if (equalsIgnoreCase(in, a, b, "quot")) {
+        text('"');
+        return;
+      } else if (equalsIgnoreCase(in, a, b, "apos")) {
+        text('\'');
+        return;
+      } else if (equalsIgnoreCase(in, a, b, "nbsp")) {
+        text(' ');
+        return;
+      }
+      // 知らない実体参照はそのまま文字として残す
+      text('&');
+      text(in, from, to);
+      text(';');
+    }
+  }
+
+  /* ===== 位置ベースの小さな道具 ===== */
+
+  // size="20" / "20px" / "120%" / "1.5em"
+  // 数の読み方は Double.parseDouble / Integer.parseInt と同じ（"1e1em" や "+20" も通る）
+  private static int parseFontSize(CharSequence s, int from, int to, int current) {
+    int a = trimStart(s, from, to);
+    int b = trimEnd(s, a, to);
+    if (endsWithIgnoreCase(s, a, b, "px")) b = trimEnd(s, a, b - 2);
+    if (a < b && s.charAt(b - 1) == '%') {
+      try {
+        double pct = Double.parseDouble(s.subSequence(a, b - 1).toString());
+        return Math.max(1, (int) Math.round(current * pct / 100.0));
+      } catch (NumberFormatException ignored) {
+        return current;
+      }
+    }
+    if (endsWithIgnoreCase(s, a, b, "em")) {
+      try {
+        double em = Double.parseDouble(s.subSequence(a, b - 2).toString());
+        return Math.max(1, (int) Math.round(current * em));
+      } catch (NumberFormatException ignored) {
+        return current;
+      }
+    }
+    long v = parseInt(s, a, b, 10);
+    return v == Long.MIN_VALUE ? Math.max(1, current) : Math.max(1, (int) v);
+  }
+
+  // Integer.parseInt と同じ規則（符号可）。読めなければ Long.MIN_VALUE
+  static long parseInt(CharSequence s, int from, int to, int radix) {
+    if (from >= to) return Long.MIN_VALUE;
+    try {
+      return Integer.parseInt(s, from, to, radix);
+    } catch (NumberFormatException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  static int indexOf(CharSequence s, char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i) == c) return i;
+    }
+    return -1;
+  }
+
+  // String.trim と同じく U+0020 以下を空白とみなす
+  static int trimStart(CharSequence s, int from, int to) {
+    while (from < to && s.charAt(from) <= ' ') from++;
+    return from;
+  }
+
+  static int trimEnd(CharSequence s, int from, int to) {
+    while (to > from && s.charAt(to - 1) <= ' ') to--;
+    return to;
+  }
+
+  // lower は小文字の ASCII
+  static boolean equalsIgnoreCase(CharSequence s, int from, int to, String lower) {
+    if (to - from != lower.length()) return false;
+    for (int i = 0; i < lower.length(); i++) {
+      char c = s.charAt(from + i);
+      if (c >= 'A' && c <= 'Z') c = (char) (c + ('a' - 'A'));
+      if (c != lower.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static boolean endsWithIgnoreCase(CharSequence s, int from, int to, String lower) {
+    return to - from >= lower.length() && equalsIgnoreCase(s, to - lower.length(), to, lower);
+  }
+
+  private static int clamp(int v) {
+    return Math.max(MIN_SIZE, Math.min(MAX_SIZE, v));
+  }
+
+  /* ===== スタイル（共有される不変オブジェクト） ===== */
+
+  private static final class HtmlStyle {
+    // (色, 大きさ) -> スタイル。衝突したら上書きするだけの固定長キャッシュ
+    private static final int CACHE_SIZE = 256;
+    private static final AtomicReferenceArray<HtmlStyle> CACHE =
+        new AtomicReferenceArray<>(CACHE_SIZE);
+
+    final Color color;
+    final int size;
+
+    private HtmlStyle(Color color, int size) {
+      this.color = color;
+      this.size = size;
+    }
+
+    static HtmlStyle of(int argb, int size) {
+      int slot = ((argb * 31 + size) * 0x9E3779B9 >>> 24) & (CACHE_SIZE - 1);
+      HtmlStyle cached = CACHE.get(slot);
+      if (cached != null && cached.size == size && cached.color.getRGB() == argb) return cached;
+      HtmlStyle style = new HtmlStyle(new Color(argb, true), size);
+      CACHE.set(slot, style);
+      return style;
+    }
+  }
+
+  static final class HtmlToken {
+    private static final HtmlToken LINE_BREAK = new HtmlToken("", null, 0, true);
+
+    final String text;
+    final Color color;
+    final int size;
+    final boolean lineBreak;
+
+    private HtmlToken(String text, Color color, int size, boolean lineBreak) {
+      this.text = text;
+      this.color = color;
+      this.size = size;
+      this.lineBreak = lineBreak;
+    }
+
+    static HtmlToken text(String text, Color color, int size) {
+      return new HtmlToken(text, color, size, false);
+    }
+
+    // 改行は中身を持たないので1つを使い回す
+    static HtmlToken lineBreak() {
+      return LINE_BREAK;
+    }
+  }
+}
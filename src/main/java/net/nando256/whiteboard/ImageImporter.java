@@ -0,0 +1,208 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/* =========================================================
+ * 画像ファイル -> ボード全体のマップ色（ワーカースレッド用）
+ *
+ *  - 読み込みは ImageReader の間引き（サブサンプリング）と切り出しで行い、
+ *    元の解像度の画像をヒープに置かない（最終サイズの 2 倍程度まで）
+ *  - ボード全体 (W*128 x H*128) の ARGB を 1 枚だけ作り、横帯ごとに
+ *    fork-join で並列に Floyd–Steinberg ディザリングしてタイルへ書く
+ *  - 誤差拡散は本来上から順にしか進められない。ここでは各帯を並列に処理し、
+ *    上の帯の末尾数行を誤差 0 から出力せずに空回しして、境目の誤差を近似する
+ *    （逐次の Floyd–Steinberg と完全には一致せず、境目がわずかに変わりうる）
+ * ========================================================= */
+final class ImageImporter {
+
+  enum Fit {
+    FIT, // 全体が収まるように縮小し、余白は背景色
+    FILL // ボードを埋めるように拡大し、はみ出しは切り捨て
+  }
+
+  static final long MAX_FILE_BYTES = 32L << 20;
+  private static final long MAX_SOURCE_PIXELS = 1L << 28;
+  private static final int OVERSAMPLE = 2; // 縮小前に残す解像度の倍率
+  private static final int BAND_ROWS = 32;
+  private static final int WARM_UP_ROWS = 8;
+
+  private ImageImporter() {}
+
+  // 戻り値はタイル番号 (y*W+x) ごとの 128x128 パレット番号
+  static byte[][] importImage(
+      File file, int tilesW, int tilesH, Fit fit, Color background, ForkJoinPool pool)
+      throws IOException {
+    if (file.length() > MAX_FILE_BYTES) {
+      throw new IOException("File is larger than " + (MAX_FILE_BYTES >> 20) + " MiB");
+    }
+    int width = tilesW * TileRasterizer.SIZE;
+    int height = tilesH * TileRasterizer.SIZE;
+    int[] argb = scale(decode(file, width, height, fit), width, height, fit, background);
+
+    byte[][] tiles = new byte[tilesW * tilesH][TileRasterizer.SIZE * TileRasterizer.SIZE];
+    int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+    pool.invoke(new DitherBands(argb, width, height, tilesW, tiles, 0, bands));
+    return tiles;
+  }
+
+  /* ============ 読み込み ============ */
+
+  private static BufferedImage decode(File file, int width, int height, Fit fit)
+      throws IOException {
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      if (in == null) throw new IOException("Cannot open " + file.getName());
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+      if (!readers.hasNext()) throw new IOException("Unsupported image format");
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        int sw = reader.getWidth(0);
+        int sh = reader.getHeight(0);
+        if ((long) sw * sh > MAX_SOURCE_PIXELS) {
+          throw new IOException("Image is too large (" + sw + "x" + sh + ")");
+        }
+        Rectangle region = sourceRegion(sw, sh, width, height, fit);
+        double scale = drawScale(region.width, region.height, width, height, fit);
+        int step = Math.max(1, (int) Math.floor(1.0 / (scale * OVERSAMPLE)));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        param.setSourceSubsampling(step, step, 0, 0);
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  // FILL はボードの縦横比で中央を切り出す。FIT は全体
+  private static Rectangle sourceRegion(int sw, int sh, int width, int height, Fit fit) {
+    if (fit == Fit.FIT) return new Rectangle(0, 0, sw, sh);
+    double scale = Math.max(width / (double) sw, height / (double) sh);
+    int cw = Math.max(1, Math.min(sw, (int) Math.round(width / scale)));
+    int ch = Math.max(1, Math.min(sh, (int) Math.round(height / scale)));
+    return new Rectangle((sw - cw) / 2, (sh - ch) / 2, cw, ch);
+  }
+
+  private static double drawScale(int sw, int sh, int width, int height, Fit fit) {
+    double sx = width / (double) sw;
+    double sy = height / (double) sh;
+    return fit == Fit.FIT ? Math.min(sx, sy) : Math.max(sx, sy);
+  }
+
+  // 背景色の上に描く（透過部分・余白は背景色になる）。読み込んだ画像はここで手放す
+  private static int[] scale(BufferedImage src, int width, int height, Fit fit, Color background) {
+    BufferedImage board = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    double scale = drawScale(src.getWidth(), src.getHeight(), width, height, fit);
+    int dw = Math.max(1, (int) Math.round(src.getWidth() * scale));
+    int dh = Math.max(1, (int) Math.round(src.getHeight() * scale));
+    Graphics2D g = board.createGraphics();
+    try {
+      g.setColor(new Color(background.getRGB() | 0xFF000000));
+      g.fillRect(0, 0, width, height);
+      g.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.drawImage(src, (width - dw) / 2, (height - dh) / 2, dw, dh, null);
+    } finally {
+      g.dispose();
+    }
+    src.flush();
+    return ((DataBufferInt) board.getRaster().getDataBuffer()).getData();
+  }
+
+  /* ============ ディザリング ============ */
+
+  private static final class DitherBands extends RecursiveAction {
+    private final int[] argb;
+    private final int width;
+    private final int height;
+    private final int tilesW;
+    private final byte[][] tiles;
+    private final int from;
+    private final int to;
+
+    DitherBands(int[] argb, int width, int height, int tilesW, byte[][] tiles, int from, int to) {
+      this.argb = argb;
+      this.width = width;
+      this.height = height;
+      this.tilesW = tilesW;
+      this.tiles = tiles;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        int y0 = from * BAND_ROWS;
+        ditherBand(argb, width, tilesW, tiles, y0, Math.min(height, y0 + BAND_ROWS));
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(
+          new DitherBands(argb, width, height, tilesW, tiles, from, mid),
+          new DitherBands(argb, width, height, tilesW, tiles, mid, to));
+    }
+  }
+
+  // [y0, y1) の行をタイルへ書く。誤差は 1/16 単位の整数で、右と下の 3 画素へ配る
+  private static void ditherBand(int[] argb, int width, int tilesW, byte[][] tiles, int y0, int y1) {
+    int stride = (width + 2) * 3; // 左右に 1 画素ずつ余白
+    int[] cur = new int[stride];
+    int[] next = new int[stride];
+    for (int y = Math.max(0, y0 - WARM_UP_ROWS); y < y1; y++) {
+      boolean emit = y >= y0;
+      byte[] tileRow = null;
+      int row = y * width;
+      for (int x = 0; x < width; x++) {
+        if (emit && (x & 127) == 0) tileRow = tiles[(y >> 7) * tilesW + (x >> 7)];
+        int c = argb[row + x];
+        int e = (x + 1) * 3;
+        int r = clamp(((c >> 16) & 0xFF) + sixteenth(cur[e]));
+        int g = clamp(((c >> 8) & 0xFF) + sixteenth(cur[e + 1]));
+        int b = clamp((c & 0xFF) + sixteenth(cur[e + 2]));
+        byte index = MapColors.lookup(0xFF000000 | (r << 16) | (g << 8) | b);
+        int p = MapColors.argbOf(index);
+        spread(cur, next, e, r - ((p >> 16) & 0xFF));
+        spread(cur, next, e + 1, g - ((p >> 8) & 0xFF));
+        spread(cur, next, e + 2, b - (p & 0xFF));
+        if (emit) tileRow[((y & 127) << 7) | (x & 127)] = index;
+      }
+      int[] t = cur;
+      cur = next;
+      next = t;
+      Arrays.fill(next, 0);
+    }
+  }
+
+  private static void spread(int[] cur, int[] next, int e, int err) {
+    cur[e + 3] += err * 7;
+    next[e - 3] += err * 3;
+    next[e] += err * 5;
+    next[e + 3] += err;
+  }
+
+  // 1/16 単位の誤差を四捨五入で戻す。>> 4 だと負の誤差だけ大きく丸まり、暗い方へ偏る
+  private static int sixteenth(int err) {
+    return err >= 0 ? (err + 8) >> 4 : -((8 - err) >> 4);
+  }
+
+  private static int clamp(int v) {
+    return v < 0 ? 0 : Math.min(255, v);
+  }
+}
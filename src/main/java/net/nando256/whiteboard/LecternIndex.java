@@ -0,0 +1,297 @@
+package net.nando256.whiteboard;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Lectern;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+
+/* =========================================================
+ * ボード周辺の書見台の索引（チャンク単位）
+ *
+ *  - ボードの周囲のチャンクは読み込み時に索引する。それ以外は初めて問い合わせた時に索引する
+ *  - 設置・破壊・チャンクの読み書きのイベントで更新する
+ *  - 本が載っているかは索引に持たない。問い合わせは近い順に必ず実物で確かめる
+ *  - メインスレッド専用
+ * ========================================================= */
+final class LecternIndex implements Listener {
+
+  // 視線 5 ブロック + 書見台 5 ブロック + 余裕
+  private static final int BOARD_REACH = 11;
+
+  // world -> chunkKey -> そのチャンクの書見台（キーがあれば索引済み）
+  private final Map<UUID, Map<Long, List<Spot>>> chunks = new HashMap<>();
+  // world -> chunkKey -> そのチャンクを近くに持つボードの数
+  private final Map<UUID, Map<Long, Integer>> watched = new HashMap<>();
+  private final Map<String, Watch> boards = new HashMap<>();
+
+  /* ============ ボードの登録 ============ */
+
+  void watchBoard(String groupId, Location[][] centers) {
+    unwatchBoard(groupId);
+    World world = null;
+    int minX = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+    for (Location[] row : centers) {
+      for (Location c : row) {
+        if (c == null || c.getWorld() == null) continue;
+        world = c.getWorld();
+        minX = Math.min(minX, c.getBlockX());
+        minZ = Math.min(minZ, c.getBlockZ());
+        maxX = Math.max(maxX, c.getBlockX());
+        maxZ = Math.max(maxZ, c.getBlockZ());
+      }
+    }
+    if (world == null) return;
+
+    Watch watch =
+        new Watch(
+            world.getUID(),
+            (minX - BOARD_REACH) >> 4,
+            (minZ - BOARD_REACH) >> 4,
+            (maxX + BOARD_REACH) >> 4,
+            (maxZ + BOARD_REACH) >> 4);
+    boards.put(groupId, watch);
+    Map<Long, Integer> counts = watched.computeIfAbsent(watch.worldId, k -> new HashMap<>());
+    for (int cx = watch.minCx; cx <= watch.maxCx; cx++) {
+      for (int cz = watch.minCz; cz <= watch.maxCz; cz++) {
+        counts.merge(chunkKey(cx, cz), 1, Integer::sum);
+        if (world.isChunkLoaded(cx, cz)) ensureIndexed(world, cx, cz);
+      }
+    }
+  }
+
+  void unwatchBoard(String groupId) {
+    Watch watch = boards.remove(groupId);
+    if (watch == null) return;
+    Map<Long, Integer> counts = watched.get(watch.worldId);
+    if (counts == null) return;
+    for (int cx = watch.minCx; cx <= watch.maxCx; cx++) {
+      for (int cz = watch.minCz; cz <= watch.maxCz; cz++) {
+        counts.computeIfPresent(chunkKey(cx, cz), (k, n) -> n > 1 ? n - 1 : null);
+      }
+    }
+    if (counts.isEmpty()) watched.remove(watch.worldId);
+  }
+
+  /* ============ 問い合わせ ============ */
+
+  // origin から radius 以内で本が載っている最も近い書見台
+  Lectern nearestWithBook(Location origin, double radius) {
+    for (Spot spot : candidates(origin, radius)) {
+      Lectern lectern = verify(origin.getWorld(), spot);
+      if (lectern != null && isBook(lectern.getInventory().getItem(0))) return lectern;
+    }
+    return null;
+  }
+
+  // origin から radius 以内で空いている最も近い書見台
+  Lectern nearestEmpty(Location origin, double radius) {
+    for (Spot spot : candidates(origin, radius)) {
+      Lectern lectern = verify(origin.getWorld(), spot);
+      if (lectern != null && isEmpty(lectern.getInventory().getItem(0))) return lectern;
+    }
+    return null;
+  }
+
+  // 半径内の書見台を近い順にすべて返す（本の有無はホッパーや他のプラグインでも変わるので、
+  // 呼び出し側が必ず実物を確かめる）
+  private List<Spot> candidates(Location origin, double radius) {
+    World world = origin.getWorld();
+    List<Spot> found = new ArrayList<>();
+    if (world == null) return found;
+
+    int range = (int) Math.ceil(radius);
+    int minCx = (origin.getBlockX() - range) >> 4;
+    int maxCx = (origin.getBlockX() + range) >> 4;
+    int minCz = (origin.getBlockZ() - range) >> 4;
+    int maxCz = (origin.getBlockZ() + range) >> 4;
+    double limit = radius * radius;
+    for (int cx = minCx; cx <= maxCx; cx++) {
+      for (int cz = minCz; cz <= maxCz; cz++) {
+        if (!world.isChunkLoaded(cx, cz)) continue;
+        for (Spot spot : ensureIndexed(world, cx, cz)) {
+          if (spot.distanceSquared(origin) <= limit) found.add(spot);
+        }
+      }
+    }
+    found.sort(Comparator.comparingDouble(s -> s.distanceSquared(origin)));
+    return found;
+  }
+
+  // 索引が古い場合に備えて実物を確かめる（スナップショットは取らない）
+  private Lectern verify(World world, Spot spot) {
+    Block block = world.getBlockAt(spot.x, spot.y, spot.z);
+    if (block.getType() != Material.LECTERN
+        || !(block.getState(false) instanceof Lectern lectern)) {
+      remove(block);
+      return null;
+    }
+    return lectern;
+  }
+
+  /* ============ 索引の更新 ============ */
+
+  private List<Spot> ensureIndexed(World world, int cx, int cz) {
+    Map<Long, List<Spot>> byChunk = chunks.computeIfAbsent(world.getUID(), k -> new HashMap<>());
+    long key = chunkKey(cx, cz);
+    List<Spot> spots = byChunk.get(key);
+    if (spots != null) return spots;
+
+    spots = new ArrayList<>();
+    Chunk chunk = world.getChunkAt(cx, cz);
+    for (BlockState state : chunk.getTileEntities(b -> b.getType() == Material.LECTERN, false)) {
+      if (!(state instanceof Lectern)) continue;
+      spots.add(new Spot(state.getX(), state.getY(), state.getZ()));
+    }
+    byChunk.put(key, spots);
+    return spots;
+  }
+
+  private List<Spot> indexedSpots(Block block) {
+    Map<Long, List<Spot>> byChunk = chunks.get(block.getWorld().getUID());
+    if (byChunk == null) return null;
+    return byChunk.get(chunkKey(block.getX() >> 4, block.getZ() >> 4));
+  }
+
+  private Spot find(Block block) {
+    List<Spot> spots = indexedSpots(block);
+    if (spots == null) return null;
+    for (Spot spot : spots) {
+      if (spot.x == block.getX() && spot.y == block.getY() && spot.z == block.getZ()) return spot;
+    }
+    return null;
+  }
+
+  private void remove(Block block) {
+    List<Spot> spots = indexedSpots(block);
+    if (spots == null) return;
+    for (Iterator<Spot> it = spots.iterator(); it.hasNext(); ) {
+      Spot spot = it.next();
+      if (spot.x == block.getX() && spot.y == block.getY() && spot.z == block.getZ()) {
+        it.remove();
+        return;
+      }
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockPlace(BlockPlaceEvent e) {
+    Block block = e.getBlockPlaced();
+    if (block.getType() != Material.LECTERN) return;
+    List<Spot> spots = indexedSpots(block);
+    if (spots != null && find(block) == null) {
+      spots.add(new Spot(block.getX(), block.getY(), block.getZ()));
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockBreak(BlockBreakEvent e) {
+    if (e.getBlock().getType() == Material.LECTERN) remove(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockBurn(BlockBurnEvent e) {
+    if (e.getBlock().getType() == Material.LECTERN) remove(e.getBlock());
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onBlockExplode(BlockExplodeEvent e) {
+    for (Block block : e.blockList()) {
+      if (block.getType() == Material.LECTERN) remove(block);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+  public void onEntityExplode(EntityExplodeEvent e) {
+    for (Block block : e.blockList()) {
+      if (block.getType() == Material.LECTERN) remove(block);
+    }
+  }
+
+  @EventHandler
+  public void onChunkLoad(ChunkLoadEvent e) {
+    Chunk chunk = e.getChunk();
+    Map<Long, Integer> counts = watched.get(chunk.getWorld().getUID());
+    if (counts == null || !counts.containsKey(chunkKey(chunk.getX(), chunk.getZ()))) return;
+    ensureIndexed(chunk.getWorld(), chunk.getX(), chunk.getZ());
+  }
+
+  @EventHandler
+  public void onChunkUnload(ChunkUnloadEvent e) {
+    Chunk chunk = e.getChunk();
+    Map<Long, List<Spot>> byChunk = chunks.get(chunk.getWorld().getUID());
+    if (byChunk == null) return;
+    byChunk.remove(chunkKey(chunk.getX(), chunk.getZ()));
+    if (byChunk.isEmpty()) chunks.remove(chunk.getWorld().getUID());
+  }
+
+  private static long chunkKey(int cx, int cz) {
+    return ((long) cx & 0xFFFFFFFFL) | (((long) cz & 0xFFFFFFFFL) << 32);
+  }
+
+  private static boolean isBook(ItemStack stack) {
+    if (stack == null) return false;
+    Material type = stack.getType();
+    return type == Material.WRITTEN_BOOK || type == Material.WRITABLE_BOOK;
+  }
+
+  private static boolean isEmpty(ItemStack stack) {
+    return stack == null || stack.getType() == Material.AIR || stack.getAmount() <= 0;
+  }
+
+  private static final class Spot {
+    final int x;
+    final int y;
+    final int z;
+
+    Spot(int x, int y, int z) {
+      this.x = x;
+      this.y = y;
+      this.z = z;
+    }
+
+    double distanceSquared(Location origin) {
+      double dx = x + 0.5 - origin.getX();
+      double dy = y + 0.5 - origin.getY();
+      double dz = z + 0.5 - origin.getZ();
+      return dx * dx + dy * dy + dz * dz;
+    }
+  }
+
+  private static final class Watch {
+    final UUID worldId;
+    final int minCx;
+    final int minCz;
+    final int maxCx;
+    final int maxCz;
+
+    Watch(UUID worldId, int minCx, int minCz, int maxCx, int maxCz) {
+      this.worldId = worldId;
+      this.minCx = minCx;
+      this.minCz = minCz;
+      this.maxCx = maxCx;
+      this.maxCz = maxCz;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package net.nando256.whiteboard;
+
+/* =========================================================
+ * 折り返し位置の計算
+ *
+ *  - トークンごとに1回だけ送り幅の累積和を作り、幅は引き算で求める
+ *  - 折り返しは空白の後ろ、または CJK 文字の前後（行頭禁則あり）
+ * ========================================================= */
+final class LineWrapper {
+
+  // 行頭に来てはいけない文字（簡易禁則）
+  private static final String NO_BREAK_BEFORE = "、。，．・：；？！ー）」』】〕〉》ゝゞヽヾ々ぁぃぅぇぉっゃゅょァィゥェォッャュョ,.:;?!)]}";
+
+  private LineWrapper() {}
+
+  // prefix[i] = text[0, i) の送り幅（長さ text.length() + 1）。送り幅はキャッシュから引く
+  static float[] prefixAdvances(FontCache.Metrics metrics, String text) {
+    int len = text.length();
+    float[] prefix = new float[len + 1];
+    for (int i = 0; i < len; i++) {
+      char ch = text.charAt(i);
+      float advance = 0f;
+      if (!Character.isLowSurrogate(ch)) advance = metrics.advance(text.codePointAt(i));
+      prefix[i + 1] = prefix[i] + advance;
+    }
+    return prefix;
+  }
+
+  static int width(float[] prefix, int start, int end) {
+    return (int) Math.ceil(prefix[end] - prefix[start]);
+  }
+
+  // start から maxWidth に収まる範囲の終端（折り返し位置）を返す。1文字も入らなければ start
+  static int findWrapPoint(String text, float[] prefix, int start, int maxWidth) {
+    int len = text.length();
+    int best = start;
+    int lastBreak = -1;
+    for (int i = start; i < len; i++) {
+      if (i > start && canBreakBefore(text, i)) lastBreak = i;
+      if (width(prefix, start, i + 1) <= maxWidth) {
+        // サロゲートペアの途中では切らない
+        if (i + 1 >= len || !Character.isLowSurrogate(text.charAt(i + 1))) best = i + 1;
+        if (text.charAt(i) == ' ') lastBreak = i + 1; // 収まった空白は行末に残す
+      } else {
+        // 収まらない空白はその手前で切る（空白は次の行の先頭で読み飛ばされる）
+        if (text.charAt(i) == ' ') return best;
+        if (lastBreak > start) return lastBreak;
+        return best;
+      }
+    }
+    return len;
+  }
+
+  static boolean canBreakBefore(String text, int i) {
+    char ch = text.charAt(i);
+    char prev = text.charAt(i - 1);
+    if (Character.isLowSurrogate(ch)) return false;
+    if (prev == ' ') return true;
+    if (NO_BREAK_BEFORE.indexOf(ch) >= 0) return false;
+    return isCjk(text.codePointAt(i)) || isCjk(text.codePointBefore(i));
+  }
+
+  private static boolean isCjk(int cp) {
+    if (cp >= 0x3000 && cp <= 0x303F) return true; // CJK 記号・句読点
+    if (cp >= 0xFF00 && cp <= 0xFFEF) return true; // 全角形
+    Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+    return script == Character.UnicodeScript.HAN
+        || script == Character.UnicodeScript.HIRAGANA
+        || script == Character.UnicodeScript.KATAKANA
+        || script == Character.UnicodeScript.HANGUL;
+  }
+}
@@ -0,0 +1,165 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.bukkit.map.MapPalette;
+
+/* =========================================================
+ * ARGB -> マップパレット番号の高速変換
+ *
+ *  - RGB555 (32K) の参照テーブルで MapPalette.matchColor を置き換える
+ *  - 背景色や文字色など「確定した色」は matchColor の結果をそのまま使う
+ * ========================================================= */
+final class MapColors {
+
+  static final byte TRANSPARENT = 0;
+
+  private static final int TABLE_SIZE = 1 << 15;
+  // RGB -> 番号。衝突したら上書きするだけの固定長キャッシュ（1 要素 = 有効ビット | RGB | 番号）
+  private static final int EXACT_SIZE = 1024;
+  private static final long EXACT_VALID = 1L << 32;
+  private static final AtomicLongArray EXACT = new AtomicLongArray(EXACT_SIZE);
+  // solid の照合結果（足りなくなったら大きくする）
+  private static final ThreadLocal<byte[]> SOLID_BYTES = ThreadLocal.withInitial(() -> new byte[16]);
+  private static volatile byte[] table;
+  private static volatile int[] palette; // パレット番号 -> ARGB（画像のディザリング用）
+
+  private MapColors() {}
+
+  // 最初の再描画より前にテーブルを作っておく（どのスレッドからでも可）
+  static void warmUp() {
+    table();
+    palette();
+  }
+
+  // 不透明色を matchColor で正確に照合（結果はメモ化）
+  @SuppressWarnings("deprecation")
+  static byte exact(int argb) {
+    if ((argb >>> 24) < 0x80) return TRANSPARENT;
+    int rgb = argb & 0xFFFFFF;
+    int slot = (rgb * 0x9E3779B9 >>> 22) & (EXACT_SIZE - 1);
+    long cached = EXACT.get(slot);
+    if ((cached & EXACT_VALID) != 0 && (int) (cached >>> 8) == rgb) return (byte) cached;
+    byte matched = MapPalette.matchColor((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+    EXACT.set(slot, EXACT_VALID | ((long) rgb << 8) | (matched & 0xFF));
+    return matched;
+  }
+
+  // RGB555 テーブル経由の近似照合（アンチエイリアスの縁など）
+  static byte lookup(int argb) {
+    if ((argb >>> 24) < 0x80) return TRANSPARENT;
+    return table()[index(argb)];
+  }
+
+  // パレット番号の実際の色（範囲外・透明は 0）
+  static int argbOf(byte index) {
+    return palette()[index & 0xFF];
+  }
+
+  // 128x128 の ARGB をパレット番号へ変換する。
+  // solid に渡した色（背景・文字色）は正確に照合し、それ以外はテーブルを引く。
+  static void quantize(int[] argb, byte[] out, int[] solid) {
+    quantize(argb, out, solid, 0, 0, TileRasterizer.SIZE, TileRasterizer.SIZE);
+  }
+
+  // [x0, x1) x [y0, y1) の範囲だけを変換する（範囲外の out はそのまま）
+  static void quantize(int[] argb, byte[] out, int[] solid, int x0, int y0, int x1, int y1) {
+    quantize(argb, out, solid, solid.length, null, x0, y0, x1, y1);
+  }
+
+  // image（下地の画像のパレット番号）の色のまま残っている画素は、その番号をそのまま使う。
+  // solid は先頭 solidCount 個だけを見る（呼び出し側の使い回しバッファを受け取るため）
+  static void quantize(
+      int[] argb,
+      byte[] out,
+      int[] solid,
+      int solidCount,
+      byte[] image,
+      int x0,
+      int y0,
+      int x1,
+      int y1) {
+    byte[] lut = table();
+    int[] colors = image != null ? palette() : null;
+    byte[] solidBytes = SOLID_BYTES.get();
+    if (solidBytes.length < solidCount) {
+      solidBytes = new byte[Math.max(solidCount, solidBytes.length * 2)];
+      SOLID_BYTES.set(solidBytes);
+    }
+    for (int i = 0; i < solidCount; i++) solidBytes[i] = exact(solid[i]);
+
+    int prev = 0;
+    byte prevByte = TRANSPARENT;
+    boolean hasPrev = false;
+    for (int y = y0; y < y1; y++) {
+      int row = y * TileRasterizer.SIZE;
+      for (int i = row + x0; i < row + x1; i++) {
+        int c = argb[i];
+        if (image != null && c == colors[image[i] & 0xFF]) {
+          out[i] = image[i];
+          continue;
+        }
+        if (hasPrev && c == prev) {
+          out[i] = prevByte;
+          continue;
+        }
+        byte b;
+        if ((c >>> 24) < 0x80) {
+          b = TRANSPARENT;
+        } else {
+          b = lut[index(c)];
+          for (int s = 0; s < solidCount; s++) {
+            if ((solid[s] & 0xFFFFFF) == (c & 0xFFFFFF)) {
+              b = solidBytes[s];
+              break;
+            }
+          }
+        }
+        out[i] = b;
+        prev = c;
+        prevByte = b;
+        hasPrev = true;
+      }
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private static int[] palette() {
+    int[] p = palette;
+    if (p != null) return p;
+    p = new int[256];
+    for (int i = 0; i < 256; i++) {
+      try {
+        Color c = MapPalette.getColor((byte) i);
+        if (c != null && c.getAlpha() >= 0x80) p[i] = c.getRGB();
+      } catch (IndexOutOfBoundsException ex) {
+        break; // パレットの末尾
+      }
+    }
+    palette = p;
+    return p;
+  }
+
+  private static int index(int argb) {
+    return ((argb >> 9) & 0x7C00) | ((argb >> 6) & 0x03E0) | ((argb >> 3) & 0x001F);
+  }
+
+  @SuppressWarnings("deprecation")
+  private static byte[] table() {
+    byte[] t = table;
+    if (t != null) return t;
+    synchronized (MapColors.class) {
+      if (table != null) return table;
+      t = new byte[TABLE_SIZE];
+      for (int i = 0; i < TABLE_SIZE; i++) {
+        // セルの中心色で照合する
+        int r = (((i >> 10) & 0x1F) << 3) | 0x04;
+        int g = (((i >> 5) & 0x1F) << 3) | 0x04;
+        int b = ((i & 0x1F) << 3) | 0x04;
+        t[i] = MapPalette.matchColor(r, g, b);
+      }
+      table = t;
+      return t;
+    }
+  }
+}
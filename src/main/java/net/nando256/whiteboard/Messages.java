@@ -4,21 +4,45 @@ import static java.util.Map.entry;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerLocaleChangeEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.java.JavaPlugin;
 
-final class Messages {
+final class Messages implements Listener {
 
   private static final Map<String, String> DEFAULT_MESSAGES =
       Map.ofEntries(
@@ -39,6 +63,7 @@ final class Messages {
               "board.help.commands",
               "&7Text: /whiteboard text, HTML: /whiteboard htext, BG: /whiteboard bg, Clear: /whiteboard clear"),
           entry("board.autoPlaced", "&7Automatically placed {0} missing frames."),
+          entry("board.autoPlace.progress", "&7Placing missing frames... {0}/{1}"),
           entry("book.extraTokens", "&eIgnored unknown arguments: {0}"),
           entry(
               "book.html.defaultMode",
@@ -65,12 +90,17 @@ final class Messages {
               "&7Use [text]/[plain] or [html]/[htext] to choose book render mode."),
           entry("usage.text.defaults", "&7Book variant defaults to 16, black, 0,0 if omitted."),
           entry("usage.bg", "&e/whiteboard bg <#RRGGBB>"),
+          entry("image.usage", "&e/whiteboard image <file> [fit|fill] &7or &e/whiteboard image clear"),
+          entry(
+              "image.files",
+              "&7Put PNG/JPEG/GIF/BMP files into plugins/Whiteboard/images/ and use the file name."),
           entry("bg.changed", "&aChanged background to {0} ({1} tiles)."),
           entry("board.cleared", "&aCleared all text ({0} tiles). Background is kept."),
           entry("undo.none", "&eNothing to undo."),
           entry("undo.done", "&aUndid the last draw action."),
           entry("redo.none", "&eNothing to redo."),
           entry("redo.done", "&aRedid the previous undo."),
+          entry("history.readFailed", "&cCould not read the board history."),
           entry("cmd.lock.usage", "&e/whiteboard lock <on|off>"),
           entry("lock.state", "&aLock set to {0}."),
           entry("password.set", "&aSet board password."),
@@ -80,6 +110,7 @@ final class Messages {
               "password.required",
               "&cBoard is locked with a password. Include [pass <password>] in the book."),
           entry("password.mismatch", "&cPassword mismatch."),
+          entry("password.checkFailed", "&cCould not check the password. Check the server log."),
           entry(
               "password.locked",
               "&cBoard is locked with a password. Use a book with [pass <password>] to edit."),
@@ -101,6 +132,7 @@ final class Messages {
           entry("help.undo", "&e/whiteboard undo / redo &7…undo/redo last action"),
           entry("help.lock", "&e/whiteboard lock <on|off>"),
           entry("help.font", "&e/whiteboard font <family> [style]"),
+          entry("help.image", "&e/whiteboard image <file> [fit|fill] &7…show an image from plugins/Whiteboard/images"),
           entry("help.tip.quick", "&7Right-click the board while holding a book to apply instantly."),
           entry("help.tip.directives", "&7Add [size 20], [color #ff0], [pos 10 40], [line 18], [clear], etc."),
           entry("error.noBook", "&cHold a book or place one in a nearby lectern."),
@@ -111,57 +143,141 @@ final class Messages {
           entry("error.targetMap", "&cAim at a frame containing a filled map."),
           entry("error.mapView", "&cCould not access MapView."),
           entry("book.noneRendered", "&eNothing could be rendered from the book."),
+          entry(
+              "book.fontChanged",
+              "&eThe board font kept changing while the text was laid out; nothing was added."),
+          entry(
+              "book.boardChanged",
+              "&eThe board kept changing while the text was drawn; nothing was added. Try again."),
+          entry("book.failed", "&cCould not lay out the text. Check the server log."),
           entry("book.applied", "&aApplied book content to the board. (/whiteboard undo to revert)"),
           entry("lectern.placed", "&7Placed the book onto a nearby lectern."),
-          entry("lectern.notFound", "&eNo empty lectern nearby."));
+          entry("lectern.notFound", "&eNo empty lectern nearby."),
+          entry("admin.denied", "&cYou must be OP or have whiteboard.admin to use this."),
+          entry(
+              "cache.fonts",
+              "&7Font cache: {0} fonts, hits {1} / misses {2}; glyph advances: hits {3} / misses {4}"),
+          entry("cache.glyphs", "&7Rasterizer: {0}; glyph atlas: hits {1} / misses {2}"),
+          entry("stats.global.header", "&eWhiteboard stats ({0} boards)"),
+          entry("stats.board.header", "&eBoard {0} ({1}x{2})"),
+          entry("stats.board.notFound", "&cNo single board matches \"{0}\"."),
+          entry(
+              "stats.render",
+              "&7Renders: {0} ({1} redraws); mean {2} µs, p99 {3} µs, max {4} µs"),
+          entry(
+              "stats.repaint",
+              "&7Scheduled repaints: {0}; mean {1} µs, p99 {2} µs, max {3} µs"),
+          entry("stats.layout", "&7Layouts: {0}; mean {1} µs, p99 {2} µs"),
+          entry("stats.fanOut", "&7Lines placed: {0} -> {1} tile entries ({2} tiles per line)"),
+          entry("stats.memory", "&7History: undo {0} / redo {1} ({2} on disk); held: {3} KiB"),
+          entry("stats.queue", "&7Tiles waiting to redraw: {0} ({1} with no player nearby)"),
+          entry(
+              "stats.tiles",
+              "&7Tile pixels: {0} tiles, {1} / {2} KiB; {3} evicted, {4} rebuilt ({5}/min)"),
+          entry("stats.top.header", "&eMost expensive boards (total render time):"),
+          entry("stats.top.entry", "&7{0}. &f{1}&7: {2} ms, {3} redraws, {4} KiB"),
+          entry("image.notFound", "&cNo image named \"{0}\" in plugins/Whiteboard/images/."),
+          entry("image.loading", "&7Loading {0}..."),
+          entry("image.applied", "&aPlaced {0} on the board ({1}x{2} tiles)."),
+          entry("image.failed", "&cCould not read {0}. Check the server log."),
+          entry("image.cleared", "&aRemoved the board image."));
+
+  private static final long RELOAD_DELAY_MS = 500;
+  // 書き出した言語ファイルの1行目（同梱の内容が変わったら未編集のファイルだけ書き直す）
+  private static final byte[] STAMP = "# bundled-sha256: ".getBytes(StandardCharsets.UTF_8);
+
+  private static final Bundle DEFAULTS = new Bundle(DEFAULT_MESSAGES);
 
   private final JavaPlugin plugin;
-  private final Map<String, Map<String, String>> cache = new HashMap<>();
-  private final java.util.Set<String> announcedBundles = new java.util.HashSet<>();
+  // 言語コード -> 読み込んだ文面（送信は非同期スレッドからも来るので並行マップ）
+  private final Map<String, Bundle> cache = new ConcurrentHashMap<>();
+  private final java.util.Set<String> announcedBundles = ConcurrentHashMap.newKeySet();
   private final java.util.Set<String> announcedLocales = new java.util.HashSet<>();
-  private final Map<java.util.UUID, String> playerLocales = new HashMap<>();
+  // プレイヤー -> 言語設定から選んだ文面（言語変更・退出で捨てる）
+  private final Map<UUID, Bundle> playerBundles = new ConcurrentHashMap<>();
+  private volatile Bundle consoleBundle; // コンソール・コマンドブロック用
   private final java.util.Set<String> debugMessages = new java.util.HashSet<>();
-  private String defaultLanguage = "auto";
+  private volatile String defaultLanguage = "auto";
+  // 言語ファイルの読み書きはこのスレッドだけで行う（メインスレッドではディスクに触れない）
+  private final ScheduledExecutorService io =
+      Executors.newSingleThreadScheduledExecutor(
+          r -> {
+            Thread t = new Thread(r, "Whiteboard-Lang");
+            t.setDaemon(true);
+            return t;
+          });
+  private final java.util.Set<String> loading = ConcurrentHashMap.newKeySet();
+  private final java.util.Set<String> reloadQueued = ConcurrentHashMap.newKeySet();
+  private volatile WatchService watcher;
 
   Messages(JavaPlugin plugin) {
     this.plugin = plugin;
   }
 
+  // 読み込みは裏で行う。終わるまでは読み込み済みの言語か同梱の英語で返す
   void load(String languageCode) {
     defaultLanguage = normalize(languageCode);
     cache.clear();
-    ensureResource("en_us");
-    ensureResource("ja_jp");
+    invalidateResolved();
+    requestLoad("en_us");
+    requestLoad("ja_jp");
     if (!"auto".equals(defaultLanguage)) {
-      ensureResource(defaultLanguage);
+      requestLoad(defaultLanguage);
+    }
+    io.execute(this::startWatching);
+  }
+
+  void shutdown() {
+    io.shutdownNow();
+    WatchService w = watcher;
+    watcher = null;
+    if (w != null) {
+      try {
+        w.close();
+      } catch (IOException ignored) {
+      }
     }
   }
 
   void send(CommandSender sender, String key, Object... args) {
-    Map<String, String> bundle = resolveBundle(sender);
-    String message = ChatColor.translateAlternateColorCodes('&', format(bundle, key, args));
-    sender.sendMessage(message);
+    sender.sendMessage(resolveBundle(sender).format(key, args));
   }
 
   String format(String key, Object... args) {
-    Map<String, String> bundle =
-        getBundle("auto".equals(defaultLanguage) ? "en_us" : defaultLanguage);
-    return ChatColor.translateAlternateColorCodes('&', format(bundle, key, args));
+    String lang = "auto".equals(defaultLanguage) ? "en_us" : defaultLanguage;
+    Bundle bundle = getBundle(lang);
+    if (bundle == null) bundle = getBundle("en_us");
+    return (bundle != null ? bundle : DEFAULTS).format(key, args);
+  }
+
+  // 言語変更の通知はクライアント設定の反映前に来るので、通知の言語で選び直す
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onLocaleChange(PlayerLocaleChangeEvent e) {
+    playerBundles.put(e.getPlayer().getUniqueId(), resolveBundle(e.getLocale()));
   }
 
-  private String format(Map<String, String> bundle, String key, Object... args) {
-    String pattern = bundle.getOrDefault(key, DEFAULT_MESSAGES.getOrDefault(key, key));
-    if (pattern == null) pattern = key;
-    return new MessageFormat(pattern, Locale.ROOT).format(args);
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onQuit(PlayerQuitEvent e) {
+    playerBundles.remove(e.getPlayer().getUniqueId());
   }
 
-  private Map<String, String> resolveBundle(CommandSender sender) {
+  private Bundle resolveBundle(CommandSender sender) {
+    if (sender instanceof Player player) {
+      return playerBundles.computeIfAbsent(
+          player.getUniqueId(), id -> resolveBundle(player.getLocale()));
+    }
+    Bundle bundle = consoleBundle;
+    if (bundle == null) consoleBundle = bundle = resolveBundle((String) null);
+    return bundle;
+  }
+
+  private Bundle resolveBundle(String locale) {
     List<String> candidates = new ArrayList<>();
     String lang = defaultLanguage;
-    if ("auto".equals(lang) && sender instanceof Player player) {
-      String locale = normalize(player.getLocale());
-      if (!"auto".equals(locale)) {
-        lang = locale;
+    if ("auto".equals(lang) && locale != null) {
+      String normalized = normalize(locale);
+      if (!"auto".equals(normalized)) {
+        lang = normalized;
       } else {
         lang = "en_us";
       }
@@ -179,19 +295,111 @@ final class Messages {
 
     candidates.add("en_us");
 
+    // 未読み込みの候補は最初の1つだけ裏で読み、その間は読み込み済みの候補で返す
+    boolean requested = false;
     for (String candidate : candidates) {
-      Map<String, String> bundle = getBundle(candidate);
+      Bundle bundle = getBundle(candidate);
       if (bundle != null) {
         return bundle;
       }
+      if (!requested) {
+        requestLoad(candidate);
+        requested = true;
+      }
+    }
+    return DEFAULTS;
+  }
+
+  // 読み込み済みでなければ null（ここではディスクに触れない）
+  private Bundle getBundle(String languageCode) {
+    if (languageCode == null || languageCode.isBlank()) return DEFAULTS;
+    if (languageCode.equals("auto")) return DEFAULTS;
+    return cache.get(languageCode);
+  }
+
+  private void requestLoad(String languageCode) {
+    if (cache.containsKey(languageCode) || !loading.add(languageCode)) return;
+    try {
+      io.execute(
+          () -> {
+            try {
+              cache.put(languageCode, new Bundle(loadBundleSafely(languageCode)));
+              invalidateResolved();
+            } finally {
+              loading.remove(languageCode);
+            }
+          });
+    } catch (RejectedExecutionException ex) {
+      loading.remove(languageCode); // 停止後
+    }
+  }
+
+  // 言語の中身が変わったら、プレイヤーごとの選択をやり直させる
+  private void invalidateResolved() {
+    playerBundles.clear();
+    consoleBundle = null;
+  }
+
+  /* ============ 言語フォルダの監視（ファイルを直したらすぐ反映） ============ */
+
+  private void startWatching() {
+    if (watcher != null) return;
+    Path dir;
+    WatchService service;
+    try {
+      dir = langDir().toPath();
+      service = dir.getFileSystem().newWatchService();
+      dir.register(
+          service,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (IOException | UnsupportedOperationException ex) {
+      plugin.getLogger().log(Level.WARNING, "Language files will not be reloaded automatically", ex);
+      return;
+    }
+    watcher = service;
+    Thread t = new Thread(() -> watchLoop(service), "Whiteboard-LangWatch");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void watchLoop(WatchService service) {
+    try {
+      while (true) {
+        WatchKey key = service.take();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            for (String code : cache.keySet()) scheduleReload(code);
+            continue;
+          }
+          String name = String.valueOf(event.context());
+          if (!name.endsWith(".yml")) continue;
+          scheduleReload(normalize(name.substring(0, name.length() - 4)));
+        }
+        if (!key.reset()) return;
+      }
+    } catch (InterruptedException | ClosedWatchServiceException ex) {
+      // shutdown
     }
-    return DEFAULT_MESSAGES;
   }
 
-  private Map<String, String> getBundle(String languageCode) {
-    if (languageCode == null || languageCode.isBlank()) return DEFAULT_MESSAGES;
-    if (languageCode.equals("auto")) return DEFAULT_MESSAGES;
-    return cache.computeIfAbsent(languageCode, this::loadBundleSafely);
+  // エディタの保存は何回かに分かれて届くので、少し待ってからまとめて読み直す
+  private void scheduleReload(String languageCode) {
+    if (!cache.containsKey(languageCode) || !reloadQueued.add(languageCode)) return;
+    try {
+      io.schedule(
+          () -> {
+            reloadQueued.remove(languageCode);
+            cache.put(languageCode, new Bundle(loadBundleSafely(languageCode)));
+            invalidateResolved();
+            plugin.getLogger().info("[Whiteboard] reloaded messages for " + languageCode);
+          },
+          RELOAD_DELAY_MS,
+          TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ex) {
+      reloadQueued.remove(languageCode);
+    }
   }
 
   private Map<String, String> loadBundleSafely(String languageCode) {
@@ -214,7 +422,8 @@ final class Messages {
   private Map<String, String> loadBundle(String languageCode) throws IOException {
     Map<String, String> merged = new HashMap<>(DEFAULT_MESSAGES);
 
-    YamlConfiguration resourceYaml = loadFromResource(languageCode);
+    byte[] resource = readResource(languageCode);
+    YamlConfiguration resourceYaml = resource != null ? parse(resource) : null;
     if (resourceYaml == null && !"en_us".equals(languageCode)) {
       plugin
           .getLogger()
@@ -225,8 +434,8 @@ final class Messages {
     if (resourceYaml != null) mergeInto(merged, resourceYaml);
 
     File file = dataFile(languageCode);
-    if (resourceYaml != null) {
-      saveDefaults(file, resourceYaml, languageCode);
+    if (resource != null) {
+      extractDefaults(file, resource);
     }
     if (file.exists()) {
       mergeInto(merged, YamlConfiguration.loadConfiguration(file));
@@ -245,35 +454,30 @@ final class Messages {
   }
 
   private File dataFile(String languageCode) throws IOException {
+    return new File(langDir(), languageCode + ".yml");
+  }
+
+  private File langDir() throws IOException {
     File langDir = new File(plugin.getDataFolder(), "lang");
     if (!langDir.exists() && !langDir.mkdirs()) {
       throw new IOException("Could not create lang directory " + langDir.getAbsolutePath());
     }
-    return new File(langDir, languageCode + ".yml");
+    return langDir;
   }
 
-  private YamlConfiguration loadFromResource(String languageCode) throws IOException {
+  private byte[] readResource(String languageCode) throws IOException {
     String resourcePath = "lang/" + languageCode + ".yml";
     try (java.io.InputStream stream = plugin.getResource(resourcePath)) {
       if (stream == null) return null;
-      java.io.InputStreamReader reader =
-          new java.io.InputStreamReader(stream, java.nio.charset.StandardCharsets.UTF_8);
-      return YamlConfiguration.loadConfiguration(reader);
+      return stream.readAllBytes();
     }
   }
 
-  private void ensureResource(String languageCode) {
-    if (languageCode == null || languageCode.isBlank() || languageCode.equals("auto")) return;
-    try {
-      loadBundle(languageCode);
-    } catch (IOException ex) {
-      plugin
-          .getLogger()
-          .log(
-              Level.WARNING,
-              "Failed to prepare language file " + languageCode + ".yml",
-              ex);
-    }
+  private static YamlConfiguration parse(byte[] yaml) {
+    java.io.Reader reader =
+        new java.io.InputStreamReader(
+            new java.io.ByteArrayInputStream(yaml), java.nio.charset.StandardCharsets.UTF_8);
+    return YamlConfiguration.loadConfiguration(reader);
   }
 
   private String normalize(String code) {
@@ -310,9 +514,112 @@ final class Messages {
     }
   }
 
-  private void saveDefaults(File file, YamlConfiguration yaml, String languageCode)
-      throws IOException {
-    if (!yaml.contains("language")) yaml.set("language", languageCode);
-    yaml.save(file);
+  // 同梱の言語ファイルを書き出す（1行目に書き出した内容のハッシュを印として残す）
+  //  - 無いとき、または書き出したまま（印と中身が一致）で同梱の内容が変わったときに書き直す
+  //  - 印の無いファイルは旧版が読み込みのたびに上書きしていたものなので、.bak に退避して書き直す
+  //  - 編集済みのファイルは書き換えない。足りないキーは同梱ファイルの内容で補う
+  private void extractDefaults(File file, byte[] resource) throws IOException {
+    String bundled = sha256(resource, 0, resource.length);
+    Path target = file.toPath();
+    if (file.exists()) {
+      byte[] current = Files.readAllBytes(target);
+      int body = bodyStart(current);
+      if (body < 0) {
+        Path backup = target.resolveSibling(file.getName() + ".bak");
+        Files.copy(target, backup, StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        String stamp =
+            new String(current, STAMP.length, body - STAMP.length, StandardCharsets.UTF_8).trim();
+        if (!stamp.equals(sha256(current, body, current.length - body))) return; // 編集済み
+        if (stamp.equals(bundled)) return; // 最新
+      }
+      plugin.getLogger().info("[Whiteboard] updating " + file.getName() + " to the bundled text");
+    }
+    byte[] stamp = (bundled + "\n").getBytes(StandardCharsets.UTF_8);
+    byte[] header = Arrays.copyOf(STAMP, STAMP.length + stamp.length);
+    System.arraycopy(stamp, 0, header, STAMP.length, stamp.length);
+    byte[] out = Arrays.copyOf(header, header.length + resource.length);
+    System.arraycopy(resource, 0, out, header.length, resource.length);
+    Path tmp = target.resolveSibling(file.getName() + ".tmp");
+    Files.write(tmp, out);
+    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // 印の行の次の位置。印が無ければ -1
+  private static int bodyStart(byte[] file) {
+    if (file.length < STAMP.length) return -1;
+    for (int i = 0; i < STAMP.length; i++) {
+      if (file[i] != STAMP[i]) return -1;
+    }
+    for (int i = STAMP.length; i < file.length; i++) {
+      if (file[i] == '\n') return i + 1;
+    }
+    return -1;
+  }
+
+  private static String sha256(byte[] data, int offset, int length) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(data, offset, length);
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /* =========================================================
+   * 1言語分の文面
+   *
+   *  - キーごとに初めて使う時に一度だけ組み立て、以後は使い回す
+   *  - 色コード（&）は組み立て時に変換済み。引数の中の & は変換しない
+   * ========================================================= */
+  private static final class Bundle {
+    private final Map<String, String> patterns;
+    private final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    Bundle(Map<String, String> patterns) {
+      this.patterns = patterns;
+    }
+
+    String format(String key, Object... args) {
+      return templates.computeIfAbsent(key, this::compile).format(args);
+    }
+
+    private Template compile(String key) {
+      String pattern = patterns.get(key);
+      if (pattern == null) pattern = DEFAULT_MESSAGES.getOrDefault(key, key);
+      return Template.compile(pattern);
+    }
+  }
+
+  private static final class Template {
+    private final String constant; // 引数の無い文は整形済みの文字列をそのまま返す
+    private final MessageFormat format; // スレッド安全ではないので使う時にロックする
+
+    private Template(String constant, MessageFormat format) {
+      this.constant = constant;
+      this.format = format;
+    }
+
+    static Template compile(String pattern) {
+      String colored = ChatColor.translateAlternateColorCodes('&', pattern);
+      MessageFormat format;
+      try {
+        format = new MessageFormat(colored, Locale.ROOT);
+      } catch (IllegalArgumentException ex) {
+        return new Template(colored, null); // 壊れた書式はそのまま表示する
+      }
+      if (format.getFormats().length == 0) {
+        return new Template(format.format(new Object[0]), null);
+      }
+      return new Template(null, format);
+    }
+
+    String format(Object[] args) {
+      if (format == null) return constant;
+      synchronized (format) {
+        return format.format(args);
+      }
+    }
   }
 }
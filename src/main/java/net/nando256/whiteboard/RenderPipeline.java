@@ -0,0 +1,127 @@
+package net.nando256.whiteboard;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/* =========================================================
+ * 本のレイアウト・ラスタライズをワーカーで実行し、
+ * 結果だけをメインスレッドに戻すためのパイプライン
+ * ========================================================= */
+final class RenderPipeline {
+
+  // パスワードの照合・ハッシュ待ちの上限（超えた分は失敗として返す）
+  private static final int PASSWORD_QUEUE = 16;
+
+  private final JavaPlugin plugin;
+  private final ExecutorService workers;
+  // 画像のディザリングなど、1つの仕事を分割して並列に処理する用
+  private final ForkJoinPool forkJoin;
+  // PBKDF2 は重いので専用の1スレッドで行い、レイアウト用のワーカーを塞がない
+  private final ExecutorService passwords;
+
+  RenderPipeline(JavaPlugin plugin, int threads) {
+    this.plugin = plugin;
+    int count = threads > 0 ? threads : defaultThreads();
+    AtomicInteger seq = new AtomicInteger();
+    ThreadFactory factory =
+        r -> {
+          Thread t = new Thread(r, "Whiteboard-Layout-" + seq.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        };
+    this.workers = Executors.newFixedThreadPool(count, factory);
+    AtomicInteger forkSeq = new AtomicInteger();
+    this.forkJoin =
+        new ForkJoinPool(
+            count,
+            pool -> {
+              ForkJoinWorkerThread t =
+                  ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+              t.setName("Whiteboard-Dither-" + forkSeq.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            },
+            null,
+            false);
+    this.passwords =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            0L,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(PASSWORD_QUEUE),
+            r -> {
+              Thread t = new Thread(r, "Whiteboard-Password");
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  private static int defaultThreads() {
+    return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  // work をワーカーで実行し、onMain をメインスレッドで呼ぶ。
+  // 失敗したらログに残し、代わりに onFailed をメインスレッドで呼ぶ（待っている側へ必ず返事をする）
+  <T> void submit(Callable<T> work, Consumer<T> onMain, Runnable onFailed) {
+    submit(workers, work, onMain, onFailed);
+  }
+
+  // パスワードの照合・ハッシュ用（submit と同じく、失敗や待ちの溢れは onFailed で返す）
+  <T> void submitPassword(Callable<T> work, Consumer<T> onMain, Runnable onFailed) {
+    try {
+      submit(passwords, work, onMain, onFailed);
+    } catch (RejectedExecutionException ex) {
+      plugin.getLogger().warning("Too many password checks are waiting; rejected one");
+      onFailed.run();
+    }
+  }
+
+  private <T> void submit(
+      ExecutorService pool, Callable<T> work, Consumer<T> onMain, Runnable onFailed) {
+    pool.execute(
+        () -> {
+          T result;
+          try {
+            result = work.call();
+          } catch (Throwable t) {
+            plugin.getLogger().log(Level.WARNING, "Whiteboard layout job failed", t);
+            runOnMain(onFailed);
+            return;
+          }
+          runOnMain(() -> onMain.accept(result));
+        });
+  }
+
+  private void runOnMain(Runnable task) {
+    if (!plugin.isEnabled()) return;
+    plugin.getServer().getScheduler().runTask(plugin, task);
+  }
+
+  ForkJoinPool forkJoin() {
+    return forkJoin;
+  }
+
+  void shutdown() {
+    forkJoin.shutdownNow();
+    passwords.shutdownNow();
+    workers.shutdownNow();
+    try {
+      workers.awaitTermination(2, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package net.nando256.whiteboard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+/* =========================================================
+ * タイルの塗り直しを1ティックあたりの時間予算に収める
+ *
+ *  - damage の溜まったタイルを覚えておき、毎ティック「近くで見えている」順に塗る
+ *  - 予算を使い切ったら残りは次のティックへ持ち越す（1ティック1枚は必ず進める）
+ *  - 近くに誰もいないタイルは、誰かが近づくまで塗らずに待たせる
+ *    （遠くから・手に持った地図で表示された場合は render から知らされ、近くのものの後に塗る）
+ *  - render は塗り終わった pixels を送るだけになる
+ *  - メインスレッド専用
+ * ========================================================= */
+final class RenderScheduler {
+
+  // 額縁の裏・真横にいるプレイヤーは、回り込むまで見えないので遠いものとして扱う
+  private static final double HIDDEN_PENALTY = 32.0;
+
+  private final long budgetNanos;
+  private final double nearDistance;
+  private final WhiteboardStats stats; // null 可
+  private final Set<WhiteboardRenderer> dirty = new LinkedHashSet<>();
+  // dirty のうち、近くに誰もいないのに render された（＝誰かが見ている）もの
+  private final Set<WhiteboardRenderer> shown = new HashSet<>();
+
+  RenderScheduler(long budgetNanos, double nearDistance, WhiteboardStats stats) {
+    this.budgetNanos = budgetNanos;
+    this.nearDistance = nearDistance;
+    this.stats = stats;
+  }
+
+  void markDirty(WhiteboardRenderer renderer) {
+    dirty.add(renderer);
+  }
+
+  void forget(WhiteboardRenderer renderer) {
+    dirty.remove(renderer);
+    shown.remove(renderer);
+  }
+
+  // render から呼ぶ：表示されているので、近くに誰もいなくても待たせない
+  void markVisible(WhiteboardRenderer renderer) {
+    if (dirty.contains(renderer)) shown.add(renderer);
+  }
+
+  // 毎ティック呼ぶ
+  void tick(Collection<? extends Player> players) {
+    if (dirty.isEmpty()) {
+      if (stats != null) stats.sampleQueue(0, 0);
+      return;
+    }
+    Viewer[] viewers = new Viewer[players.size()];
+    int n = 0;
+    for (Player p : players) viewers[n++] = new Viewer(p.getEyeLocation());
+    if (n < viewers.length) viewers = Arrays.copyOf(viewers, n);
+
+    List<Candidate> ready = new ArrayList<>();
+    int deferred = 0;
+    for (WhiteboardRenderer r : dirty) {
+      double cost = cost(r, viewers);
+      // 表示されているものは、近くのものをすべて塗った後に回す
+      if (Double.isInfinite(cost) && shown.contains(r)) cost = Double.MAX_VALUE;
+      if (Double.isInfinite(cost)) {
+        deferred++;
+      } else {
+        ready.add(new Candidate(r, cost));
+      }
+    }
+    ready.sort((a, b) -> Double.compare(a.cost, b.cost));
+
+    long start = System.nanoTime();
+    int drawn = 0;
+    for (Candidate c : ready) {
+      if (drawn > 0 && System.nanoTime() - start >= budgetNanos) break;
+      dirty.remove(c.renderer);
+      shown.remove(c.renderer);
+      c.renderer.redraw();
+      drawn++;
+    }
+    if (stats != null) stats.sampleQueue(dirty.size(), deferred);
+  }
+
+  // 小さいほど先に塗る。近くに誰もいなければ +∞
+  private double cost(WhiteboardRenderer r, Viewer[] viewers) {
+    Location center = r.center();
+    if (center == null) return 0; // 位置が分からないものは先に済ませる
+    World world = center.getWorld();
+    BlockFace facing = r.facing();
+    double best = Double.POSITIVE_INFINITY;
+    for (Viewer v : viewers) {
+      if (v.world != world) continue;
+      double dx = center.getX() - v.x;
+      double dy = center.getY() - v.y;
+      double dz = center.getZ() - v.z;
+      double dist = Math.sqrt(dx * dx + dy * dy + dz * dz);
+      if (dist > nearDistance) continue;
+      double cost = dist;
+      // 額縁の表側（向きの方向）にいなければ見えていない
+      if (facing != null
+          && dx * facing.getModX() + dy * facing.getModY() + dz * facing.getModZ() >= 0) {
+        cost += HIDDEN_PENALTY;
+      }
+      // 視線の正面なら 1 倍、真後ろなら 3 倍
+      if (dist > 1e-6) {
+        double cos = (dx * v.lookX + dy * v.lookY + dz * v.lookZ) / dist;
+        cost *= 2.0 - cos;
+      }
+      if (cost < best) best = cost;
+    }
+    return best;
+  }
+
+  private static final class Viewer {
+    final World world;
+    final double x, y, z;
+    final double lookX, lookY, lookZ;
+
+    Viewer(Location eye) {
+      this.world = eye.getWorld();
+      this.x = eye.getX();
+      this.y = eye.getY();
+      this.z = eye.getZ();
+      Vector look = eye.getDirection();
+      this.lookX = look.getX();
+      this.lookY = look.getY();
+      this.lookZ = look.getZ();
+    }
+  }
+
+  private static final class Candidate {
+    final WhiteboardRenderer renderer;
+    final double cost;
+
+    Candidate(WhiteboardRenderer renderer, double cost) {
+      this.renderer = renderer;
+      this.cost = cost;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.util.UUID;
+
+/* =================== テキスト要素 =================== */
+
+final class TextEntry {
+  final String text;
+  final int size;
+  final Color color;
+  final int x, y;
+  final UUID actionId;
+
+  TextEntry(String t, int s, Color c, int x, int y) {
+    this(t, s, c, x, y, null);
+  }
+
+  TextEntry(String t, int s, Color c, int x, int y, UUID actionId) {
+    this.text = t;
+    this.size = s;
+    this.color = c;
+    this.x = x;
+    this.y = y;
+    this.actionId = actionId;
+  }
+}
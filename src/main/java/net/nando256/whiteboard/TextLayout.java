@@ -0,0 +1,87 @@
+package net.nando256.whiteboard;
+
+import java.awt.Font;
+import java.util.List;
+import net.nando256.whiteboard.HtmlParser.HtmlToken;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+
+/* =========================================================
+ * トークン列の行送り・折り返し（ボードの座標系、ピクセル単位）
+ * ========================================================= */
+final class TextLayout {
+
+  private TextLayout() {}
+
+  // トークン列を行送り・折り返しして TextAtom にする（ボードの状態には触れない）
+  static TextAction layout(
+      List<HtmlToken> tokens, Font baseFont, int canvasWidth, int gx, int gy, int baseLineHeight) {
+    TextAction action = new TextAction();
+    int x = gx;
+    int y = gy;
+    int lineHeight = baseLineHeight;
+
+    for (HtmlToken token : tokens) {
+      if (token.lineBreak) {
+        x = 0;
+        y += lineHeight;
+        lineHeight = baseLineHeight;
+        continue;
+      }
+      if (token.text == null || token.text.isEmpty()) continue;
+
+      FontCache.Metrics metrics = FontCache.get(baseFont, token.size);
+      int tokenLineHeight = defaultLineHeight(token.size);
+      if (tokenLineHeight > lineHeight) lineHeight = tokenLineHeight;
+
+      int idx = 0;
+      String text = token.text;
+      float[] prefix = LineWrapper.prefixAdvances(metrics, text);
+      while (idx < text.length()) {
+        while (idx < text.length() && text.charAt(idx) == ' ' && x == 0) idx++;
+        if (idx >= text.length()) break;
+
+        int remaining = canvasWidth - x;
+        if (remaining <= 0) {
+          x = 0;
+          y += lineHeight;
+          lineHeight = Math.max(baseLineHeight, tokenLineHeight);
+          continue;
+        }
+
+        int next = LineWrapper.findWrapPoint(text, prefix, idx, remaining);
+        if (next <= idx) {
+          if (x != 0) {
+            x = 0;
+            y += lineHeight;
+            lineHeight = Math.max(baseLineHeight, tokenLineHeight);
+            continue;
+          }
+          next = Math.min(idx + 1, text.length());
+        }
+
+        String piece = text.substring(idx, next);
+        if (piece.isBlank()) {
+          idx = next;
+          continue;
+        }
+
+        action.atoms.add(new TextAtom(piece, token.size, token.color, x, y));
+
+        x += LineWrapper.width(prefix, idx, next);
+        idx = next;
+
+        if (idx < text.length()) {
+          x = 0;
+          y += lineHeight;
+          lineHeight = Math.max(baseLineHeight, tokenLineHeight);
+        }
+      }
+    }
+    return action;
+  }
+
+  static int defaultLineHeight(int size) {
+    return Math.max(8, (int) Math.round(size * 1.25));
+  }
+}
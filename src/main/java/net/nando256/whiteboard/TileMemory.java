@@ -0,0 +1,142 @@
+package net.nando256.whiteboard;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/* =========================================================
+ * 全ボードのタイルの描画結果（パレット番号 128x128）の合計に上限を設ける
+ *
+ *  - 描画結果を持っているタイルを、最後に render された順（LRU）で覚える
+ *  - 上限を超えたら最も長く表示されていないタイルから描画結果を捨てる
+ *    （文字などの元データは残り、次に表示されたときに描き直す）
+ *  - minIdleTicks 以内に render されたタイルは表示中とみなして捨てない。
+ *    捨てられるものが無ければ上限を超えたままにし、ログに残す
+ *  - 記録はメインスレッドから。数値は JMX から別スレッドでも読める
+ * ========================================================= */
+final class TileMemory {
+
+  static final int TILE_BYTES = TileRasterizer.SIZE * TileRasterizer.SIZE;
+  private static final long MIN_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(5);
+  private static final long OVER_LIMIT_LOG_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  private final long limitBytes; // 0 以下で無制限
+  private final long minIdleTicks;
+  private final Logger logger;
+  // アクセス順なので先頭が最も長く render されていないタイル。
+  // 値は最後に render されたティック（毎フレーム書き換えるので箱を使い回す）
+  private final Map<WhiteboardRenderer, LastRender> resident =
+      new LinkedHashMap<>(64, 0.75f, true);
+  private long tick;
+  private long lastOverLimitLogNanos = System.nanoTime() - OVER_LIMIT_LOG_NANOS;
+  private volatile int tiles;
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder rebuilds = new LongAdder();
+
+  // 描き直しの頻度（sample() の間隔で計る）
+  private long lastSampleNanos = System.nanoTime();
+  private long lastRebuilds;
+  private volatile long rebuildsPerMinute;
+
+  TileMemory(long limitBytes, long minIdleTicks, Logger logger) {
+    this.limitBytes = limitBytes;
+    this.minIdleTicks = Math.max(0, minIdleTicks);
+    this.logger = logger;
+  }
+
+  // 毎ティック呼ぶ（表示中かどうかの判定に使う）
+  void tick() {
+    tick++;
+  }
+
+  // 描画結果を確保した（rebuilt = 捨てた後の描き直し）
+  void allocated(WhiteboardRenderer renderer, boolean rebuilt) {
+    LastRender last = resident.get(renderer);
+    if (last == null) resident.put(renderer, new LastRender(tick));
+    else last.tick = tick;
+    tiles = resident.size();
+    if (rebuilt) rebuilds.increment();
+    if (limitBytes <= 0) return;
+    // 先頭から順に、しばらく render されていないものだけを捨てる。
+    // 先頭が最近 render されていれば、後ろはすべてそれより新しい
+    while ((long) resident.size() * TILE_BYTES > limitBytes) {
+      Iterator<Map.Entry<WhiteboardRenderer, LastRender>> it = resident.entrySet().iterator();
+      Map.Entry<WhiteboardRenderer, LastRender> eldest = it.next();
+      if (eldest.getKey() == renderer || tick - eldest.getValue().tick < minIdleTicks) {
+        overLimit();
+        return;
+      }
+      eldest.getKey().release(); // released() で resident から外れる
+      evictions.increment();
+    }
+  }
+
+  void released(WhiteboardRenderer renderer) {
+    if (resident.remove(renderer) != null) tiles = resident.size();
+  }
+
+  // 表示中のタイルごとに毎フレーム呼ばれる。get で並びを末尾へ移し、ティックは上書きする
+  void touch(WhiteboardRenderer renderer) {
+    LastRender last = resident.get(renderer);
+    if (last != null) last.tick = tick;
+  }
+
+  // 表示中のタイルだけで上限を超えている。捨てずに超過を許し、間隔を空けて知らせる
+  private void overLimit() {
+    long now = System.nanoTime();
+    if (now - lastOverLimitLogNanos < OVER_LIMIT_LOG_NANOS) return;
+    lastOverLimitLogNanos = now;
+    logger.warning(
+        "Tiles on screen need "
+            + bytes() / 1024
+            + " KiB, over render.max-tile-bytes ("
+            + limitBytes / 1024
+            + " KiB); keeping them until they leave the screen");
+  }
+
+  // 統計の採取から呼ぶ（/wb stats の直前にも呼ばれるので、短すぎる間隔は無視する）
+  void sample() {
+    long now = System.nanoTime();
+    long elapsed = now - lastSampleNanos;
+    if (elapsed < MIN_SAMPLE_NANOS) return;
+    long total = rebuilds.sum();
+    rebuildsPerMinute = (total - lastRebuilds) * TimeUnit.MINUTES.toNanos(1) / elapsed;
+    lastSampleNanos = now;
+    lastRebuilds = total;
+  }
+
+  int tiles() {
+    return tiles;
+  }
+
+  long bytes() {
+    return (long) tiles * TILE_BYTES;
+  }
+
+  long limitBytes() {
+    return limitBytes;
+  }
+
+  long evictions() {
+    return evictions.sum();
+  }
+
+  long rebuilds() {
+    return rebuilds.sum();
+  }
+
+  long rebuildsPerMinute() {
+    return rebuildsPerMinute;
+  }
+
+  private static final class LastRender {
+    long tick;
+
+    LastRender(long tick) {
+      this.tick = tick;
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/* =========================================================
+ * 1タイル（128x128）の描画 → パレット番号化
+ *
+ *  - レンダラー（メインスレッド）とレイアウト用ワーカーの両方から使う
+ *  - 状態を持たないので、呼び出し側が作業用画像を用意する
+ *  - 範囲（region）を渡すとその矩形だけを塗り直す
+ * ========================================================= */
+final class TileRasterizer {
+
+  static final int SIZE = 128;
+  static final Rectangle FULL = new Rectangle(0, 0, SIZE, SIZE);
+  private static final Color BORDER_COLOR = new Color(0x404040);
+
+  private static final ThreadLocal<BufferedImage> SCRATCH =
+      ThreadLocal.withInitial(TileRasterizer::newScratch);
+  // 範囲に掛かる文字の添字（足りなくなったら大きくする）
+  private static final ThreadLocal<int[]> VISIBLE = ThreadLocal.withInitial(() -> new int[64]);
+  // 正確に照合する色（背景・枠・文字色。足りなくなったら大きくする）
+  private static final ThreadLocal<int[]> SOLID = ThreadLocal.withInitial(() -> new int[16]);
+
+  // 文字の描画方式（既定はグリフアトラス）
+  enum Mode {
+    ATLAS,
+    JAVA2D
+  }
+
+  private static volatile Mode mode = Mode.ATLAS;
+
+  private TileRasterizer() {}
+
+  static void setMode(Mode value) {
+    mode = value;
+  }
+
+  static Mode mode() {
+    return mode;
+  }
+
+  static BufferedImage newScratch() {
+    return new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+  }
+
+  // 文字列が塗る可能性のある範囲（(x, y) はベースライン始点）
+  static Rectangle textBounds(Font baseFont, String text, int size, int x, int y) {
+    FontCache.Metrics metrics = FontCache.get(baseFont, size);
+    int pad = Math.max(2, size / 4);
+    return new Rectangle(
+        x - pad,
+        y - metrics.ascent - pad,
+        metrics.width(text) + pad * 2,
+        metrics.ascent + metrics.descent + pad * 2);
+  }
+
+  static Rectangle textBounds(Font baseFont, TextEntry te) {
+    return textBounds(baseFont, te.text, te.size, te.x, te.y);
+  }
+
+  // texts の i 件目（文字列を作らずに測る）
+  static Rectangle textBounds(Font baseFont, TileTexts texts, int i) {
+    int size = texts.fontSize(i);
+    FontCache.Metrics metrics = FontCache.get(baseFont, size);
+    int pad = Math.max(2, size / 4);
+    return new Rectangle(
+        texts.x(i) - pad,
+        texts.y(i) - metrics.ascent - pad,
+        metrics.width(texts.chars(), texts.offset(i), texts.length(i)) + pad * 2,
+        metrics.ascent + metrics.descent + pad * 2);
+  }
+
+  // ワーカースレッド用：スレッドごとの作業用画像で描画する
+  static void rasterize(
+      Color background,
+      boolean border,
+      Font baseFont,
+      TileTexts texts,
+      byte[] image,
+      byte[] out) {
+    rasterize(background, border, baseFont, texts, image, out, FULL);
+  }
+
+  // レンダラー用：作業用画像はタイルごとに持たず、スレッドごとのものを使い回す
+  static void rasterize(
+      Color background,
+      boolean border,
+      Font baseFont,
+      TileTexts texts,
+      byte[] image,
+      byte[] out,
+      Rectangle region) {
+    rasterize(SCRATCH.get(), background, border, baseFont, texts, image, out, region);
+  }
+
+  // image は背景の代わりに敷くパレット番号（無ければ null）
+  static void rasterize(
+      BufferedImage scratch,
+      Color background,
+      boolean border,
+      Font baseFont,
+      TileTexts texts,
+      byte[] image,
+      byte[] out,
+      Rectangle region) {
+    Rectangle clip = region.intersection(FULL);
+    if (clip.isEmpty()) return;
+
+    // 範囲に掛かる文字だけを描く（visible は texts の添字。範囲は texts が覚えている）
+    int[] visible = VISIBLE.get();
+    if (visible.length < texts.size()) {
+      visible = new int[Math.max(texts.size(), visible.length * 2)];
+      VISIBLE.set(visible);
+    }
+    int n = 0;
+    boolean full = clip.equals(FULL);
+    for (int i = 0; i < texts.size(); i++) {
+      if (full || texts.intersects(baseFont, i, clip)) visible[n++] = i;
+    }
+
+    int[] argb = ((DataBufferInt) scratch.getRaster().getDataBuffer()).getData();
+    if (mode == Mode.ATLAS) {
+      drawWithAtlas(argb, background, border, baseFont, texts, visible, n, image, clip);
+    } else {
+      drawWithJava2d(scratch, background, border, baseFont, texts, visible, n, image, clip);
+    }
+    int[] solid = SOLID.get();
+    if (solid.length < n + 2) {
+      solid = new int[Math.max(n + 2, solid.length * 2)];
+      SOLID.set(solid);
+    }
+    MapColors.quantize(
+        argb,
+        out,
+        solid,
+        solidColors(solid, background, border, texts, visible, n),
+        image,
+        clip.x,
+        clip.y,
+        clip.x + clip.width,
+        clip.y + clip.height);
+  }
+
+  // Graphics2D を使わず ARGB 配列へ直接塗る
+  private static void drawWithAtlas(
+      int[] argb,
+      Color background,
+      boolean border,
+      Font baseFont,
+      TileTexts texts,
+      int[] visible,
+      int n,
+      byte[] image,
+      Rectangle clip) {
+    int x0 = clip.x;
+    int y0 = clip.y;
+    int x1 = clip.x + clip.width;
+    int y1 = clip.y + clip.height;
+    if (image != null) {
+      paintImage(argb, image, x0, y0, x1, y1);
+    } else {
+      fill(argb, background.getRGB() | 0xFF000000, x0, y0, x1, y1);
+    }
+    if (border) {
+      int rgb = BORDER_COLOR.getRGB();
+      fill(argb, rgb, x0, y0, x1, Math.min(y1, 2));
+      fill(argb, rgb, x0, Math.max(y0, SIZE - 2), x1, y1);
+      fill(argb, rgb, x0, y0, Math.min(x1, 2), y1);
+      fill(argb, rgb, Math.max(x0, SIZE - 2), y0, x1, y1);
+    }
+    char[] chars = texts.chars();
+    for (int k = 0; k < n; k++) {
+      int i = visible[k];
+      GlyphAtlas.drawChars(
+          argb,
+          FontCache.get(baseFont, texts.fontSize(i)),
+          chars,
+          texts.offset(i),
+          texts.length(i),
+          texts.x(i),
+          texts.y(i),
+          texts.argb(i),
+          x0,
+          y0,
+          x1,
+          y1);
+    }
+  }
+
+  // 画像のパレット番号を実際の色で敷く（quantize で同じ番号へ戻る）
+  private static void paintImage(int[] argb, byte[] image, int x0, int y0, int x1, int y1) {
+    for (int y = y0; y < y1; y++) {
+      for (int i = y * SIZE + x0; i < y * SIZE + x1; i++) argb[i] = MapColors.argbOf(image[i]);
+    }
+  }
+
+  private static void fill(int[] argb, int rgb, int x0, int y0, int x1, int y1) {
+    if (x0 >= x1) return;
+    for (int y = y0; y < y1; y++) {
+      Arrays.fill(argb, y * SIZE + x0, y * SIZE + x1, rgb);
+    }
+  }
+
+  private static void drawWithJava2d(
+      BufferedImage scratch,
+      Color background,
+      boolean border,
+      Font baseFont,
+      TileTexts texts,
+      int[] visible,
+      int n,
+      byte[] image,
+      Rectangle clip) {
+    if (image != null) {
+      int[] argb = ((DataBufferInt) scratch.getRaster().getDataBuffer()).getData();
+      paintImage(argb, image, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height);
+    }
+    Graphics2D g = (Graphics2D) scratch.getGraphics();
+    try {
+      g.setClip(clip);
+      if (image == null) {
+        g.setColor(background);
+        g.fillRect(0, 0, SIZE, SIZE);
+      }
+
+      if (border) {
+        g.setColor(BORDER_COLOR);
+        g.fillRect(0, 0, SIZE, 2);
+        g.fillRect(0, SIZE - 2, SIZE, 2);
+        g.fillRect(0, 0, 2, SIZE);
+        g.fillRect(SIZE - 2, 0, 2, SIZE);
+      }
+
+      g.setRenderingHint(
+          RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      // 送り幅は FontCache.FONT_CONTEXT と同じ整数（textBounds と揃える）
+      g.setRenderingHint(
+          RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_OFF);
+      char[] chars = texts.chars();
+      for (int k = 0; k < n; k++) {
+        int i = visible[k];
+        g.setFont(FontCache.derive(baseFont, texts.fontSize(i)));
+        g.setColor(texts.color(i));
+        g.drawChars(chars, texts.offset(i), texts.length(i), texts.x(i), texts.y(i));
+      }
+    } finally {
+      g.dispose();
+    }
+  }
+
+  // 背景と文字色は近似テーブルではなく正確に照合する（colors へ詰めて個数を返す）
+  private static int solidColors(
+      int[] colors, Color background, boolean border, TileTexts texts, int[] visible, int count) {
+    int n = 0;
+    colors[n++] = background.getRGB();
+    if (border) colors[n++] = BORDER_COLOR.getRGB();
+    for (int k = 0; k < count; k++) {
+      int rgb = texts.argb(visible[k]);
+      boolean seen = false;
+      for (int i = 0; i < n; i++) {
+        if (colors[i] == rgb) {
+          seen = true;
+          break;
+        }
+      }
+      if (!seen) colors[n++] = rgb;
+    }
+    return n;
+  }
+}
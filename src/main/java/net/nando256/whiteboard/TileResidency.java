@@ -0,0 +1,96 @@
+package net.nando256.whiteboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+/* =========================================================
+ * ボードのタイルをチャンク単位で索引し、読み込まれている間だけ描画結果を持たせる
+ *
+ *  - チャンクの読み込み解除でタイルの描画結果を捨てる（文字・画像などの元データは残す）
+ *  - チャンクの読み込み時には何もしない。描き直しは次にそのマップが
+ *    render されたとき（= 実際に見られたとき）に行う（WhiteboardRenderer 側）
+ *  - 起動時に読み込まれていないチャンクのボードは、最初から描画結果を持たない
+ *  - メインスレッド専用
+ * ========================================================= */
+final class TileResidency implements Listener {
+
+  // world -> chunkKey -> そのチャンクに額縁があるタイル
+  private final Map<UUID, Map<Long, List<WhiteboardRenderer>>> chunks = new HashMap<>();
+  private final Map<String, List<Placement>> boards = new HashMap<>();
+
+  void track(String groupId, WhiteboardRenderer[][] tiles, Location[][] centers) {
+    untrack(groupId);
+    List<Placement> placements = new ArrayList<>();
+    for (int y = 0; y < tiles.length; y++) {
+      for (int x = 0; x < tiles[y].length; x++) {
+        WhiteboardRenderer r = tiles[y][x];
+        Location c = centers[y][x];
+        if (r == null || c == null || c.getWorld() == null) continue;
+        World world = c.getWorld();
+        int cx = c.getBlockX() >> 4;
+        int cz = c.getBlockZ() >> 4;
+        Placement p = new Placement(world.getUID(), chunkKey(cx, cz), r);
+        chunks
+            .computeIfAbsent(p.worldId, k -> new HashMap<>())
+            .computeIfAbsent(p.chunkKey, k -> new ArrayList<>())
+            .add(r);
+        placements.add(p);
+        if (!world.isChunkLoaded(cx, cz)) r.release();
+      }
+    }
+    boards.put(groupId, placements);
+  }
+
+  void untrack(String groupId) {
+    List<Placement> placements = boards.remove(groupId);
+    if (placements == null) return;
+    for (Placement p : placements) {
+      Map<Long, List<WhiteboardRenderer>> byChunk = chunks.get(p.worldId);
+      if (byChunk == null) continue;
+      List<WhiteboardRenderer> tiles = byChunk.get(p.chunkKey);
+      if (tiles == null) continue;
+      tiles.remove(p.renderer);
+      if (tiles.isEmpty()) byChunk.remove(p.chunkKey);
+      if (byChunk.isEmpty()) chunks.remove(p.worldId);
+    }
+  }
+
+  @EventHandler(priority = EventPriority.MONITOR)
+  public void onChunkUnload(ChunkUnloadEvent e) {
+    List<WhiteboardRenderer> tiles = tilesIn(e.getChunk());
+    if (tiles == null) return;
+    for (WhiteboardRenderer r : tiles) r.release();
+  }
+
+  private List<WhiteboardRenderer> tilesIn(Chunk chunk) {
+    Map<Long, List<WhiteboardRenderer>> byChunk = chunks.get(chunk.getWorld().getUID());
+    if (byChunk == null) return null;
+    return byChunk.get(chunkKey(chunk.getX(), chunk.getZ()));
+  }
+
+  private static long chunkKey(int cx, int cz) {
+    return ((long) cx & 0xFFFFFFFFL) | (((long) cz & 0xFFFFFFFFL) << 32);
+  }
+
+  private static final class Placement {
+    final UUID worldId;
+    final long chunkKey;
+    final WhiteboardRenderer renderer;
+
+    Placement(UUID worldId, long chunkKey, WhiteboardRenderer renderer) {
+      this.worldId = worldId;
+      this.chunkKey = chunkKey;
+      this.renderer = renderer;
+    }
+  }
+}
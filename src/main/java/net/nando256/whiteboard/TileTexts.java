@@ -0,0 +1,269 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* =========================================================
+ * 1タイル分の文字を列ごとの配列で持つ
+ *
+ *  - 1件 = x, y, 大きさ, ARGB, 操作番号, 文字の位置, 範囲（x, y, 幅, 高さ）の int 10
+ *  - 文字はタイルごとの char 配列に詰め、操作（actionId）はタイル内で番号にする
+ *  - 並びは追加順 = 描画順。操作を外すと後ろを詰める
+ *  - 塗る可能性のある範囲は初めて必要になったときに測って覚える（基準フォントが変われば測り直す）
+ *  - スレッド安全ではない（ワーカーへは copy() を渡す）
+ * ========================================================= */
+final class TileTexts {
+
+  private static final int INITIAL = 8;
+  // Color は色ごとに1つだけ作る（上限を超えた分は都度作る）
+  private static final int MAX_COLORS = 4096;
+  private static final Map<Integer, Color> COLORS = new ConcurrentHashMap<>();
+
+  private int count;
+  private int[] xs = new int[INITIAL];
+  private int[] ys = new int[INITIAL];
+  private int[] sizes = new int[INITIAL];
+  private int[] argbs = new int[INITIAL];
+  private int[] actions = new int[INITIAL]; // actionIds の添字
+  private int[] offsets = new int[INITIAL + 1]; // i 件目の文字は chars[offsets[i], offsets[i + 1])
+  // i 件目の範囲（boundsFont で測ったもの。幅が負ならまだ測っていない）
+  private int[] boundsX = new int[INITIAL];
+  private int[] boundsY = new int[INITIAL];
+  private int[] boundsW = new int[INITIAL];
+  private int[] boundsH = new int[INITIAL];
+  private Font boundsFont;
+  private char[] chars = new char[INITIAL * 16];
+  private UUID[] actionIds = new UUID[2];
+  private int actionCount;
+
+  static Color interned(int argb) {
+    Color c = COLORS.get(argb);
+    if (c != null) return c;
+    c = new Color(argb, true);
+    if (COLORS.size() < MAX_COLORS) {
+      Color raced = COLORS.putIfAbsent(argb, c);
+      if (raced != null) return raced;
+    }
+    return c;
+  }
+
+  int size() {
+    return count;
+  }
+
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  int x(int i) {
+    return xs[i];
+  }
+
+  int y(int i) {
+    return ys[i];
+  }
+
+  int fontSize(int i) {
+    return sizes[i];
+  }
+
+  int argb(int i) {
+    return argbs[i];
+  }
+
+  Color color(int i) {
+    return interned(argbs[i]);
+  }
+
+  // 文字は chars() の [offset(i), offset(i) + length(i))
+  char[] chars() {
+    return chars;
+  }
+
+  int offset(int i) {
+    return offsets[i];
+  }
+
+  int length(int i) {
+    return offsets[i + 1] - offsets[i];
+  }
+
+  String text(int i) {
+    return new String(chars, offsets[i], length(i));
+  }
+
+  UUID actionId(int i) {
+    return actionIds[actions[i]];
+  }
+
+  void add(TextEntry te) {
+    add(te.text, te.size, te.color.getRGB(), te.x, te.y, te.actionId);
+  }
+
+  void add(String text, int size, int argb, int x, int y, UUID actionId) {
+    if (count == xs.length) grow();
+    int start = offsets[count];
+    int end = start + text.length();
+    if (end > chars.length) chars = Arrays.copyOf(chars, Math.max(end, chars.length * 2));
+    text.getChars(0, text.length(), chars, start);
+    xs[count] = x;
+    ys[count] = y;
+    sizes[count] = size;
+    argbs[count] = argb;
+    actions[count] = actionIndex(actionId);
+    boundsW[count] = -1;
+    offsets[++count] = end;
+  }
+
+  // i 件目が塗る可能性のある範囲（TileRasterizer.textBounds と同じもの）
+  Rectangle bounds(Font baseFont, int i) {
+    measure(baseFont, i);
+    return new Rectangle(boundsX[i], boundsY[i], boundsW[i], boundsH[i]);
+  }
+
+  // i 件目の範囲が clip に掛かるか（描画の度に呼ぶので Rectangle を作らない）
+  boolean intersects(Font baseFont, int i, Rectangle clip) {
+    measure(baseFont, i);
+    int x = boundsX[i];
+    int y = boundsY[i];
+    return x < clip.x + clip.width
+        && clip.x < x + boundsW[i]
+        && y < clip.y + clip.height
+        && clip.y < y + boundsH[i];
+  }
+
+  private void measure(Font baseFont, int i) {
+    if (baseFont != boundsFont) {
+      boundsFont = baseFont;
+      Arrays.fill(boundsW, 0, count, -1);
+    }
+    if (boundsW[i] >= 0) return;
+    Rectangle r = TileRasterizer.textBounds(baseFont, this, i);
+    boundsX[i] = r.x;
+    boundsY[i] = r.y;
+    boundsW[i] = r.width;
+    boundsH[i] = r.height;
+  }
+
+  // 操作の文字をすべて外し、外したものを返す（無ければ空）
+  List<TextEntry> removeAction(UUID id) {
+    int action = indexOf(id);
+    if (action < 0) return List.of();
+    List<TextEntry> removed = new ArrayList<>();
+    int kept = 0;
+    int write = 0; // 詰めた後の chars の末尾
+    for (int i = 0; i < count; i++) {
+      int start = offsets[i];
+      int end = offsets[i + 1];
+      if (actions[i] == action) {
+        removed.add(entry(i));
+        continue;
+      }
+      if (write != start) System.arraycopy(chars, start, chars, write, end - start);
+      xs[kept] = xs[i];
+      ys[kept] = ys[i];
+      sizes[kept] = sizes[i];
+      argbs[kept] = argbs[i];
+      // 外した操作より後ろの番号は1つ前へずれる
+      actions[kept] = actions[i] > action ? actions[i] - 1 : actions[i];
+      boundsX[kept] = boundsX[i];
+      boundsY[kept] = boundsY[i];
+      boundsW[kept] = boundsW[i];
+      boundsH[kept] = boundsH[i];
+      offsets[kept] = write;
+      write += end - start;
+      kept++;
+    }
+    count = kept;
+    offsets[count] = write;
+    System.arraycopy(actionIds, action + 1, actionIds, action, actionCount - action - 1);
+    actionIds[--actionCount] = null;
+    return removed;
+  }
+
+  // 確保済みの配列も手放す（全消しの後は書き直しが少ないことが多い）
+  void clear() {
+    count = 0;
+    xs = new int[INITIAL];
+    ys = new int[INITIAL];
+    sizes = new int[INITIAL];
+    argbs = new int[INITIAL];
+    actions = new int[INITIAL];
+    offsets = new int[INITIAL + 1];
+    boundsX = new int[INITIAL];
+    boundsY = new int[INITIAL];
+    boundsW = new int[INITIAL];
+    boundsH = new int[INITIAL];
+    chars = new char[INITIAL * 16];
+    actionIds = new UUID[2];
+    actionCount = 0;
+  }
+
+  TextEntry entry(int i) {
+    return new TextEntry(text(i), sizes[i], color(i), xs[i], ys[i], actionId(i));
+  }
+
+  // ワーカーへ渡す写し（余白は切り詰める）
+  TileTexts copy() {
+    TileTexts c = new TileTexts();
+    int n = Math.max(count, 1);
+    c.count = count;
+    c.xs = Arrays.copyOf(xs, n);
+    c.ys = Arrays.copyOf(ys, n);
+    c.sizes = Arrays.copyOf(sizes, n);
+    c.argbs = Arrays.copyOf(argbs, n);
+    c.actions = Arrays.copyOf(actions, n);
+    c.offsets = Arrays.copyOf(offsets, n + 1);
+    c.boundsX = Arrays.copyOf(boundsX, n);
+    c.boundsY = Arrays.copyOf(boundsY, n);
+    c.boundsW = Arrays.copyOf(boundsW, n);
+    c.boundsH = Arrays.copyOf(boundsH, n);
+    c.boundsFont = boundsFont;
+    c.chars = Arrays.copyOf(chars, Math.max(offsets[count], 1));
+    c.actionIds = Arrays.copyOf(actionIds, Math.max(actionCount, 1));
+    c.actionCount = actionCount;
+    return c;
+  }
+
+  // 配列が実際に確保しているバイト数（配列のヘッダを含む）
+  long estimateBytes() {
+    return 10L * (16 + 4L * xs.length) + 16 + 2L * chars.length + 16 + 4L * actionIds.length;
+  }
+
+  private int actionIndex(UUID id) {
+    int index = indexOf(id);
+    if (index >= 0) return index;
+    if (actionCount == actionIds.length) actionIds = Arrays.copyOf(actionIds, actionCount * 2);
+    actionIds[actionCount] = id;
+    return actionCount++;
+  }
+
+  // 1タイルに載る操作は多くないので線形に探す（新しい操作ほど後ろにあるので後ろから）
+  private int indexOf(UUID id) {
+    for (int i = actionCount - 1; i >= 0; i--) {
+      if (actionIds[i] == null ? id == null : actionIds[i].equals(id)) return i;
+    }
+    return -1;
+  }
+
+  private void grow() {
+    int n = xs.length * 2;
+    xs = Arrays.copyOf(xs, n);
+    ys = Arrays.copyOf(ys, n);
+    sizes = Arrays.copyOf(sizes, n);
+    argbs = Arrays.copyOf(argbs, n);
+    actions = Arrays.copyOf(actions, n);
+    offsets = Arrays.copyOf(offsets, n + 1);
+    boundsX = Arrays.copyOf(boundsX, n);
+    boundsY = Arrays.copyOf(boundsY, n);
+    boundsW = Arrays.copyOf(boundsW, n);
+    boundsH = Arrays.copyOf(boundsH, n);
+  }
+}
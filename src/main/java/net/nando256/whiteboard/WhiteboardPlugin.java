@@ -3,17 +3,19 @@ package net.nando256.whiteboard;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
-import java.awt.Graphics2D;
 import java.awt.GraphicsEnvironment;
-import java.awt.RenderingHints;
-import java.awt.font.FontRenderContext;
-import java.awt.geom.AffineTransform;
-import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
 import java.util.regex.Pattern;
+import net.nando256.whiteboard.HtmlParser.HtmlToken;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -27,15 +29,19 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
+import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.BookMeta;
 import org.bukkit.inventory.meta.MapMeta;
-import org.bukkit.map.MapCanvas;
 import org.bukkit.map.MapRenderer;
 import org.bukkit.map.MapView;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.util.BoundingBox;
+import org.bukkit.util.RayTraceResult;
 import org.bukkit.util.Vector;
 
 /* =========================================================
@@ -55,15 +61,11 @@ import org.bukkit.util.Vector;
 
 public final class WhiteboardPlugin extends JavaPlugin implements Listener {
 
-  private static final FontRenderContext FONT_CONTEXT =
-      new FontRenderContext(new AffineTransform(), true, true);
   private static final Pattern GRID_SIZE_PATTERN = Pattern.compile("^\\d+x\\d+$");
-  private static final Map<String, Color> CSS_COLOR_MAP = createCssColorMap();
   private static final Pattern BOOK_MODE_PREFIX =
       Pattern.compile(
           "^\\s*(?:\\[(plain|text|html|htext)\\]|(plain|text|html|htext)\\s*:)",
           Pattern.CASE_INSENSITIVE);
-  private static final Pattern INT_PATTERN = Pattern.compile("-?\\d+");
 
   /* ============ 1枚マップの管理 ============ */
   private final Map<Integer, WhiteboardRenderer> boards = new HashMap<>();
@@ -73,19 +75,356 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
   private final Map<Integer, String> mapToGroup = new HashMap<>(); // mapId  -> groupId
   private final Map<UUID, String> frameToGroup = new HashMap<>(); // ItemFrame UUID -> groupId
   private final Set<UUID> protectedFrames = new HashSet<>(); // 破壊・回転禁止の対象
+  private final FrameIndex frameIndex = new FrameIndex(); // 視線判定用の位置索引
+  private final LecternIndex lecterns = new LecternIndex(); // ボード周辺の書見台
+  private final TileResidency residency = new TileResidency(); // チャンクごとのタイル
   private Messages messages;
 
+  /* ============ 永続化 ============ */
+  private BoardStore store;
+  private long historyBudget; // ボード1枚あたりの履歴のメモリ予算（0 以下で無制限）
+
+  /* ============ 計測（/wb stats・JMX） ============ */
+  private WhiteboardStats stats;
+  private static final int STATS_TOP = 5;
+  // レイアウト中にフォント・盤面が変わった時のやり直し回数。使い切ったら結果を捨てる
+  private static final int LAYOUT_RETRIES = 3;
+  // onApplied に渡す値：フォントが変わり続けたので何も反映していない
+  private static final int LAYOUT_DISCARDED = -1;
+  // onApplied に渡す値：描いている間に盤面が変わり続けたので何も反映していない
+  private static final int LAYOUT_STALE = -2;
+  // onApplied に渡す値：解析・レイアウト・描画のどこかで失敗した（ログに残してある）
+  private static final int LAYOUT_FAILED = -3;
+  private static final long STATS_SAMPLE_TICKS = 100L;
+  private final Queue<BoardStore.BoardData> pendingLoads = new ConcurrentLinkedQueue<>();
+  private volatile boolean loadFinished;
+  private BukkitTask loadTask;
+  private long loadBudgetNanos;
+  // 登録前に文字を置き直しているボード（先頭から順に、ティックの予算の分だけ進める）
+  private final Queue<Replay> replays = new ArrayDeque<>();
+  // I/O スレッドなどからメインスレッドへ戻す（無効化後は捨てる）
+  private final Executor mainThread =
+      task -> {
+        if (isEnabled()) getServer().getScheduler().runTask(this, task);
+      };
+  // ワールドがまだ読み込まれていないボード（Multiverse などが後から読み込む）
+  private final Map<UUID, List<BoardStore.BoardData>> waitingForWorld = new HashMap<>();
+
+  /* ============ 本のレイアウト（ワーカースレッド） ============ */
+  private RenderPipeline pipeline;
+  private RenderScheduler renderScheduler; // null なら各タイルが render の中で塗り直す
+  private TileMemory tileMemory; // 全タイルの描画結果の合計（上限を超えたら古いものを捨てる）
+
   @Override
   public void onEnable() {
     getLogger().info("Whiteboard enabled (Grid, Wrap, Undo/Redo, Lock/Destroy)");
+    saveDefaultConfig();
     messages = new Messages(this);
     messages.load("auto");
+    // マップ色テーブルは初回の再描画より前に非同期で用意しておく
+    getServer().getScheduler().runTaskAsynchronously(this, MapColors::warmUp);
     File fontsDir = new File(getDataFolder(), "fonts");
     if (!fontsDir.exists()) fontsDir.mkdirs();
     loadCustomFonts(fontsDir);
+    File imagesDir = new File(getDataFolder(), "images");
+    if (!imagesDir.exists()) imagesDir.mkdirs();
 
     // イベント登録（ロック保護）
     getServer().getPluginManager().registerEvents(this, this);
+    getServer().getPluginManager().registerEvents(lecterns, this);
+    getServer().getPluginManager().registerEvents(residency, this);
+    getServer().getPluginManager().registerEvents(messages, this);
+
+    TileRasterizer.setMode(
+        "java2d".equalsIgnoreCase(getConfig().getString("render.rasterizer", "atlas"))
+            ? TileRasterizer.Mode.JAVA2D
+            : TileRasterizer.Mode.ATLAS);
+    pipeline = new RenderPipeline(this, getConfig().getInt("render.worker-threads", 0));
+    stats = new WhiteboardStats(getLogger());
+    getServer()
+        .getScheduler()
+        .runTaskTimer(this, this::sampleStats, STATS_SAMPLE_TICKS, STATS_SAMPLE_TICKS);
+    tileMemory =
+        new TileMemory(
+            getConfig().getLong("render.max-tile-bytes", 67108864L),
+            getConfig().getLong("render.tile-min-idle-ticks", 100L),
+            getLogger());
+    getServer().getScheduler().runTaskTimer(this, tileMemory::tick, 1L, 1L);
+    stats.attachTileMemory(tileMemory);
+    double tickBudgetMs = getConfig().getDouble("render.tick-budget-ms", 4.0);
+    if (tickBudgetMs > 0) {
+      renderScheduler =
+          new RenderScheduler(
+              (long) (tickBudgetMs * 1_000_000L),
+              getConfig().getDouble("render.defer-distance", 64.0),
+              stats);
+      getServer()
+          .getScheduler()
+          .runTaskTimer(this, () -> renderScheduler.tick(Bukkit.getOnlinePlayers()), 1L, 1L);
+    }
+    store = new BoardStore(getDataFolder(), getLogger());
+    historyBudget = getConfig().getLong("history.max-bytes-per-board", 262144L);
+    startBoardLoading();
+    long autosaveTicks = Math.max(1, getConfig().getLong("storage.autosave-seconds", 60)) * 20L;
+    getServer()
+        .getScheduler()
+        .runTaskTimer(this, this::saveChangedBoards, autosaveTicks, autosaveTicks);
+  }
+
+  @Override
+  public void onDisable() {
+    if (messages != null) messages.shutdown();
+    if (pipeline != null) pipeline.shutdown();
+    if (stats != null) stats.shutdown();
+    if (store == null) return;
+    if (loadTask != null) loadTask.cancel();
+    List<BoardStore.BoardData> finalSaves = new ArrayList<>();
+    for (BoardGroup group : groups.values()) {
+      if (!group.unsaved) continue;
+      group.unsaved = false;
+      finalSaves.add(toBoardData(group));
+    }
+    store.shutdown(finalSaves);
+  }
+
+  /* ============ 永続化：読み込み（I/O は非同期、登録はティックごとに少しずつ） ============ */
+
+  private void startBoardLoading() {
+    store.loadAllAsync(pendingLoads::add, () -> loadFinished = true);
+    loadBudgetNanos = Math.max(1L, getConfig().getLong("storage.load-budget-ms", 5)) * 1_000_000L;
+    startLoadTask();
+  }
+
+  // 読み込んだボードの登録と文字の置き直しを、ティックごとに予算の分だけ進める
+  private void startLoadTask() {
+    if (loadTask != null) return;
+    loadTask = getServer().getScheduler().runTaskTimer(this, this::continueLoading, 1L, 1L);
+  }
+
+  private void continueLoading() {
+    long deadline = System.nanoTime() + loadBudgetNanos;
+    BoardStore.BoardData data;
+    while (System.nanoTime() < deadline && (data = pendingLoads.poll()) != null) {
+      registerQuietly(data);
+    }
+    while (System.nanoTime() < deadline && !replays.isEmpty()) {
+      Replay replay = replays.peek();
+      try {
+        if (!replayActions(replay, deadline)) break;
+        replays.poll();
+        finishLoadedBoard(replay);
+      } catch (Exception ex) {
+        replays.poll();
+        getLogger().log(Level.WARNING, "Failed to restore board " + replay.data.id, ex);
+      }
+    }
+    if (loadFinished && pendingLoads.isEmpty() && replays.isEmpty()) {
+      loadTask.cancel();
+      loadTask = null;
+      getLogger().info("Restored " + groups.size() + " whiteboard(s)");
+    }
+  }
+
+  @EventHandler
+  public void onWorldLoad(WorldLoadEvent e) {
+    List<BoardStore.BoardData> waiting = waitingForWorld.remove(e.getWorld().getUID());
+    if (waiting == null) return;
+    for (BoardStore.BoardData data : waiting) registerQuietly(data);
+    getLogger()
+        .info("Restoring " + waiting.size() + " whiteboard(s) in world " + e.getWorld().getName());
+  }
+
+  private void registerQuietly(BoardStore.BoardData data) {
+    try {
+      registerLoadedBoard(data);
+    } catch (Exception ex) {
+      getLogger().log(Level.WARNING, "Failed to restore board " + data.id, ex);
+    }
+  }
+
+  // タイルを用意し、文字の置き直しを順番待ちに入れる（登録は置き終えてから finishLoadedBoard で行う）
+  private void registerLoadedBoard(BoardStore.BoardData data) {
+    if (groups.containsKey(data.id)) return;
+    World world = Bukkit.getWorld(data.worldId);
+    if (world == null) {
+      // 捨てずに預かり、ワールドが読み込まれた時に登録する
+      waitingForWorld.computeIfAbsent(data.worldId, k -> new ArrayList<>()).add(data);
+      getLogger()
+          .info("Board " + data.id + " waits for world " + data.worldId + " to be loaded");
+      return;
+    }
+
+    BoardGroup group = new BoardGroup(data.id, data.width, data.height);
+    group.baseTopLeft = new Location(world, data.baseX, data.baseY, data.baseZ);
+    group.rightUnit = new Vector(data.right[0], data.right[1], data.right[2]);
+    group.downUnit = new Vector(data.down[0], data.down[1], data.down[2]);
+    group.facing = BlockFace.valueOf(data.facing);
+    group.background = new Color(data.background, true);
+    group.font = new Font(data.fontFamily, data.fontStyle, 16);
+    group.password = data.password;
+
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        WhiteboardRenderer renderer = new WhiteboardRenderer();
+        renderer.setBackground(group.background);
+        renderer.setBorderVisible(false);
+        renderer.setBaseFont(group.font);
+        if (data.images != null) renderer.setImage(data.images[y * group.W + x]);
+        group.tiles[y][x] = renderer;
+        group.centers[y][x] =
+            computeFrameCenter(group.baseTopLeft, group.rightUnit, group.downUnit, x, y);
+        group.frames[y][x] = data.frameIds[y][x];
+        group.mapIds[y][x] = data.mapIds[y][x];
+      }
+    }
+    replays.add(new Replay(data, group));
+    startLoadTask();
+  }
+
+  // 履歴の文字を古い順に置く。1操作ごとに deadline を確かめ、過ぎたら続きは次のティック。
+  // 置き終えたら true（まだ登録していないボードなので、途中で操作されることはない）
+  private static boolean replayActions(Replay replay, long deadline) {
+    List<TextAction> undo = replay.data.undo;
+    BoardGroup group = replay.group;
+    while (replay.next < undo.size()) {
+      TextAction action = undo.get(replay.next++);
+      for (TextAtom atom : action.atoms) applyTextAtom(group, atom, action, group.font);
+      if (System.nanoTime() >= deadline) break;
+    }
+    return replay.next >= undo.size();
+  }
+
+  private void finishLoadedBoard(Replay replay) {
+    BoardStore.BoardData data = replay.data;
+    BoardGroup group = replay.group;
+    if (groups.containsKey(group.id)) return;
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        int mapId = group.mapIds[y][x];
+        UUID frameId = group.frames[y][x];
+        // MapView への取り付けは、マップが実際に読み込まれるまで遅延する
+        boards.put(mapId, group.tiles[y][x]);
+        mapToGroup.put(mapId, group.id);
+        if (frameId != null) frameToGroup.put(frameId, group.id);
+      }
+    }
+    groups.put(group.id, group);
+    indexFrames(group);
+    openStats(group);
+    attachTiles(group);
+
+    group.history = newHistory(group.id);
+    group.history.restore(data.undo, data.redo);
+    applyGroupLock(group, data.locked);
+
+    // /reload などで既に読み込まれている額縁には即座に取り付ける
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        UUID frameId = group.frames[y][x];
+        if (frameId == null) continue;
+        if (Bukkit.getEntity(frameId) instanceof ItemFrame frame) {
+          MapView view = mapViewOf(frame);
+          if (view != null) attachRenderer(view);
+        }
+      }
+    }
+  }
+
+  // 読み込んだボード1枚分の、履歴の文字の置き直しの進み具合
+  private static final class Replay {
+    final BoardStore.BoardData data;
+    final BoardGroup group;
+    int next; // 次に置く data.undo の添字
+
+    Replay(BoardStore.BoardData data, BoardGroup group) {
+      this.data = data;
+      this.group = group;
+    }
+  }
+
+  // マップが初めて読み込まれた時点でレンダラーを取り付ける
+  @org.bukkit.event.EventHandler
+  public void onMapInitialize(org.bukkit.event.server.MapInitializeEvent e) {
+    attachRenderer(e.getMap());
+  }
+
+  private void attachRenderer(MapView view) {
+    WhiteboardRenderer renderer = boards.get(view.getId());
+    if (renderer == null) return;
+    List<MapRenderer> current = view.getRenderers();
+    if (current.size() == 1 && current.get(0) == renderer) return;
+    for (MapRenderer other : current) view.removeRenderer(other);
+    view.setLocked(true);
+    view.addRenderer(renderer);
+  }
+
+  /* ============ 永続化：保存 ============ */
+
+  // 文字・フォント・背景・画像が変わったら呼ぶ（次の自動保存で書き出す／実行中のレイアウト結果を古くする）
+  private void markChanged(BoardGroup group) {
+    if (group == null) return;
+    group.unsaved = true;
+    group.sequence++;
+  }
+
+  // 描画に関係しない設定（ロック・パスワード）が変わったら呼ぶ。保存だけして、レイアウト結果は古くしない
+  private void markUnsaved(BoardGroup group) {
+    if (group == null) return;
+    group.unsaved = true;
+  }
+
+  private void saveChangedBoards() {
+    for (BoardGroup group : groups.values()) {
+      if (!group.unsaved) continue;
+      group.unsaved = false;
+      // 書けなければ印を戻し、次の自動保存でやり直す
+      store.saveAsync(toBoardData(group), () -> mainThread.execute(() -> group.unsaved = true));
+    }
+  }
+
+  // 予算を超えた履歴はボードごとのログへ逃がす
+  private BoardHistory newHistory(String groupId) {
+    return new BoardHistory(store.openSpillLog(groupId), historyBudget);
+  }
+
+  private BoardStore.BoardData toBoardData(BoardGroup group) {
+    BoardStore.BoardData data = new BoardStore.BoardData();
+    data.id = group.id;
+    data.worldId = group.baseTopLeft.getWorld().getUID();
+    data.facing = group.facing.name();
+    data.baseX = group.baseTopLeft.getX();
+    data.baseY = group.baseTopLeft.getY();
+    data.baseZ = group.baseTopLeft.getZ();
+    data.right[0] = group.rightUnit.getBlockX();
+    data.right[1] = group.rightUnit.getBlockY();
+    data.right[2] = group.rightUnit.getBlockZ();
+    data.down[0] = group.downUnit.getBlockX();
+    data.down[1] = group.downUnit.getBlockY();
+    data.down[2] = group.downUnit.getBlockZ();
+    data.width = group.W;
+    data.height = group.H;
+    data.mapIds = new int[group.H][];
+    data.frameIds = new UUID[group.H][];
+    for (int y = 0; y < group.H; y++) {
+      data.mapIds[y] = group.mapIds[y].clone();
+      data.frameIds[y] = group.frames[y].clone();
+    }
+    data.background = group.background.getRGB();
+    Font font = resolveBaseFont(group);
+    data.fontFamily = font.getName();
+    data.fontStyle = font.getStyle();
+    data.locked = group.locked;
+    data.password = group.password;
+    data.images = new byte[group.W * group.H][];
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        WhiteboardRenderer r = group.tiles[y][x];
+        if (r != null) data.images[y * group.W + x] = r.getImage();
+      }
+    }
+    data.undo = group.history.undoOldestFirst();
+    data.redo = group.history.redoOldestFirst();
+    return data;
   }
 
   // 1) 左クリック等のダメージ（プレイヤー/発射物/クリエも含む）
@@ -165,6 +504,12 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
           return handleDestroyCommand(p);
         case "font":
           return handleFontCommand(p, Arrays.copyOfRange(args, 1, args.length));
+        case "cache":
+          return handleCacheCommand(p);
+        case "stats":
+          return handleStatsCommand(p, Arrays.copyOfRange(args, 1, args.length));
+        case "image":
+          return handleImageCommand(p, Arrays.copyOfRange(args, 1, args.length));
         case "help":
         default:
           sendHelp(p);
@@ -194,74 +539,207 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       messages.send(p, "error.targetFrame");
       return true;
     }
-    createBoardFromFrame(p, topLeft, width, height, false);
+    createBoardFromFrame(p, topLeft, width, height, false, group -> {});
     return true;
   }
 
-  private BoardGroup createBoardFromFrame(
-      Player p, ItemFrame topLeft, int width, int height, boolean fromBook) {
+  // 大きなボードの自動配置は1ティックあたりこの枚数までにする
+  private static final int AUTO_PLACE_PER_TICK = 32;
+
+  // 作成に成功したら onCreated を呼ぶ（額縁の自動配置が複数ティックに渡る場合は後で呼ばれる）
+  private void createBoardFromFrame(
+      Player p,
+      ItemFrame topLeft,
+      int width,
+      int height,
+      boolean fromBook,
+      Consumer<BoardGroup> onCreated) {
     if (topLeft == null) {
       if (p != null) messages.send(p, "error.targetFrame");
-      return null;
+      return;
     }
 
     BlockFace face = topLeft.getFacing();
     Location baseLoc = frameBlockCenter(topLeft);
-    Vector base = baseLoc.toVector();
-
     Vector rightBase = rightVector(face);
     Vector downBase = new Vector(0, -1, 0);
 
-    double scanRadius = Math.max(width, height) + 1.5;
-    Collection<Entity> nearby =
-        topLeft.getWorld().getNearbyEntities(baseLoc, scanRadius, scanRadius, scanRadius);
-    List<ItemFrame> candidates = new ArrayList<>();
-    List<Vector> offsets = new ArrayList<>();
-    for (Entity e : nearby) {
-      if (!(e instanceof ItemFrame frame)) continue;
-      if (frame.getFacing() != face) continue;
-      candidates.add(frame);
-      offsets.add(frameBlockCenter(frame).toVector().subtract(base));
-    }
-    if (candidates.isEmpty()) {
+    Map<Long, ItemFrame> byCell =
+        collectFramesByCell(topLeft, baseLoc, face, rightBase, width, height);
+    if (byCell.isEmpty()) {
       if (p != null) messages.send(p, "error.noFrames");
-      return null;
+      return;
     }
 
     GridAssembly assembly =
-        resolveGridOrientation(
-            width, height, baseLoc, topLeft, candidates, offsets, rightBase, downBase);
+        resolveGridOrientation(width, height, topLeft, byCell, rightBase, downBase);
     if (assembly == null) {
       if (p != null) messages.send(p, "error.missingFrames");
-      return null;
+      return;
     }
-    ItemFrame[][] grid = assembly.tiles;
-    Vector right = assembly.right;
-    Vector down = assembly.down;
-    World world = topLeft.getWorld();
-    int autoPlaced = 0;
+
+    List<int[]> missing = new ArrayList<>();
     for (int y = 0; y < height; y++) {
       for (int x = 0; x < width; x++) {
-        if (grid[y][x] != null) continue;
-        Location center = computeFrameCenter(baseLoc, right, down, x, y);
+        if (assembly.tiles[y][x] == null) missing.add(new int[] {x, y});
+      }
+    }
+    if (missing.isEmpty()) {
+      onCreated.accept(registerNewBoard(p, assembly, baseLoc, face, fromBook, 0));
+      return;
+    }
+
+    FramePlacement placement =
+        new FramePlacement(
+            p,
+            topLeft,
+            assembly,
+            baseLoc,
+            face,
+            missing,
+            () -> onCreated.accept(
+                registerNewBoard(p, assembly, baseLoc, face, fromBook, missing.size())));
+    placement.run();
+    if (!placement.finished) {
+      if (p != null) messages.send(p, "board.autoPlace.progress", placement.next, missing.size());
+      placement.task = getServer().getScheduler().runTaskTimer(this, placement, 1L, 1L);
+    }
+  }
+
+  // 足りない額縁を少しずつ設置する（途中で失敗したらそこで止める）
+  private final class FramePlacement implements Runnable {
+    final Player player;
+    final ItemFrame topLeft;
+    final GridAssembly assembly;
+    final Location baseLoc;
+    final BlockFace face;
+    final List<int[]> missing;
+    final Runnable onDone;
+    BukkitTask task;
+    int next;
+    int ticks;
+    boolean finished;
+
+    FramePlacement(
+        Player player,
+        ItemFrame topLeft,
+        GridAssembly assembly,
+        Location baseLoc,
+        BlockFace face,
+        List<int[]> missing,
+        Runnable onDone) {
+      this.player = player;
+      this.topLeft = topLeft;
+      this.assembly = assembly;
+      this.baseLoc = baseLoc;
+      this.face = face;
+      this.missing = missing;
+      this.onDone = onDone;
+    }
+
+    @Override
+    public void run() {
+      if (!topLeft.isValid()) {
+        stop();
+        return;
+      }
+      World world = topLeft.getWorld();
+      int end = Math.min(missing.size(), next + AUTO_PLACE_PER_TICK);
+      for (; next < end; next++) {
+        int x = missing.get(next)[0];
+        int y = missing.get(next)[1];
+        Location center = computeFrameCenter(baseLoc, assembly.right, assembly.down, x, y);
         ItemFrame created = ensureFrameExists(world, center, face);
         if (created == null) {
-          if (p != null) messages.send(p, "error.autoPlace", x + 1, y + 1);
-          return null;
+          if (player != null) messages.send(player, "error.autoPlace", x + 1, y + 1);
+          stop();
+          return;
         }
-        grid[y][x] = created;
-        autoPlaced++;
+        assembly.tiles[y][x] = created;
+      }
+      if (next >= missing.size()) {
+        stop();
+        onDone.run();
+        return;
       }
+      if (++ticks % 20 == 0 && player != null && player.isOnline()) {
+        messages.send(player, "board.autoPlace.progress", next, missing.size());
+      }
+    }
+
+    private void stop() {
+      finished = true;
+      if (task != null) task.cancel();
     }
+  }
+
+  // 左上と同じ向き・同じ奥行きにある額縁を、グリッド上の整数オフセット (u, v) で引けるようにする
+  private Map<Long, ItemFrame> collectFramesByCell(
+      ItemFrame topLeft,
+      Location baseLoc,
+      BlockFace face,
+      Vector rightBase,
+      int width,
+      int height) {
+    int bx = baseLoc.getBlockX();
+    int by = baseLoc.getBlockY();
+    int bz = baseLoc.getBlockZ();
+    int rx = rightBase.getBlockX();
+    int rz = rightBase.getBlockZ();
+
+    // 4方向のどれで組んでも収まる、厚さ1ブロックの板状の範囲だけを検索する
+    int spanU = width - 1;
+    int spanV = height - 1;
+    BoundingBox slab =
+        rx != 0
+            ? new BoundingBox(bx - spanU, by - spanV, bz, bx + spanU + 1, by + spanV + 1, bz + 1)
+            : new BoundingBox(bx, by - spanV, bz - spanU, bx + 1, by + spanV + 1, bz + spanU + 1);
+
+    Map<Long, ItemFrame> byCell = new HashMap<>();
+    for (Entity e :
+        topLeft.getWorld()
+            .getNearbyEntities(
+                slab, e -> e instanceof ItemFrame f && f.getFacing() == face)) {
+      ItemFrame frame = (ItemFrame) e;
+      Location loc = frame.getLocation();
+      int dx = loc.getBlockX() - bx;
+      int dy = loc.getBlockY() - by;
+      int dz = loc.getBlockZ() - bz;
+      // 手前・奥の列にある額縁は別の面なので除く
+      if (rx != 0 ? dz != 0 : dx != 0) continue;
+      int u = dx * rx + dz * rz;
+      int v = -dy;
+      byCell.putIfAbsent(cellKey(u, v), frame);
+    }
+    byCell.put(cellKey(0, 0), topLeft);
+    return byCell;
+  }
+
+  private static long cellKey(int u, int v) {
+    return ((long) u << 32) | (v & 0xFFFFFFFFL);
+  }
+
+  private BoardGroup registerNewBoard(
+      Player p,
+      GridAssembly assembly,
+      Location baseLoc,
+      BlockFace face,
+      boolean fromBook,
+      int autoPlaced) {
+    ItemFrame[][] grid = assembly.tiles;
+    int height = grid.length;
+    int width = grid[0].length;
 
     String groupId = UUID.randomUUID().toString();
     BoardGroup group = new BoardGroup(groupId, width, height);
     groups.put(groupId, group);
 
     group.baseTopLeft = baseLoc.clone();
-    group.rightUnit = right.clone();
-    group.downUnit = down.clone();
+    group.rightUnit = assembly.right.clone();
+    group.downUnit = assembly.down.clone();
+    group.facing = face;
     group.locked = true;
+    group.history = newHistory(groupId);
 
     for (int y = 0; y < height; y++) {
       for (int x = 0; x < width; x++) {
@@ -280,6 +758,7 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
         group.tiles[y][x] = renderer;
         group.centers[y][x] = frameBlockCenter(frame);
         group.frames[y][x] = frame.getUniqueId();
+        group.mapIds[y][x] = view.getId();
 
         mapToGroup.put(view.getId(), groupId);
         frameToGroup.put(frame.getUniqueId(), groupId);
@@ -294,7 +773,11 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       }
     }
 
+    indexFrames(group);
+    openStats(group);
+    attachTiles(group);
     applyGroupLock(group, true);
+    markChanged(group);
 
     if (p != null) {
       if (fromBook) {
@@ -347,56 +830,12 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       BookPayload payload = readBookPayload(p);
       if (payload == null) return true;
 
-      if (!handlePasswordDirectives(p, group, payload.providedPassword, payload.newPassword)) {
-        return true;
-      }
-
-      RenderMode mode =
-          payload.explicitMode ? payload.mode : RenderMode.HTML; // default to HTML when unspecified
-      if (!payload.explicitMode && !htmlMode && mode == RenderMode.HTML) {
-        messages.send(p, "book.html.defaultMode");
-      }
-
-      if (payload.clearBefore) {
-        int cleared = clearGroupTexts(group);
-        messages.send(p, "book.clear", cleared);
-      }
-
-      int resolvedSize =
-          clamp(payload.sizeOverride != null ? payload.sizeOverride : parsed.size, 8, 64);
-      Color resolvedColor =
-          payload.colorOverride != null ? payload.colorOverride : parsed.color;
-      if (resolvedColor == null) resolvedColor = Color.BLACK;
-      int resolvedGx = (payload.gxOverride != null) ? payload.gxOverride : parsed.gx;
-      int resolvedGy = (payload.gyOverride != null) ? payload.gyOverride : parsed.gy;
-      Integer resolvedLineH =
-          (payload.lineHeightOverride != null)
-              ? clamp(payload.lineHeightOverride, 8, 256)
-              : parsed.lineHeight;
-
-      int added =
-          (mode == RenderMode.PLAIN)
-              ? renderPlainText(
-                  group,
-                  payload.text,
-                  resolvedSize,
-                  resolvedColor,
-                  resolvedGx,
-                  resolvedGy,
-                  resolvedLineH)
-              : renderHtmlText(
-                  group,
-                  payload.text,
-                  resolvedSize,
-                  resolvedColor,
-                  resolvedGx,
-                  resolvedGy,
-                  resolvedLineH);
-      if (added == 0) {
-        messages.send(p, "book.noText");
-      } else {
-        messages.send(p, "book.added", added);
-      }
+      handlePasswordDirectives(
+          p,
+          group,
+          payload.providedPassword,
+          payload.newPassword,
+          () -> applyBookCommand(p, group, payload, parsed, htmlMode));
       return true;
     }
 
@@ -411,7 +850,7 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
 
       Color color = Color.BLACK;
       if (!isInteger(subArgs[index])) {
-        color = parseHtmlColor(subArgs[index], color);
+        color = CssColors.parseHex(subArgs[index], color);
         index++;
       }
 
@@ -425,35 +864,91 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       Integer customLineHeight = null;
       if (subArgs.length > index) {
         customLineHeight =
-            clamp(parseIntSafe(subArgs[index], defaultLineHeight(size)), 8, 256);
-      }
-
-      int added = renderHtmlText(group, html, size, color, gx, gy, customLineHeight);
-      if (added == 0) {
-        messages.send(p, "book.html.empty");
-      } else {
-        messages.send(p, "book.html.added");
-      }
+            clamp(parseIntSafe(subArgs[index], TextLayout.defaultLineHeight(size)), 8, 256);
+      }
+
+      submitText(
+          group,
+          RenderMode.HTML,
+          html,
+          size,
+          color,
+          gx,
+          gy,
+          customLineHeight,
+          added -> {
+            if (sendLayoutFailure(p, added)) return;
+            if (added == 0) {
+              messages.send(p, "book.html.empty");
+            } else {
+              messages.send(p, "book.html.added");
+            }
+          });
       return true;
     } else {
       String msg = subArgs[0];
       int size = clamp(parseIntSafe(subArgs[1], 16), 8, 64);
-      Color color = parseHtmlColor(subArgs[2], Color.BLACK);
+      Color color = CssColors.parseHex(subArgs[2], Color.BLACK);
       int gx = parseIntSafe(subArgs[3], 0);
       int gy = parseIntSafe(subArgs[4], 0);
 
       TextAction action = new TextAction();
       TextAtom atom = new TextAtom(msg, size, color, gx, gy);
       action.atoms.add(atom);
-      applyTextAtom(group, atom, action.id);
-      group.redo.clear();
-      group.undo.push(action);
+      applyTextAtom(group, atom, action);
+      group.history.push(action);
+      markChanged(group);
 
       messages.send(p, "book.text.added");
       return true;
     }
   }
 
+  // パスワードの確認が済んだ本を /wb text（book）として反映する
+  private void applyBookCommand(
+      Player p, BoardGroup group, BookPayload payload, ParsedBookCommand parsed, boolean htmlMode) {
+    RenderMode mode =
+        payload.explicitMode ? payload.mode : RenderMode.HTML; // default to HTML when unspecified
+    if (!payload.explicitMode && !htmlMode && mode == RenderMode.HTML) {
+      messages.send(p, "book.html.defaultMode");
+    }
+
+    if (payload.clearBefore) {
+      int cleared = clearGroupTexts(group);
+      messages.send(p, "book.clear", cleared);
+    }
+
+    int resolvedSize =
+        clamp(payload.sizeOverride != null ? payload.sizeOverride : parsed.size, 8, 64);
+    Color resolvedColor =
+        payload.colorOverride != null ? payload.colorOverride : parsed.color;
+    if (resolvedColor == null) resolvedColor = Color.BLACK;
+    int resolvedGx = (payload.gxOverride != null) ? payload.gxOverride : parsed.gx;
+    int resolvedGy = (payload.gyOverride != null) ? payload.gyOverride : parsed.gy;
+    Integer resolvedLineH =
+        (payload.lineHeightOverride != null)
+            ? clamp(payload.lineHeightOverride, 8, 256)
+            : parsed.lineHeight;
+
+    submitText(
+        group,
+        mode,
+        payload.text,
+        resolvedSize,
+        resolvedColor,
+        resolvedGx,
+        resolvedGy,
+        resolvedLineH,
+        added -> {
+          if (sendLayoutFailure(p, added)) return;
+          if (added == 0) {
+            messages.send(p, "book.noText");
+          } else {
+            messages.send(p, "book.added", added);
+          }
+        });
+  }
+
   private void sendTextUsage(Player p, boolean htmlMode) {
     if (htmlMode) {
       messages.send(p, "usage.htext");
@@ -481,7 +976,9 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       return true;
     }
 
-    Color color = parseHtmlColor(subArgs[0], Color.WHITE);
+    Color color = CssColors.parseHex(subArgs[0], Color.WHITE);
+    group.background = color;
+    markChanged(group);
     int count = 0;
     for (int y = 0; y < group.H; y++) {
       for (int x = 0; x < group.W; x++) {
@@ -496,6 +993,97 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     return true;
   }
 
+  /* ============ 画像（plugins/Whiteboard/images/ のファイルを下地に敷く） ============ */
+
+  private boolean handleImageCommand(Player p, String[] subArgs) {
+    if (subArgs.length < 1 || subArgs.length > 2) {
+      messages.send(p, "image.usage");
+      messages.send(p, "image.files");
+      return true;
+    }
+    BoardGroup group = requireGroupBySight(p);
+    if (group == null) return true;
+    if (isPasswordProtected(group)) {
+      messages.send(p, "password.locked");
+      return true;
+    }
+    if (subArgs[0].equalsIgnoreCase("clear") && subArgs.length == 1) {
+      setGroupImage(group, null);
+      messages.send(p, "image.cleared");
+      return true;
+    }
+
+    ImageImporter.Fit fit = ImageImporter.Fit.FIT;
+    if (subArgs.length == 2) {
+      switch (subArgs[1].toLowerCase(Locale.ROOT)) {
+        case "fit" -> fit = ImageImporter.Fit.FIT;
+        case "fill" -> fit = ImageImporter.Fit.FILL;
+        default -> {
+          messages.send(p, "image.usage");
+          return true;
+        }
+      }
+    }
+    File file = resolveImageFile(subArgs[0]);
+    if (file == null) {
+      messages.send(p, "image.notFound", subArgs[0]);
+      return true;
+    }
+
+    // 読み込み・縮小・ディザリングはワーカーで行い、できたタイルだけを戻す
+    messages.send(p, "image.loading", file.getName());
+    UUID playerId = p.getUniqueId();
+    int width = group.W;
+    int height = group.H;
+    Color background = group.background;
+    ImageImporter.Fit mode = fit;
+    pipeline.submit(
+        () -> {
+          try {
+            return ImageImporter.importImage(
+                file, width, height, mode, background, pipeline.forkJoin());
+          } catch (IOException | RuntimeException ex) {
+            getLogger().warning("Could not import image " + file.getName() + ": " + ex);
+            return null;
+          }
+        },
+        tiles -> {
+          Player player = Bukkit.getPlayer(playerId);
+          if (groups.get(group.id) != group) return; // 読み込み中に破棄された
+          if (tiles == null) {
+            if (player != null) messages.send(player, "image.failed", file.getName());
+            return;
+          }
+          setGroupImage(group, tiles);
+          if (player != null) messages.send(player, "image.applied", file.getName(), width, height);
+        },
+        () -> {
+          Player player = Bukkit.getPlayer(playerId);
+          if (player != null) messages.send(player, "image.failed", file.getName());
+        });
+    return true;
+  }
+
+  // 名前だけを受け付ける（フォルダの外や URL は読まない）
+  private File resolveImageFile(String name) {
+    if (name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains("\\")) {
+      return null;
+    }
+    File file = new File(new File(getDataFolder(), "images"), name);
+    return file.isFile() ? file : null;
+  }
+
+  // tiles はタイル番号 (y*W+x) ごとのパレット番号。null で画像を外す
+  private void setGroupImage(BoardGroup group, byte[][] tiles) {
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        WhiteboardRenderer renderer = group.tiles[y][x];
+        if (renderer != null) renderer.setImage(tiles == null ? null : tiles[y * group.W + x]);
+      }
+    }
+    markChanged(group);
+  }
+
   private boolean handleClearCommand(Player p) {
     BoardGroup group = requireGroupBySight(p);
     if (group == null) return true;
@@ -515,16 +1103,30 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       messages.send(p, "password.locked");
       return true;
     }
-    if (group.undo.isEmpty()) {
+    undoGroup(p, group);
+    return true;
+  }
+
+  // ログへ逃がした操作は I/O スレッドで読み戻してから取り消す（メインスレッドでは読まない）
+  private void undoGroup(Player p, BoardGroup group) {
+    if (!group.history.canUndo()) {
       messages.send(p, "undo.none");
-      return true;
+      return;
+    }
+    if (group.history.undoNeedsPageIn()) {
+      group.history.pageInUndo(
+          mainThread,
+          () -> {
+            if (groups.get(group.id) == group) undoGroup(p, group);
+          },
+          error -> historyReadFailed(p, group, error));
+      return;
     }
 
-    TextAction action = group.undo.pop();
-    removeAction(group, action.id);
-    group.redo.push(action);
+    TextAction action = group.history.undo();
+    group.history.placed(action, removeAction(group, action));
+    markChanged(group);
     messages.send(p, "undo.done");
-    return true;
   }
 
   private boolean handleRedoCommand(Player p) {
@@ -534,16 +1136,34 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       messages.send(p, "password.locked");
       return true;
     }
-    if (group.redo.isEmpty()) {
+    redoGroup(p, group);
+    return true;
+  }
+
+  private void redoGroup(Player p, BoardGroup group) {
+    if (!group.history.canRedo()) {
       messages.send(p, "redo.none");
-      return true;
+      return;
+    }
+    if (group.history.redoNeedsPageIn()) {
+      group.history.pageInRedo(
+          mainThread,
+          () -> {
+            if (groups.get(group.id) == group) redoGroup(p, group);
+          },
+          error -> historyReadFailed(p, group, error));
+      return;
     }
 
-    TextAction action = group.redo.pop();
-    for (TextAtom atom : action.atoms) applyTextAtom(group, atom, action.id);
-    group.undo.push(action);
+    TextAction action = group.history.redo();
+    restoreAction(group, action);
+    markChanged(group);
     messages.send(p, "redo.done");
-    return true;
+  }
+
+  private void historyReadFailed(Player p, BoardGroup group, Throwable error) {
+    getLogger().log(Level.WARNING, "Failed to read history log of board " + group.id, error);
+    messages.send(p, "history.readFailed");
   }
 
   private int clearGroupTexts(BoardGroup group) {
@@ -557,14 +1177,15 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
         cleared++;
       }
     }
-    group.undo.clear();
-    group.redo.clear();
+    group.history.clear();
+    markChanged(group);
     return cleared;
   }
 
   private void applyGroupLock(BoardGroup group, boolean on) {
     if (group == null) return;
     group.locked = on;
+    markUnsaved(group);
     for (int y = 0; y < group.H; y++) {
       for (int x = 0; x < group.W; x++) {
         UUID id = group.frames[y][x];
@@ -614,6 +1235,195 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     return true;
   }
 
+  private boolean handleCacheCommand(Player p) {
+    if (!hasAdminPrivilege(p)) {
+      messages.send(p, "admin.denied");
+      return true;
+    }
+    messages.send(
+        p,
+        "cache.fonts",
+        FontCache.cachedFonts(),
+        FontCache.fontHits(),
+        FontCache.fontMisses(),
+        FontCache.advanceHits(),
+        FontCache.advanceMisses());
+    messages.send(
+        p,
+        "cache.glyphs",
+        TileRasterizer.mode().name().toLowerCase(Locale.ROOT),
+        GlyphAtlas.hits(),
+        GlyphAtlas.misses());
+    return true;
+  }
+
+  // /wb stats [board]：全体と重いボード上位、または指定ボード（ID の先頭一致）の内訳
+  private boolean handleStatsCommand(Player p, String[] subArgs) {
+    if (!hasAdminPrivilege(p)) {
+      messages.send(p, "admin.denied");
+      return true;
+    }
+    sampleStats();
+    if (subArgs.length >= 1) {
+      BoardGroup group = findGroupByPrefix(subArgs[0]);
+      if (group == null || group.stats == null) {
+        messages.send(p, "stats.board.notFound", subArgs[0]);
+        return true;
+      }
+      BoardStats s = group.stats;
+      messages.send(p, "stats.board.header", group.id, group.W, group.H);
+      sendStatsLines(
+          p,
+          s.getRenderCount(),
+          s.getRedrawCount(),
+          s.getRenderTimeMeanMicros(),
+          s.getRenderTimeP99Micros(),
+          s.getRenderTimeMaxMicros(),
+          s.getRepaintCount(),
+          s.getRepaintTimeMeanMicros(),
+          s.getRepaintTimeP99Micros(),
+          s.getRepaintTimeMaxMicros(),
+          s.getLayoutCount(),
+          s.getLayoutTimeMeanMicros(),
+          s.getLayoutTimeP99Micros(),
+          s.getAtomsApplied(),
+          s.getTileEntriesAdded(),
+          s.getUndoDepth(),
+          s.getRedoDepth(),
+          s.getSpilledActions(),
+          s.getHeldBytes());
+      return true;
+    }
+
+    messages.send(p, "stats.global.header", stats.getBoardCount());
+    messages.send(p, "stats.queue", stats.getQueuedTiles(), stats.getDeferredTiles());
+    long limit = stats.getTileBytesLimit();
+    messages.send(
+        p,
+        "stats.tiles",
+        stats.getResidentTiles(),
+        stats.getTileBytes() / 1024,
+        limit > 0 ? String.valueOf(limit / 1024) : "-",
+        stats.getTileEvictions(),
+        stats.getTileRebuilds(),
+        stats.getTileRebuildsPerMinute());
+    sendStatsLines(
+        p,
+        stats.getRenderCount(),
+        stats.getRedrawCount(),
+        stats.getRenderTimeMeanMicros(),
+        stats.getRenderTimeP99Micros(),
+        stats.getRenderTimeMaxMicros(),
+        stats.getRepaintCount(),
+        stats.getRepaintTimeMeanMicros(),
+        stats.getRepaintTimeP99Micros(),
+        stats.getRepaintTimeMaxMicros(),
+        stats.getLayoutCount(),
+        stats.getLayoutTimeMeanMicros(),
+        stats.getLayoutTimeP99Micros(),
+        stats.getAtomsApplied(),
+        stats.getTileEntriesAdded(),
+        stats.getUndoDepth(),
+        stats.getRedoDepth(),
+        stats.getSpilledActions(),
+        stats.getHeldBytes());
+    List<BoardStats> top = stats.top(STATS_TOP);
+    if (top.isEmpty()) return true;
+    messages.send(p, "stats.top.header");
+    int rank = 1;
+    for (BoardStats s : top) {
+      messages.send(
+          p,
+          "stats.top.entry",
+          rank++,
+          s.id.substring(0, Math.min(8, s.id.length())),
+          BoardStats.micros(s.paintNanos()) / 1000,
+          s.redraws(),
+          s.getHeldBytes() / 1024);
+    }
+    return true;
+  }
+
+  private void sendStatsLines(
+      Player p,
+      long renders,
+      long redraws,
+      long renderMean,
+      long renderP99,
+      long renderMax,
+      long repaints,
+      long repaintMean,
+      long repaintP99,
+      long repaintMax,
+      long layouts,
+      long layoutMean,
+      long layoutP99,
+      long atoms,
+      long entries,
+      int undo,
+      int redo,
+      int spilled,
+      long bytes) {
+    messages.send(p, "stats.render", renders, redraws, renderMean, renderP99, renderMax);
+    messages.send(p, "stats.repaint", repaints, repaintMean, repaintP99, repaintMax);
+    messages.send(p, "stats.layout", layouts, layoutMean, layoutP99);
+    long fanOut10 = atoms == 0 ? 0 : entries * 10 / atoms;
+    messages.send(p, "stats.fanOut", atoms, entries, fanOut10 / 10 + "." + fanOut10 % 10);
+    messages.send(p, "stats.memory", undo, redo, spilled, bytes / 1024);
+  }
+
+  private BoardGroup findGroupByPrefix(String prefix) {
+    String key = prefix.toLowerCase(Locale.ROOT);
+    BoardGroup found = null;
+    for (BoardGroup group : groups.values()) {
+      if (!group.id.startsWith(key)) continue;
+      if (found != null) return null; // 曖昧
+      found = group;
+    }
+    return found;
+  }
+
+  // 履歴の深さ・保持バイト数はメインスレッドでだけ読めるので、ここで写しておく
+  private void sampleStats() {
+    tileMemory.sample();
+    for (BoardGroup group : groups.values()) {
+      if (group.stats == null) continue;
+      long bytes = group.history.residentBytes();
+      for (int y = 0; y < group.H; y++) {
+        for (int x = 0; x < group.W; x++) {
+          WhiteboardRenderer r = group.tiles[y][x];
+          if (r != null) bytes += r.estimateBytes();
+        }
+      }
+      group.stats.sample(
+          group.history.undoSize(), group.history.redoSize(), group.history.spilled(), bytes);
+    }
+  }
+
+  private void openStats(BoardGroup group) {
+    group.stats = stats.open(group.id, group.W * group.H);
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        WhiteboardRenderer r = group.tiles[y][x];
+        if (r != null) r.attachStats(group.stats);
+      }
+    }
+  }
+
+  // 塗り直しをティックの予算内で見ている人に近いタイルから行わせ、描画結果をメモリ上限に数える
+  private void attachTiles(BoardGroup group) {
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        WhiteboardRenderer r = group.tiles[y][x];
+        if (r == null) continue;
+        r.attachMemory(tileMemory);
+        if (renderScheduler != null) {
+          r.attachScheduler(renderScheduler, group.centers[y][x], group.facing);
+        }
+      }
+    }
+  }
+
   private boolean hasAdminPrivilege(Player p) {
     return p.isOp() || p.hasPermission("whiteboard.admin");
   }
@@ -642,23 +1452,64 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
         || lower.equals("reset");
   }
 
-  private boolean handlePasswordDirectives(
-      Player player, BoardGroup group, String providedToken, String requestedToken) {
-    if (group == null) return false;
+  // パスワードの照合・ハッシュ化（重い）はワーカーで行い、判定と反映はメインスレッドで行う。
+  // 通ったら onPassed をメインスレッドで呼ぶ（通らなければ理由を伝えて何もしない）
+  private void handlePasswordDirectives(
+      Player player,
+      BoardGroup group,
+      String providedToken,
+      String requestedToken,
+      Runnable onPassed) {
+    if (group == null) return;
 
     String provided = normalizePasswordToken(providedToken);
     String requested = normalizePasswordToken(requestedToken);
+    if (provided == null && requested == null) {
+      // 指示が無ければ照合は要らない
+      if (group.locked && hasPassword(group)) {
+        messages.send(player, "password.required");
+        return;
+      }
+      onPassed.run();
+      return;
+    }
+
     String current = group.password;
     boolean hasCurrent = hasPassword(group);
+    // 新しく設定する可能性のあるパスワード（消す指示ならハッシュは要らない）
+    String next = hasCurrent ? requested : (requested != null ? requested : provided);
+    String nextPlain = next != null && !isPasswordClearToken(next) ? next : null;
+    // 専用のスレッドで行う（照合は [pass] の1回だけ。新しいパスワードは同じかどうかを確かめずに
+    // ハッシュし直すので、導出は多くても2回）
+    pipeline.submitPassword(
+        () ->
+            new PasswordCheck(
+                hasCurrent && provided != null && BoardPassword.matches(current, provided),
+                nextPlain == null ? null : BoardPassword.hash(nextPlain)),
+        check -> {
+          if (groups.get(group.id) != group) return; // 破棄済み
+          if (!Objects.equals(group.password, current)) {
+            // 照合中にパスワードが変わった：今のパスワードで照合し直す
+            handlePasswordDirectives(player, group, providedToken, requestedToken, onPassed);
+            return;
+          }
+          if (applyPasswordDirectives(player, group, provided, requested, check)) onPassed.run();
+        },
+        () -> messages.send(player, "password.checkFailed"));
+  }
+
+  private boolean applyPasswordDirectives(
+      Player player, BoardGroup group, String provided, String requested, PasswordCheck check) {
+    boolean hasCurrent = hasPassword(group);
 
     if (!hasCurrent) {
       String candidate = requested != null ? requested : provided;
       if (candidate != null) {
         if (isPasswordClearToken(candidate)) {
-          group.password = null;
+          setPasswordHash(group, null);
           messages.send(player, "password.cleared");
         } else {
-          group.password = candidate;
+          setPasswordHash(group, check.nextHash);
           messages.send(player, "password.set");
         }
       }
@@ -670,17 +1521,17 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
         messages.send(player, "password.required");
         return false;
       }
-      if (!current.equals(provided)) {
+      if (!check.providedMatches) {
         messages.send(player, "password.mismatch");
         return false;
       }
     } else {
       if (requested != null || (provided != null && isPasswordClearToken(provided))) {
-        if (provided == null || !current.equals(provided)) {
+        if (provided == null || !check.providedMatches) {
           messages.send(player, "password.mismatch");
           return false;
         }
-      } else if (provided != null && !current.equals(provided)) {
+      } else if (provided != null && !check.providedMatches) {
         messages.send(player, "password.mismatch");
         return false;
       }
@@ -688,36 +1539,57 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
 
     if (requested != null) {
       if (isPasswordClearToken(requested)) {
-        if (hasCurrent) {
-          group.password = null;
-          messages.send(player, "password.cleared");
-        }
-      } else if (!current.equals(requested)) {
-        group.password = requested;
+        setPasswordHash(group, null);
+        messages.send(player, "password.cleared");
+      } else {
+        setPasswordHash(group, check.nextHash);
         messages.send(player, "password.changed");
       }
       return true;
     }
 
     if (!group.locked && provided != null && isPasswordClearToken(provided)) {
-      if (hasCurrent) {
-        group.password = null;
-        messages.send(player, "password.cleared");
-      }
+      setPasswordHash(group, null);
+      messages.send(player, "password.cleared");
     }
 
     return true;
   }
 
+  // 平文は持たず、ハッシュ（BoardPassword.hash() の結果）だけを残す
+  private void setPasswordHash(BoardGroup group, String hash) {
+    group.password = hash;
+    markUnsaved(group);
+  }
+
+  // 専用スレッドでの照合結果
+  private static final class PasswordCheck {
+    final boolean providedMatches; // [pass] が今のパスワードと一致
+    final String nextHash; // 新しく設定する場合のハッシュ（無ければ null）
+
+    PasswordCheck(boolean providedMatches, String nextHash) {
+      this.providedMatches = providedMatches;
+      this.nextHash = nextHash;
+    }
+  }
+
   private int destroyBoardGroup(BoardGroup group) {
     if (group == null) return 0;
 
     groups.remove(group.id);
+    store.deleteAsync(group.id);
+    unindexFrames(group);
+    stats.close(group.id);
     int removed = 0;
 
     for (int y = 0; y < group.H; y++) {
       for (int x = 0; x < group.W; x++) {
         UUID frameId = group.frames[y][x];
+        WhiteboardRenderer tile = group.tiles[y][x];
+        if (tile != null) {
+          tile.attachScheduler(null, null, null);
+          tile.attachMemory(null);
+        }
         group.tiles[y][x] = null;
         group.centers[y][x] = null;
         group.frames[y][x] = null;
@@ -766,8 +1638,7 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
               return false;
             });
 
-  group.undo.clear();
-  group.redo.clear();
+  group.history.close();
   group.password = null;
 
   return removed;
@@ -800,6 +1671,9 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
         renderer.requestRedraw();
       }
     }
+    group.font = baseFont;
+    redistributeTexts(p, group);
+    markChanged(group);
     messages.send(p, "font.changed", baseFont.getFamily());
     return true;
   }
@@ -815,6 +1689,7 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     messages.send(p, "help.undo");
     messages.send(p, "help.lock");
     messages.send(p, "help.font");
+    messages.send(p, "help.image");
     messages.send(p, "help.tip.quick");
     messages.send(p, "help.tip.directives");
   }
@@ -873,81 +1748,22 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
 
   private LecternHit findLecternBook(Player p, double radius) {
     Location origin = p.getLocation();
-    World world = origin.getWorld();
-    if (world == null) return null;
-
-    int range = (int) Math.ceil(radius);
-    double bestDistSq = radius * radius;
-    LecternHit best = null;
-
-    for (int dx = -range; dx <= range; dx++) {
-      for (int dy = -range; dy <= range; dy++) {
-        for (int dz = -range; dz <= range; dz++) {
-          Block block =
-              world.getBlockAt(
-                  origin.getBlockX() + dx, origin.getBlockY() + dy, origin.getBlockZ() + dz);
-          if (block.getType() != Material.LECTERN) continue;
-          Location blockCenter =
-              block.getLocation().add(0.5, 0.5, 0.5); // center to measure distance
-          double distSq = blockCenter.distanceSquared(origin);
-          if (distSq > bestDistSq) continue;
-
-          if (!(block.getState() instanceof Lectern lectern)) continue;
-          org.bukkit.inventory.Inventory inv = lectern.getInventory();
-          if (inv == null) continue;
-          ItemStack book = inv.getItem(0);
-          if (!isBook(book)) continue;
-
-          if (best == null || distSq < best.distanceSq) {
-            best = new LecternHit(book.clone(), distSq);
-          }
-        }
-      }
-    }
-    return best;
+    Lectern lectern = lecterns.nearestWithBook(origin, radius);
+    if (lectern == null) return null;
+    Location blockCenter = lectern.getLocation().add(0.5, 0.5, 0.5);
+    return new LecternHit(
+        lectern.getInventory().getItem(0).clone(), blockCenter.distanceSquared(origin));
   }
 
   private boolean placeBookOnLectern(Player player, ItemStack book, double radius) {
     if (book == null) return false;
-    Location origin = player.getLocation();
-    World world = origin.getWorld();
-    if (world == null) return false;
-
-    int range = (int) Math.ceil(radius);
-    double bestDistSq = radius * radius;
-    Lectern bestLectern = null;
-
-    for (int dx = -range; dx <= range; dx++) {
-      for (int dy = -range; dy <= range; dy++) {
-        for (int dz = -range; dz <= range; dz++) {
-          Block block =
-              world.getBlockAt(
-                  origin.getBlockX() + dx, origin.getBlockY() + dy, origin.getBlockZ() + dz);
-          if (block.getType() != Material.LECTERN) continue;
-          Location blockCenter = block.getLocation().add(0.5, 0.5, 0.5);
-          double distSq = blockCenter.distanceSquared(origin);
-          if (distSq > bestDistSq) continue;
-
-          if (!(block.getState() instanceof Lectern lectern)) continue;
-          org.bukkit.inventory.Inventory inv = lectern.getInventory();
-          if (inv == null) continue;
-          ItemStack slot = inv.getItem(0);
-          if (!isLecternSlotEmpty(slot)) continue;
-
-          if (bestLectern == null || distSq < bestDistSq) {
-            bestDistSq = distSq;
-            bestLectern = lectern;
-          }
-        }
-      }
-    }
-
-    if (bestLectern == null) return false;
+    Lectern lectern = lecterns.nearestEmpty(player.getLocation(), radius);
+    if (lectern == null) return false;
 
     ItemStack toPlace = book.clone();
     toPlace.setAmount(1);
-    bestLectern.getInventory().setItem(0, toPlace);
-    bestLectern.update();
+    lectern.getInventory().setItem(0, toPlace);
+    lectern.update();
     return true;
   }
 
@@ -973,10 +1789,6 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     }
   }
 
-  private boolean isLecternSlotEmpty(ItemStack stack) {
-    return stack == null || stack.getType() == Material.AIR || stack.getAmount() <= 0;
-  }
-
   private BookPayload extractBookPayload(ItemStack book) {
     if (book == null) return null;
     if (!(book.getItemMeta() instanceof BookMeta meta)) return null;
@@ -986,7 +1798,7 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
 
     String raw = String.join("\n", pages);
     ModePrefixResult prefix = parseBookMode(raw);
-    BookDirectives directives = parseBookDirectives(prefix.content);
+    BookDirectives directives = BookDirectives.parse(prefix.content);
     return new BookPayload(
         directives.content,
         prefix.mode,
@@ -1072,184 +1884,6 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     };
   }
 
-  private BookDirectives parseBookDirectives(String content) {
-    if (content == null)
-      return new BookDirectives("", null, null, null, null, null, false, null, null, null, null, null);
-    String working = content.stripLeading();
-    Integer size = null;
-    Color color = null;
-    Integer gx = null;
-    Integer gy = null;
-    Integer lineHeight = null;
-    boolean clearBefore = false;
-    Integer boardWidth = null;
-    Integer boardHeight = null;
-    Boolean lockOn = null;
-    String providedPassword = null;
-    String newPassword = null;
-
-    while (true) {
-      String trimmed = working.stripLeading();
-      if (!trimmed.startsWith("[")) break;
-      int close = trimmed.indexOf(']');
-      if (close < 0) break;
-
-      String token = trimmed.substring(1, close).trim();
-      String remainder = trimmed.substring(close + 1);
-      boolean matched = false;
-      String lower = token.toLowerCase(Locale.ROOT);
-
-      if (lower.startsWith("size")) {
-        Integer value = parseFirstInt(token);
-        if (value != null) {
-          size = clamp(value, 8, 64);
-          matched = true;
-        }
-      } else if (lower.startsWith("line")) {
-        Integer value = parseFirstInt(token);
-        if (value != null) {
-          lineHeight = clamp(value, 8, 256);
-          matched = true;
-        }
-      } else if (lower.equals("clear")) {
-        clearBefore = true;
-        matched = true;
-      } else if (lower.startsWith("color")) {
-        String arg = token.replaceFirst("(?i)color", "").trim();
-        while (!arg.isEmpty()
-            && (arg.charAt(0) == '=' || arg.charAt(0) == ':' || arg.charAt(0) == ',')) {
-          arg = arg.substring(1).trim();
-        }
-        if (arg.isEmpty()) arg = token;
-        Color parsed = tryParseColorToken(arg);
-        if (parsed == null) parsed = tryParseColorToken(token);
-        if (parsed != null) {
-          color = parsed;
-          matched = true;
-        }
-      } else if (lower.startsWith("pos") || lower.startsWith("xy") || lower.startsWith("offset")) {
-        Integer[] pos = parsePositionToken(token);
-        if (pos != null) {
-          gx = pos[0];
-          gy = pos[1];
-          matched = true;
-        }
-      } else if (lower.startsWith("boardsize")) {
-        Integer[] dims = parseBoardSizeToken(token);
-        if (dims != null) {
-          boardWidth = Math.max(1, dims[0]);
-          boardHeight = Math.max(1, dims[1]);
-          matched = true;
-        }
-      } else if (lower.startsWith("password")) {
-        String value = extractDirectiveValue(token, "password");
-        if (value != null) {
-          newPassword = value;
-          matched = true;
-        }
-      } else if (lower.startsWith("pass")) {
-        String value = extractDirectiveValue(token, "pass");
-        if (value != null) {
-          if (providedPassword == null) {
-            providedPassword = value;
-          }
-          matched = true;
-        }
-      } else if (lower.startsWith("lock")) {
-        String arg = token.replaceFirst("(?i)lock", "").trim().toLowerCase(Locale.ROOT);
-        if (arg.isEmpty() || arg.equals("on")) {
-          lockOn = true;
-          matched = true;
-        } else if (arg.equals("off")) {
-          lockOn = false;
-          matched = true;
-        }
-      }
-
-      if (matched) {
-        working = remainder;
-      } else {
-        break;
-      }
-    }
-    return new BookDirectives(
-        working.stripLeading(),
-        size,
-        color,
-        gx,
-        gy,
-        lineHeight,
-        clearBefore,
-        boardWidth,
-        boardHeight,
-        lockOn,
-        providedPassword,
-        newPassword);
-  }
-
-  private Integer parseFirstInt(String token) {
-    java.util.regex.Matcher matcher = INT_PATTERN.matcher(token);
-    if (!matcher.find()) return null;
-    try {
-      return Integer.parseInt(matcher.group());
-    } catch (NumberFormatException e) {
-      return null;
-    }
-  }
-
-  private Integer[] parsePositionToken(String token) {
-    java.util.regex.Matcher matcher = INT_PATTERN.matcher(token);
-    if (!matcher.find()) return null;
-    Integer x;
-    Integer y = 0;
-    try {
-      x = Integer.parseInt(matcher.group());
-    } catch (NumberFormatException e) {
-      return null;
-    }
-    if (matcher.find()) {
-      try {
-        y = Integer.parseInt(matcher.group());
-      } catch (NumberFormatException e) {
-        y = 0;
-      }
-    }
-    return new Integer[] {x, y};
-  }
-
-  private Integer[] parseBoardSizeToken(String token) {
-    java.util.regex.Matcher matcher = INT_PATTERN.matcher(token);
-    if (!matcher.find()) return null;
-    Integer w;
-    Integer h;
-    try {
-      w = Math.max(1, Integer.parseInt(matcher.group()));
-    } catch (NumberFormatException e) {
-      return null;
-    }
-    if (!matcher.find()) return null;
-    try {
-      h = Math.max(1, Integer.parseInt(matcher.group()));
-    } catch (NumberFormatException e) {
-      return null;
-    }
-    return new Integer[] {w, h};
-  }
-
-  private String extractDirectiveValue(String token, String keyword) {
-    if (token == null || keyword == null) return null;
-    String remainder = token.replaceFirst("(?i)^" + keyword, "").trim();
-    while (!remainder.isEmpty()) {
-      char ch = remainder.charAt(0);
-      if (ch == '=' || ch == ':' || ch == ',') {
-        remainder = remainder.substring(1).trim();
-        continue;
-      }
-      break;
-    }
-    return remainder.isEmpty() ? null : remainder;
-  }
-
   private ParsedBookCommand parseBookArguments(String[] subArgs, boolean htmlMode) {
     int size = 16;
     Color color = Color.BLACK;
@@ -1264,7 +1898,7 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     }
 
     if (index < subArgs.length) {
-      Color parsedColor = tryParseColorToken(subArgs[index]);
+      Color parsedColor = CssColors.parseToken(subArgs[index]);
       if (parsedColor != null) {
         color = parsedColor;
         index++;
@@ -1282,7 +1916,7 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     }
 
     if (index < subArgs.length && isInteger(subArgs[index])) {
-      lineHeight = clamp(parseIntSafe(subArgs[index], defaultLineHeight(size)), 8, 256);
+      lineHeight = clamp(parseIntSafe(subArgs[index], TextLayout.defaultLineHeight(size)), 8, 256);
       index++;
     }
 
@@ -1294,501 +1928,292 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
         size, color, gx, gy, lineHeight, Collections.unmodifiableList(extras));
   }
 
-  private List<HtmlToken> createPlainTextTokens(String text, Color color, int size) {
-    List<HtmlToken> tokens = new ArrayList<>();
-    if (text == null || text.isEmpty()) return tokens;
-    String normalized = text.replace("\r", "");
-    StringBuilder current = new StringBuilder();
-    boolean lineStart = true;
-    boolean pendingSpace = false;
-    for (int i = 0; i < normalized.length(); i++) {
-      char ch = normalized.charAt(i);
-      if (ch == '\n') {
-        if (current.length() > 0) {
-          tokens.add(HtmlToken.text(current.toString(), color, size));
-          current.setLength(0);
-        }
-        tokens.add(HtmlToken.lineBreak());
-        lineStart = true;
-        pendingSpace = false;
-        continue;
-      }
-      if (Character.isWhitespace(ch)) {
-        if (!lineStart) pendingSpace = true;
-        continue;
-      }
-      if (pendingSpace) {
-        if (current.length() == 0) current.append(' ');
-        else current.append(' ');
-        pendingSpace = false;
-      }
-      current.append(ch);
-      lineStart = false;
-    }
-    if (current.length() > 0) {
-      tokens.add(HtmlToken.text(current.toString(), color, size));
-    }
-    return tokens;
-  }
-
-  private int renderPlainText(
-      BoardGroup group, String text, int size, Color color, int gx, int gy, Integer customLineH) {
-    List<HtmlToken> tokens = createPlainTextTokens(text, color, size);
-    if (tokens.isEmpty()) return 0;
-    int lineHeight =
-        clamp(customLineH != null ? customLineH : defaultLineHeight(size), 8, 256);
-    return renderTokens(group, tokens, gx, gy, lineHeight);
-  }
+  /* ====== 本・HTML の反映：解析とレイアウトはワーカー、反映はメインスレッド ====== */
 
-  private int renderHtmlText(
+  private void submitText(
       BoardGroup group,
-      String html,
+      RenderMode mode,
+      String text,
       int defaultSize,
       Color defaultColor,
       int gx,
       int gy,
-      Integer customLineH) {
-    List<HtmlToken> tokens = parseHtmlTokens(html, defaultColor, defaultSize);
-    if (tokens.isEmpty()) return 0;
+      Integer customLineH,
+      IntConsumer onApplied) {
     int lineHeight =
-        clamp(customLineH != null ? customLineH : defaultLineHeight(defaultSize), 8, 256);
-    return renderTokens(group, tokens, gx, gy, lineHeight);
-  }
-
-  private int renderTokens(
-      BoardGroup group, List<HtmlToken> tokens, int gx, int gy, int baseLineHeight) {
-    Font baseFont = resolveBaseFont(group);
-    int canvasWidth = group.W * 128;
-
-    TextAction action = new TextAction();
-    int x = gx;
-    int y = gy;
-    int lineHeight = baseLineHeight;
-    boolean added = false;
-
-    for (HtmlToken token : tokens) {
-      if (token.lineBreak) {
-        x = 0;
-        y += lineHeight;
-        lineHeight = baseLineHeight;
-        continue;
-      }
-      if (token.text == null || token.text.isEmpty()) continue;
-
-      Font font = baseFont.deriveFont((float) token.size);
-      int tokenLineHeight = defaultLineHeight(token.size);
-      if (tokenLineHeight > lineHeight) lineHeight = tokenLineHeight;
-
-      int idx = 0;
-      String text = token.text;
-      while (idx < text.length()) {
-        while (idx < text.length() && text.charAt(idx) == ' ' && x == 0) idx++;
-        if (idx >= text.length()) break;
-
-        int remaining = canvasWidth - x;
-        if (remaining <= 0) {
-          x = 0;
-          y += lineHeight;
-          lineHeight = Math.max(baseLineHeight, tokenLineHeight);
-          continue;
-        }
-
-        int next = findWrapPoint(text, idx, font, remaining);
-        if (next <= idx) {
-          if (x != 0) {
-            x = 0;
-            y += lineHeight;
-            lineHeight = Math.max(baseLineHeight, tokenLineHeight);
-            continue;
-          }
-          next = Math.min(idx + 1, text.length());
-        }
-
-        String piece = text.substring(idx, next);
-        if (piece.isBlank()) {
-          idx = next;
-          continue;
-        }
-
-        TextAtom atom = new TextAtom(piece, token.size, token.color, x, y);
-        action.atoms.add(atom);
-        applyTextAtom(group, atom, action.id);
-        added = true;
-
-        x += measureWidth(font, piece);
-        idx = next;
-
-        if (idx < text.length()) {
-          x = 0;
-          y += lineHeight;
-          lineHeight = Math.max(baseLineHeight, tokenLineHeight);
-        }
-      }
+        clamp(customLineH != null ? customLineH : TextLayout.defaultLineHeight(defaultSize), 8, 256);
+    submitLayout(
+        group,
+        new LayoutRequest(mode, text, defaultSize, defaultColor, gx, gy, lineHeight),
+        0,
+        onApplied);
+  }
+
+  private void submitLayout(
+      BoardGroup group, LayoutRequest request, int attempt, IntConsumer onApplied) {
+    LayoutJob job = new LayoutJob(group, request);
+    pipeline.submit(
+        job::run,
+        result -> rasterizeLayout(result, attempt, onApplied),
+        () -> onApplied.accept(LAYOUT_FAILED));
+  }
+
+  // onApplied の値が「何も反映していない」ことを表していれば理由を送って true
+  private boolean sendLayoutFailure(Player player, int added) {
+    switch (added) {
+      case LAYOUT_DISCARDED:
+        messages.send(player, "book.fontChanged");
+        return true;
+      case LAYOUT_STALE:
+        messages.send(player, "book.boardChanged");
+        return true;
+      case LAYOUT_FAILED:
+        messages.send(player, "book.failed");
+        return true;
+      default:
+        return false;
     }
-
-    if (!added) return 0;
-    group.redo.clear();
-    group.undo.push(action);
-    return action.atoms.size();
   }
 
-  private List<HtmlToken> parseHtmlTokens(String html, Color defaultColor, int defaultSize) {
-    List<HtmlToken> tokens = new ArrayList<>();
-    if (html == null || html.isEmpty()) return tokens;
-
-    String input = html.replace("\r", "");
-    Deque<HtmlStyle> stack = new ArrayDeque<>();
-    stack.push(new HtmlStyle(defaultColor, defaultSize));
-
-    StringBuilder buffer = new StringBuilder();
-    int i = 0;
-    while (i < input.length()) {
-      char ch = input.charAt(i);
-      if (ch == '<') {
-        if (buffer.length() > 0) {
-          emitHtmlText(buffer, stack.peek(), tokens);
-          buffer.setLength(0);
-        }
-
-        int close = input.indexOf('>', i + 1);
-        if (close == -1) break;
-        String raw = input.substring(i + 1, close).trim();
-        boolean closing = raw.startsWith("/");
-        boolean selfClosing = raw.endsWith("/");
-        String content = raw;
-        if (closing) content = raw.substring(1).trim();
-        if (selfClosing) content = content.substring(0, content.length() - 1).trim();
-
-        String name = content;
-        String attrPart = "";
-        int spaceIdx = content.indexOf(' ');
-        if (spaceIdx >= 0) {
-          name = content.substring(0, spaceIdx);
-          attrPart = content.substring(spaceIdx + 1);
-        }
-        name = name.toLowerCase(Locale.ROOT);
-        Map<String, String> attrs = parseHtmlAttributes(attrPart);
-
-        if (closing) {
-          if ((name.equals("span") || name.equals("font")) && stack.size() > 1) {
-            stack.pop();
-          } else if (name.equals("p") || name.equals("div")) {
-            tokens.add(HtmlToken.lineBreak());
-            tokens.add(HtmlToken.lineBreak());
-          }
-        } else {
-          if (name.equals("br")) {
-            tokens.add(HtmlToken.lineBreak());
-          } else if (name.equals("p") || name.equals("div")) {
-            if (!tokens.isEmpty() && !tokens.get(tokens.size() - 1).lineBreak) {
-              tokens.add(HtmlToken.lineBreak());
-            }
-            tokens.add(HtmlToken.lineBreak());
-          } else if (name.equals("span") || name.equals("font")) {
-            HtmlStyle child = deriveStyleFromAttributes(stack.peek(), attrs);
-            stack.push(child);
-            if (selfClosing && stack.size() > 1) stack.pop();
-          }
-        }
-
-        i = close + 1;
-        continue;
-      }
-
-      if (ch == '&') {
-        int semi = input.indexOf(';', i + 1);
-        if (semi > i) {
-          buffer.append(decodeHtmlEntity(input.substring(i + 1, semi)));
-          i = semi + 1;
-          continue;
-        }
-      }
-
-      buffer.append(ch);
-      i++;
+  // レイアウト結果が載るタイルだけを写し取り、ワーカーで描く
+  private void rasterizeLayout(LayoutResult result, int attempt, IntConsumer onApplied) {
+    if (!layoutUsable(result, attempt, onApplied)) return;
+    if (result.action.atoms.isEmpty()) {
+      onApplied.accept(0);
+      return;
     }
-
-    if (buffer.length() > 0) {
-      emitHtmlText(buffer, stack.peek(), tokens);
+    RasterJob raster = new RasterJob(result);
+    pipeline.submit(
+        raster::run,
+        pixels -> publishLayout(raster, pixels, attempt, onApplied),
+        () -> onApplied.accept(LAYOUT_FAILED));
+  }
+
+  // ボードが破棄されていたら false。レイアウトに使ったフォントが変わっていたらやり直して false
+  // （グリッドの形はボードが作り直されない限り変わらないので、フォントだけ見ればよい）。
+  // やり直しを使い切っても変わっていれば、古いフォントの結果は載せずに LAYOUT_DISCARDED を知らせる
+  private boolean layoutUsable(LayoutResult result, int attempt, IntConsumer onApplied) {
+    LayoutJob job = result.job;
+    BoardGroup group = job.group;
+    if (groups.get(group.id) != group) return false; // 破棄済み
+    if (resolveBaseFont(group).equals(job.baseFont)) return true;
+    if (attempt < LAYOUT_RETRIES) {
+      submitLayout(group, job.request, attempt + 1, onApplied);
+    } else {
+      onApplied.accept(LAYOUT_DISCARDED);
     }
-    return tokens;
+    return false;
   }
 
-  private void emitHtmlText(StringBuilder buffer, HtmlStyle style, List<HtmlToken> tokens) {
-    if (buffer.isEmpty()) return;
-    String raw = buffer.toString();
-    buffer.setLength(0);
-
-    StringBuilder current = new StringBuilder();
-    boolean lineStart = tokens.isEmpty() || tokens.get(tokens.size() - 1).lineBreak;
-    boolean pendingSpace = false;
-    for (int i = 0; i < raw.length(); i++) {
-      char ch = raw.charAt(i);
-      if (ch == '\n') {
-        if (current.length() > 0) {
-          tokens.add(HtmlToken.text(current.toString(), style.color, style.size));
-          current.setLength(0);
-        }
-        tokens.add(HtmlToken.lineBreak());
-        lineStart = true;
-        pendingSpace = false;
-        continue;
-      }
-      if (Character.isWhitespace(ch)) {
-        if (!lineStart) pendingSpace = true;
-        continue;
-      }
-      if (pendingSpace) {
-        if (current.length() == 0) current.append(' ');
-        else current.append(' ');
-        pendingSpace = false;
-      }
-      current.append(ch);
-      lineStart = false;
-    }
-    if (current.length() > 0) {
-      tokens.add(HtmlToken.text(current.toString(), style.color, style.size));
-    }
-  }
-
-  private Map<String, String> parseHtmlAttributes(String raw) {
-    Map<String, String> map = new HashMap<>();
-    if (raw == null || raw.isEmpty()) return map;
-    int i = 0;
-    while (i < raw.length()) {
-      while (i < raw.length() && Character.isWhitespace(raw.charAt(i))) i++;
-      if (i >= raw.length()) break;
-      int eq = raw.indexOf('=', i);
-      if (eq == -1) break;
-      String key = raw.substring(i, eq).trim().toLowerCase(Locale.ROOT);
-      i = eq + 1;
-      if (i >= raw.length()) break;
-
-      char quote = raw.charAt(i);
-      String value;
-      if (quote == '"' || quote == '\'') {
-        i++;
-        int end = raw.indexOf(quote, i);
-        if (end == -1) {
-          value = raw.substring(i);
-          i = raw.length();
-        } else {
-          value = raw.substring(i, end);
-          i = end + 1;
-        }
+  // ワーカーの結果をボードへ反映する。写した後に盤面が変わっていたら結果は載せず、
+  // 今の盤面を写し直して描き直す（やり直しを使い切ったら LAYOUT_STALE を知らせる）
+  private void publishLayout(
+      RasterJob raster, Map<Integer, byte[]> pixels, int attempt, IntConsumer onApplied) {
+    LayoutResult result = raster.layout;
+    if (!layoutUsable(result, attempt, onApplied)) return;
+    BoardGroup group = result.job.group;
+    if (group.sequence != raster.sequence) {
+      if (attempt < LAYOUT_RETRIES) {
+        rasterizeLayout(result, attempt + 1, onApplied);
       } else {
-        int end = i;
-        while (end < raw.length() && !Character.isWhitespace(raw.charAt(end))) end++;
-        value = raw.substring(i, end);
-        i = end;
-      }
-      map.put(key, value);
-    }
-    return map;
-  }
-
-  private HtmlStyle deriveStyleFromAttributes(HtmlStyle parent, Map<String, String> attrs) {
-    Color color = parent.color;
-    int size = parent.size;
-
-    if (attrs.containsKey("color")) color = parseCssColor(attrs.get("color"), color);
-    if (attrs.containsKey("size")) size = clamp(parseFontSize(attrs.get("size"), size), 8, 256);
-    if (attrs.containsKey("font-size"))
-      size = clamp(parseFontSize(attrs.get("font-size"), size), 8, 256);
-    if (attrs.containsKey("style")) {
-      String styleDecl = attrs.get("style");
-      for (String decl : styleDecl.split(";")) {
-        int colon = decl.indexOf(':');
-        if (colon == -1) continue;
-        String key = decl.substring(0, colon).trim().toLowerCase(Locale.ROOT);
-        String value = decl.substring(colon + 1).trim();
-        if (key.equals("color")) color = parseCssColor(value, color);
-        if (key.equals("font-size")) size = clamp(parseFontSize(value, size), 8, 256);
+        onApplied.accept(LAYOUT_STALE);
       }
+      return;
     }
-    return new HtmlStyle(color, size);
-  }
 
-  private int parseFontSize(String raw, int current) {
-    if (raw == null) return current;
-    String v = raw.trim().toLowerCase(Locale.ROOT);
-    if (v.endsWith("px")) v = v.substring(0, v.length() - 2).trim();
-    if (v.endsWith("%")) {
-      try {
-        double pct = Double.parseDouble(v.substring(0, v.length() - 1));
-        return Math.max(1, (int) Math.round(current * pct / 100.0));
-      } catch (NumberFormatException ignored) {
-      }
-      return current;
-    }
-    if (v.endsWith("em")) {
-      try {
-        double em = Double.parseDouble(v.substring(0, v.length() - 2));
-        return Math.max(1, (int) Math.round(current * em));
-      } catch (NumberFormatException ignored) {
-        return current;
+    TextAction action = result.action;
+    for (Map.Entry<Integer, List<TextEntry>> e : result.entries.entrySet()) {
+      int index = e.getKey();
+      WhiteboardRenderer renderer = group.tiles[index / group.W][index % group.W];
+      if (renderer == null) continue;
+      renderer.publish(e.getValue(), pixels.get(index));
+    }
+    action.tiles.clear();
+    for (int index : result.entries.keySet()) action.tiles.set(index);
+    group.history.push(action);
+    markChanged(group);
+    onApplied.accept(action.atoms.size());
+  }
+
+  // レイアウトに使う入力は、投入時にメインスレッドで写し取る（既存の文字は要らない）
+  private final class LayoutJob {
+    final BoardGroup group;
+    final LayoutRequest request;
+    final Font baseFont;
+    final int canvasWidth;
+    final int[] tileX; // タイル番号 (y*W+x) -> グループ内の列
+    final int[] tileY; // タイル番号 (y*W+x) -> グループ内の行
+
+    LayoutJob(BoardGroup group, LayoutRequest request) {
+      this.group = group;
+      this.request = request;
+      this.baseFont = resolveBaseFont(group);
+      this.canvasWidth = group.W * 128;
+      int count = group.W * group.H;
+      this.tileX = new int[count];
+      this.tileY = new int[count];
+      for (int ty = 0; ty < group.H; ty++) {
+        for (int tx = 0; tx < group.W; tx++) {
+          int index = ty * group.W + tx;
+          WhiteboardRenderer r = group.tiles[ty][tx];
+          int[] pos = tileGridPosition(group, tx, ty);
+          tileX[index] = (r == null || pos == null) ? -1 : pos[0];
+          tileY[index] = (r == null || pos == null) ? -1 : pos[1];
+        }
       }
     }
-    return Math.max(1, parseIntSafe(v, current));
-  }
 
-  private int findWrapPoint(String text, int start, Font font, int maxWidth) {
-    int len = text.length();
-    int best = start;
-    int lastSpace = -1;
-    for (int i = start; i < len; i++) {
-      char ch = text.charAt(i);
-      if (ch == ' ') lastSpace = i;
-      int width = measureWidth(font, text.substring(start, i + 1));
-      if (width <= maxWidth) {
-        best = i + 1;
-      } else {
-        if (lastSpace >= start && lastSpace < i) return lastSpace + 1;
-        return best;
+    // ワーカースレッドで実行：解析 → レイアウト → タイル分配
+    LayoutResult run() {
+      long start = System.nanoTime();
+      LayoutRequest req = request;
+      List<HtmlToken> tokens =
+          (req.mode == RenderMode.PLAIN)
+              ? HtmlParser.plainTokens(req.text, req.defaultColor, req.defaultSize)
+              : HtmlParser.parse(req.text, req.defaultColor, req.defaultSize);
+      TextAction action =
+          TextLayout.layout(tokens, baseFont, canvasWidth, req.gx, req.gy, req.lineHeight);
+
+      Map<Integer, List<TextEntry>> entries = new HashMap<>();
+      for (TextAtom atom : action.atoms) {
+        Rectangle bounds = textBounds(baseFont, atom);
+        int placed = 0;
+        for (int index = 0; index < tileX.length; index++) {
+          int ix = tileX[index];
+          int iy = tileY[index];
+          if (ix < 0) continue;
+          if (!bounds.intersects(ix * 128, iy * 128, 128, 128)) continue;
+          placed++;
+          entries
+              .computeIfAbsent(index, k -> new ArrayList<>())
+              .add(
+                  new TextEntry(
+                      atom.msg, atom.size, atom.col, atom.gx - ix * 128, atom.gy - iy * 128,
+                      action.id));
+        }
+        if (group.stats != null) group.stats.recordFanOut(placed);
+      }
+      return new LayoutResult(this, action, entries, System.nanoTime() - start);
+    }
+  }
+
+  // 描画に使う入力は、レイアウト後にメインスレッドで「文字が載るタイルだけ」写し取る
+  private static final class RasterJob {
+    final LayoutResult layout;
+    final int sequence;
+    final int[] indices; // タイル番号
+    final Color[] backgrounds;
+    final byte[][] images;
+    final boolean[] borders;
+    final Font[] fonts;
+    final TileTexts[] existing; // タイルごとの写し（ワーカーがそのまま書き足す）
+
+    RasterJob(LayoutResult layout) {
+      BoardGroup group = layout.job.group;
+      this.layout = layout;
+      this.sequence = group.sequence;
+      int count = layout.entries.size();
+      this.indices = new int[count];
+      this.backgrounds = new Color[count];
+      this.images = new byte[count][];
+      this.borders = new boolean[count];
+      this.fonts = new Font[count];
+      this.existing = new TileTexts[count];
+      int i = 0;
+      for (int index : layout.entries.keySet()) {
+        WhiteboardRenderer r = group.tiles[index / group.W][index % group.W];
+        indices[i] = index;
+        backgrounds[i] = r == null ? null : r.getBackground();
+        images[i] = r == null ? null : r.getImage();
+        borders[i] = r != null && r.isBorderVisible();
+        fonts[i] = r == null ? null : r.getBaseFont();
+        existing[i] = r == null ? null : r.snapshotTexts();
+        i++;
       }
     }
-    return best;
-  }
 
-  private Font resolveBaseFont(BoardGroup group) {
-    for (int y = 0; y < group.H; y++) {
-      for (int x = 0; x < group.W; x++) {
-        WhiteboardRenderer renderer = group.tiles[y][x];
-        if (renderer != null) return renderer.getBaseFont();
+    // ワーカースレッドで実行：タイルごとにラスタライズ
+    Map<Integer, byte[]> run() {
+      long start = System.nanoTime();
+      Map<Integer, byte[]> pixels = new HashMap<>();
+      for (int i = 0; i < indices.length; i++) {
+        TileTexts all = existing[i];
+        if (all == null) continue;
+        for (TextEntry te : layout.entries.get(indices[i])) all.add(te);
+        byte[] out = new byte[128 * 128];
+        TileRasterizer.rasterize(backgrounds[i], borders[i], fonts[i], all, images[i], out);
+        pixels.put(indices[i], out);
       }
+      BoardStats stats = layout.job.group.stats;
+      if (stats != null) stats.recordLayout(layout.nanos + System.nanoTime() - start);
+      return pixels;
     }
-    return new Font("Noto Sans CJK JP", Font.PLAIN, 16);
   }
 
-  private static int defaultLineHeight(int size) {
-    return Math.max(8, (int) Math.round(size * 1.25));
-  }
-
-  private static int measureWidth(Font font, String text) {
-    if (text == null || text.isEmpty()) return 0;
-    Rectangle2D bounds = font.getStringBounds(text, FONT_CONTEXT);
-    return (int) Math.ceil(bounds.getWidth());
-  }
+  private static final class LayoutRequest {
+    final RenderMode mode;
+    final String text;
+    final int defaultSize;
+    final Color defaultColor;
+    final int gx;
+    final int gy;
+    final int lineHeight;
 
-  private String decodeHtmlEntity(String entity) {
-    String key = entity.trim();
-    if (key.isEmpty()) return "";
-    if (key.startsWith("#x") || key.startsWith("#X")) {
-      try {
-        int code = Integer.parseInt(key.substring(2), 16);
-        return Character.toString((char) code);
-      } catch (NumberFormatException ignored) {
-        return "&" + entity + ";";
-      }
-    }
-    if (key.startsWith("#")) {
-      try {
-        int code = Integer.parseInt(key.substring(1));
-        return Character.toString((char) code);
-      } catch (NumberFormatException ignored) {
-        return "&" + entity + ";";
-      }
+    LayoutRequest(
+        RenderMode mode,
+        String text,
+        int defaultSize,
+        Color defaultColor,
+        int gx,
+        int gy,
+        int lineHeight) {
+      this.mode = mode;
+      this.text = text;
+      this.defaultSize = defaultSize;
+      this.defaultColor = defaultColor;
+      this.gx = gx;
+      this.gy = gy;
+      this.lineHeight = lineHeight;
     }
-    return switch (key.toLowerCase(Locale.ROOT)) {
-      case "lt" -> "<";
-      case "gt" -> ">";
-      case "amp" -> "&";
-      case "quot" -> "\"";
-      case "apos" -> "'";
-      case "nbsp" -> " ";
-      default -> "&" + entity + ";";
-    };
   }
 
-  private static Color parseCssColor(String raw, Color fallback) {
-    if (raw == null) return fallback;
-    String v = raw.trim();
-    if (v.isEmpty()) return fallback;
-    String lower = v.toLowerCase(Locale.ROOT);
-    if (lower.startsWith("rgb(") && lower.endsWith(")")) {
-      String inner = lower.substring(4, lower.length() - 1);
-      String[] parts = inner.split(",");
-      if (parts.length == 3) {
-        try {
-          int r = clamp(parseCssColorComponent(parts[0]), 0, 255);
-          int g = clamp(parseCssColorComponent(parts[1]), 0, 255);
-          int b = clamp(parseCssColorComponent(parts[2]), 0, 255);
-          return new Color(r, g, b);
-        } catch (NumberFormatException ignored) {
-          return fallback;
-        }
-      }
-      return fallback;
-    }
-    Color named = CSS_COLOR_MAP.get(lower.replace(" ", ""));
-    if (named != null) return named;
-    return parseHtmlColor(v, fallback);
-  }
+  private static final class LayoutResult {
+    final LayoutJob job;
+    final TextAction action;
+    final Map<Integer, List<TextEntry>> entries; // タイル番号 -> 追加分
+    final long nanos; // 解析・レイアウトにかかった時間
 
-  private static int parseCssColorComponent(String raw) {
-    String v = raw.trim();
-    if (v.endsWith("%")) {
-      double pct = Double.parseDouble(v.substring(0, v.length() - 1));
-      return (int) Math.round(255 * (pct / 100.0));
+    LayoutResult(
+        LayoutJob job, TextAction action, Map<Integer, List<TextEntry>> entries, long nanos) {
+      this.job = job;
+      this.action = action;
+      this.entries = entries;
+      this.nanos = nanos;
     }
-    return Integer.parseInt(v);
   }
 
-  private Color tryParseColorToken(String token) {
-    if (token == null) return null;
-    String trimmed = token.trim();
-    if (trimmed.isEmpty()) return null;
-    String normalized = trimmed.toLowerCase(Locale.ROOT).replace(" ", "");
-
-    Color named = CSS_COLOR_MAP.get(normalized);
-    if (named != null) return named;
-
-    if (normalized.startsWith("rgb(") && normalized.endsWith(")")) {
-      String inner = normalized.substring(4, normalized.length() - 1);
-      String[] parts = inner.split(",");
-      if (parts.length == 3) {
-        try {
-          int r = clamp(parseCssColorComponent(parts[0]), 0, 255);
-          int g = clamp(parseCssColorComponent(parts[1]), 0, 255);
-          int b = clamp(parseCssColorComponent(parts[2]), 0, 255);
-          return new Color(r, g, b);
-        } catch (Exception ignored) {
-          return null;
-        }
-      }
-      return null;
-    }
-
-    String hex = trimmed.startsWith("#") ? trimmed.substring(1) : trimmed;
-    if (hex.length() == 3 && isHexDigits(hex)) {
-      StringBuilder sb = new StringBuilder(6);
-      for (int i = 0; i < 3; i++) sb.append(hex.charAt(i)).append(hex.charAt(i));
-      hex = sb.toString();
-    }
-    if (hex.length() == 6 && isHexDigits(hex)) {
-      try {
-        return new Color(Integer.parseInt(hex, 16));
-      } catch (NumberFormatException ignored) {
-        return null;
+  static Font resolveBaseFont(BoardGroup group) {
+    if (group.font != null) return group.font;
+    for (int y = 0; y < group.H; y++) {
+      for (int x = 0; x < group.W; x++) {
+        WhiteboardRenderer renderer = group.tiles[y][x];
+        if (renderer != null) return renderer.getBaseFont();
       }
     }
-    return null;
-  }
-
-  private static boolean isHexDigits(String value) {
-    for (int i = 0; i < value.length(); i++) {
-      char c = value.charAt(i);
-      if (!(c >= '0' && c <= '9')
-          && !(c >= 'a' && c <= 'f')
-          && !(c >= 'A' && c <= 'F')) return false;
-    }
-    return true;
+    return new Font("Noto Sans CJK JP", Font.PLAIN, 16);
   }
 
   /* =================== ここからユーティリティ =================== */
 
   // どのグループか（視線先の額縁から特定）
   private BoardGroup requireGroupBySight(Player p) {
+    FrameIndex.Hit hit = frameIndex.trace(p.getEyeLocation(), 5.0);
+    if (hit != null) {
+      BoardGroup g = groups.get(hit.groupId);
+      if (g != null && g.baseTopLeft != null) return g;
+    }
+
+    // 索引に無い：エラーメッセージを出し分けるため、実際の額縁を調べる
     ItemFrame f = rayItemFrame(p, 5.0);
     MapView view = requireMapViewOnFrame(p, f);
     if (view == null) return null;
@@ -1822,27 +2247,50 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
   }
 
   private BoardGroup groupFromFrame(ItemFrame frame) {
+    MapView view = mapViewOf(frame);
+    if (view == null) return null;
+    String gid = mapToGroup.get(view.getId());
+    if (gid == null) return null;
+    return groups.get(gid);
+  }
+
+  private static MapView mapViewOf(ItemFrame frame) {
     if (frame == null) return null;
     ItemStack item = frame.getItem();
     if (item == null || item.getType() != Material.FILLED_MAP) return null;
     MapMeta meta = (MapMeta) item.getItemMeta();
     if (meta == null) return null;
-    MapView view = meta.getMapView();
-    if (view == null) return null;
-    String gid = mapToGroup.get(view.getId());
-    if (gid == null) return null;
-    return groups.get(gid);
+    return meta.getMapView();
   }
 
+  // ボード化前の額縁も含めて視線先を探す（エンティティ検索は1回だけ）
   private ItemFrame rayItemFrame(Player p, double maxDist) {
     Location eye = p.getEyeLocation();
-    for (double t = 0.0; t <= maxDist; t += 0.25) {
-      Location pos = eye.clone().add(eye.getDirection().multiply(t));
-      for (Entity e : pos.getWorld().getNearbyEntities(pos, 0.4, 0.4, 0.4)) {
-        if (e instanceof ItemFrame f) return f;
+    RayTraceResult result =
+        eye.getWorld()
+            .rayTraceEntities(eye, eye.getDirection(), maxDist, 0.4, e -> e instanceof ItemFrame);
+    if (result == null) return null;
+    return result.getHitEntity() instanceof ItemFrame f ? f : null;
+  }
+
+  private void indexFrames(BoardGroup g) {
+    for (int y = 0; y < g.H; y++) {
+      for (int x = 0; x < g.W; x++) {
+        frameIndex.add(g.centers[y][x], g.facing, g.frames[y][x], g.id);
       }
     }
-    return null;
+    lecterns.watchBoard(g.id, g.centers);
+    residency.track(g.id, g.tiles, g.centers);
+  }
+
+  private void unindexFrames(BoardGroup g) {
+    for (int y = 0; y < g.H; y++) {
+      for (int x = 0; x < g.W; x++) {
+        frameIndex.remove(g.centers[y][x], g.facing);
+      }
+    }
+    lecterns.unwatchBoard(g.id);
+    residency.untrack(g.id);
   }
 
   private ItemFrame ensureFrameExists(World world, Location center, BlockFace facing) {
@@ -1885,14 +2333,50 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     BookPayload payload = readBookPayload(player, held);
     if (payload == null) return true; // エラーメッセージは内部で表示済み
 
+    boolean fromMainHand = held == player.getInventory().getItemInMainHand();
+    boolean fromOffHand = !fromMainHand && held == player.getInventory().getItemInOffHand();
+    ItemStack heldCopy = held.clone();
+
     BoardGroup group = groupFromFrame(frame);
     if (group == null && payload.boardWidth != null && payload.boardHeight != null) {
-      group = createBoardFromFrame(player, frame, payload.boardWidth, payload.boardHeight, true);
-    }
-    if (group == null) return false;
-    if (!handlePasswordDirectives(player, group, payload.providedPassword, payload.newPassword)) {
+      // 額縁の自動配置が終わってから本の内容を反映する
+      createBoardFromFrame(
+          player,
+          frame,
+          payload.boardWidth,
+          payload.boardHeight,
+          true,
+          created -> applyBook(player, created, payload, fromMainHand, fromOffHand, heldCopy));
       return true;
     }
+    if (group == null) return false;
+    applyBook(player, group, payload, fromMainHand, fromOffHand, heldCopy);
+    return true;
+  }
+
+  private void applyBook(
+      Player player,
+      BoardGroup group,
+      BookPayload payload,
+      boolean fromMainHand,
+      boolean fromOffHand,
+      ItemStack heldCopy) {
+    handlePasswordDirectives(
+        player,
+        group,
+        payload.providedPassword,
+        payload.newPassword,
+        () -> applyCheckedBook(player, group, payload, fromMainHand, fromOffHand, heldCopy));
+  }
+
+  // パスワードの確認が済んだ本を反映する
+  private void applyCheckedBook(
+      Player player,
+      BoardGroup group,
+      BookPayload payload,
+      boolean fromMainHand,
+      boolean fromOffHand,
+      ItemStack heldCopy) {
     if (payload.lockOverride != null) {
       applyGroupLock(group, payload.lockOverride);
     }
@@ -1913,31 +2397,37 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
 
     RenderMode mode = payload.explicitMode ? payload.mode : RenderMode.HTML;
 
-    int added =
-        (mode == RenderMode.PLAIN)
-            ? renderPlainText(group, payload.text, size, color, gx, gy, lineHeight)
-            : renderHtmlText(group, payload.text, size, color, gx, gy, lineHeight);
-
-    if (added == 0) {
-      messages.send(player, "book.noneRendered");
-    } else {
-      messages.send(player, "book.applied");
-      if (!payload.fromLectern && held != null) {
-        boolean fromMainHand = held == player.getInventory().getItemInMainHand();
-        boolean fromOffHand =
-            !fromMainHand && held == player.getInventory().getItemInOffHand();
-        if (fromMainHand || fromOffHand) {
-          boolean placed = placeBookOnLectern(player, held, 5.0);
+    submitText(
+        group,
+        mode,
+        payload.text,
+        size,
+        color,
+        gx,
+        gy,
+        lineHeight,
+        added -> {
+          if (sendLayoutFailure(player, added)) return;
+          if (added == 0) {
+            messages.send(player, "book.noneRendered");
+            return;
+          }
+          messages.send(player, "book.applied");
+          if (payload.fromLectern || !(fromMainHand || fromOffHand)) return;
+          // レイアウト中に持ち替えていたら所見台には置かない
+          ItemStack current =
+              fromMainHand
+                  ? player.getInventory().getItemInMainHand()
+                  : player.getInventory().getItemInOffHand();
+          if (!isBook(current) || !current.isSimilar(heldCopy)) return;
+          boolean placed = placeBookOnLectern(player, current, 5.0);
           if (placed) {
             removeBookFromHand(player, fromMainHand);
             messages.send(player, "lectern.placed");
           } else {
             messages.send(player, "lectern.notFound");
           }
-        }
-      }
-    }
-    return true;
+        });
   }
 
   private static int parseIntSafe(String s, int def) {
@@ -1964,24 +2454,6 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     return Math.max(lo, Math.min(hi, v));
   }
 
-  private static Color parseHtmlColor(String s, Color def) {
-    if (s == null) return def;
-    String v = s.trim();
-    if (v.isEmpty()) return def;
-    if (v.charAt(0) == '#') v = v.substring(1);
-    if (v.length() == 3) {
-      StringBuilder sb = new StringBuilder(6);
-      for (int i = 0; i < 3; i++) sb.append(v.charAt(i)).append(v.charAt(i));
-      v = sb.toString();
-    }
-    if (v.length() != 6) return def;
-    try {
-      return new Color(Integer.parseInt(v, 16));
-    } catch (NumberFormatException e) {
-      return def;
-    }
-  }
-
   private static boolean fontFamilyExists(String family) {
     String[] names =
         GraphicsEnvironment.getLocalGraphicsEnvironment().getAvailableFontFamilyNames();
@@ -1999,38 +2471,6 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     };
   }
 
-  private static Map<String, Color> createCssColorMap() {
-    Map<String, Color> map = new HashMap<>();
-    map.put("black", new Color(0x000000));
-    map.put("white", new Color(0xFFFFFF));
-    map.put("red", new Color(0xFF0000));
-    map.put("green", new Color(0x008000));
-    map.put("blue", new Color(0x0000FF));
-    map.put("yellow", new Color(0xFFFF00));
-    map.put("cyan", new Color(0x00FFFF));
-    map.put("aqua", new Color(0x00FFFF));
-    map.put("magenta", new Color(0xFF00FF));
-    map.put("fuchsia", new Color(0xFF00FF));
-    map.put("gray", new Color(0x808080));
-    map.put("grey", new Color(0x808080));
-    map.put("lightgray", new Color(0xD3D3D3));
-    map.put("lightgrey", new Color(0xD3D3D3));
-    map.put("darkgray", new Color(0xA9A9A9));
-    map.put("darkgrey", new Color(0xA9A9A9));
-    map.put("orange", new Color(0xFFA500));
-    map.put("brown", new Color(0xA52A2A));
-    map.put("purple", new Color(0x800080));
-    map.put("pink", new Color(0xFFC0CB));
-    map.put("lime", new Color(0x00FF00));
-    map.put("navy", new Color(0x000080));
-    map.put("teal", new Color(0x008080));
-    map.put("olive", new Color(0x808000));
-    map.put("maroon", new Color(0x800000));
-    map.put("silver", new Color(0xC0C0C0));
-    map.put("gold", new Color(0xFFD700));
-    return Collections.unmodifiableMap(map);
-  }
-
   private void loadCustomFonts(File fontsDir) {
     if (!fontsDir.exists() || !fontsDir.isDirectory()) return;
     File[] files =
@@ -2090,40 +2530,114 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
   }
 
   /* ====== グループ座標系を使って “1行” を分配 ====== */
-  private void applyTextAtom(BoardGroup g, TextAtom a, UUID actionId) {
-    final double TOL = 0.75;
-    Vector ORG = g.baseTopLeft.toVector();
-    Vector RIGHT = g.rightUnit.clone();
-    Vector DOWN = g.downUnit.clone();
+  private void applyTextAtom(BoardGroup g, TextAtom a, TextAction action) {
+    applyTextAtom(g, a, action, resolveBaseFont(g));
+  }
+
+  // 文字列の描画範囲と重なるタイルにだけ TextEntry を追加し、操作にタイルを覚えさせる
+  static void applyTextAtom(BoardGroup g, TextAtom a, TextAction action, Font baseFont) {
+    Rectangle bounds = textBounds(baseFont, a);
+    int placed = 0;
 
     for (int ty = 0; ty < g.H; ty++)
       for (int tx = 0; tx < g.W; tx++) {
         WhiteboardRenderer r = g.tiles[ty][tx];
-        Location center = g.centers[ty][tx];
-        if (r == null || center == null) continue;
-
-        Vector rel = center.toVector().subtract(ORG);
-        double u = rel.dot(RIGHT);
-        double v = rel.dot(DOWN);
-        int ix = (int) Math.round(u);
-        int iy = (int) Math.round(v);
-        if (Math.abs(u - ix) > TOL || Math.abs(v - iy) > TOL) continue;
+        if (r == null) continue;
+        int[] pos = tileGridPosition(g, tx, ty);
+        if (pos == null) continue;
+        int ix = pos[0];
+        int iy = pos[1];
+        if (!bounds.intersects(ix * 128, iy * 128, 128, 128)) continue;
 
         int localX = a.gx - ix * 128;
         int localY = a.gy - iy * 128;
 
-        r.addText(new TextEntry(a.msg, a.size, a.col, localX, localY, actionId));
-        r.requestRedraw();
+        r.addText(new TextEntry(a.msg, a.size, a.col, localX, localY, action.id));
+        action.tiles.set(ty * g.W + tx);
+        placed++;
       }
+    if (g.stats != null) g.stats.recordFanOut(placed);
   }
 
-  private void removeAction(BoardGroup g, UUID actionId) {
-    for (int ty = 0; ty < g.H; ty++)
-      for (int tx = 0; tx < g.W; tx++) {
-        WhiteboardRenderer r = g.tiles[ty][tx];
-        if (r == null) continue;
-        r.removeByActionId(actionId);
+  // タイルの中心位置から、グループ内での列・行を求める（ずれが大きい場合は null）
+  private static int[] tileGridPosition(BoardGroup g, int tx, int ty) {
+    final double TOL = 0.75;
+    Location center = g.centers[ty][tx];
+    if (center == null) return null;
+    Vector rel = center.toVector().subtract(g.baseTopLeft.toVector());
+    double u = rel.dot(g.rightUnit);
+    double v = rel.dot(g.downUnit);
+    int ix = (int) Math.round(u);
+    int iy = (int) Math.round(v);
+    if (Math.abs(u - ix) > TOL || Math.abs(v - iy) > TOL) return null;
+    return new int[] {ix, iy};
+  }
+
+  // グループ座標での描画範囲（ベースライン基準、斜体などのはみ出し分を少し足す）
+  private static Rectangle textBounds(Font baseFont, TextAtom a) {
+    return TileRasterizer.textBounds(baseFont, a.msg, a.size, a.gx, a.gy);
+  }
+
+  // フォント変更で文字幅が変わるので、表示中の操作（undo 履歴）からタイル割り当てをやり直す。
+  // ログへ逃がした操作は I/O スレッドで読み戻してから、メインスレッドで置き直す
+  // （読み戻すまでは前のフォントでの割り当てのまま表示する）
+  private void redistributeTexts(Player p, BoardGroup g) {
+    int version = g.history.version();
+    g.history.readUndoAtoms(
+        mainThread,
+        atoms -> {
+          if (groups.get(g.id) != g) return; // 破棄済み
+          if (g.history.version() != version) {
+            // 読んでいる間に履歴が変わった：今の履歴で読み直す
+            redistributeTexts(p, g);
+            return;
+          }
+          for (int ty = 0; ty < g.H; ty++)
+            for (int tx = 0; tx < g.W; tx++) {
+              WhiteboardRenderer r = g.tiles[ty][tx];
+              if (r == null) continue;
+              r.clearTexts();
+            }
+          Font baseFont = resolveBaseFont(g);
+          List<TextAction> actions = g.history.undoActions();
+          for (int i = 0; i < actions.size(); i++) {
+            TextAction action = actions.get(i);
+            action.tiles.clear();
+            for (TextAtom atom : atoms.get(i)) applyTextAtom(g, atom, action, baseFont);
+          }
+          g.history.forgetPlacements();
+          markChanged(g);
+        },
+        error -> historyReadFailed(p, g, error));
+  }
+
+  // 操作が文字を置いたタイルだけから外し、redo 用にタイル番号ごとに返す
+  static Map<Integer, List<TextEntry>> removeAction(BoardGroup g, TextAction action) {
+    Map<Integer, List<TextEntry>> removed = new HashMap<>();
+    for (int i = action.tiles.nextSetBit(0); i >= 0; i = action.tiles.nextSetBit(i + 1)) {
+      WhiteboardRenderer r = g.tiles[i / g.W][i % g.W];
+      if (r == null) continue;
+      List<TextEntry> entries = r.removeAction(action.id);
+      if (!entries.isEmpty()) removed.put(i, entries);
+    }
+    return removed;
+  }
+
+  // undo で外したエントリをそのまま戻す。控えが無ければ文字から置き直す
+  static void restoreAction(BoardGroup g, TextAction action) {
+    Map<Integer, List<TextEntry>> placed = action.placed;
+    action.placed = null;
+    if (placed != null) {
+      for (Map.Entry<Integer, List<TextEntry>> e : placed.entrySet()) {
+        int i = e.getKey();
+        WhiteboardRenderer r = g.tiles[i / g.W][i % g.W];
+        if (r != null) r.addEntries(action.id, e.getValue());
       }
+      return;
+    }
+    action.tiles.clear();
+    Font baseFont = resolveBaseFont(g);
+    for (TextAtom atom : action.atoms) applyTextAtom(g, atom, action, baseFont);
   }
 
   private static final class ParsedBookCommand {
@@ -2167,48 +2681,6 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     }
   }
 
-  private static final class BookDirectives {
-    final String content;
-    final Integer size;
-    final Color color;
-    final Integer gx;
-    final Integer gy;
-    final Integer lineHeight;
-    final boolean clearBefore;
-    final Integer boardWidth;
-    final Integer boardHeight;
-    final Boolean lockOn;
-    final String providedPassword;
-    final String newPassword;
-
-    BookDirectives(
-        String content,
-        Integer size,
-        Color color,
-        Integer gx,
-        Integer gy,
-        Integer lineHeight,
-        boolean clearBefore,
-        Integer boardWidth,
-        Integer boardHeight,
-        Boolean lockOn,
-        String providedPassword,
-        String newPassword) {
-      this.content = content;
-      this.size = size;
-      this.color = color;
-      this.gx = gx;
-      this.gy = gy;
-      this.lineHeight = lineHeight;
-      this.clearBefore = clearBefore;
-      this.boardWidth = boardWidth;
-      this.boardHeight = boardHeight;
-      this.lockOn = lockOn;
-      this.providedPassword = providedPassword;
-      this.newPassword = newPassword;
-    }
-  }
-
   private static final class LecternHit {
     final ItemStack book;
     final double distanceSq;
@@ -2327,84 +2799,47 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     }
   }
 
+  // 4通りの向き（右・下の符号）のうち、既存の額縁を最も多く含むものを選ぶ
   private GridAssembly resolveGridOrientation(
       int width,
       int height,
-      Location baseLoc,
       ItemFrame topLeft,
-      List<ItemFrame> candidates,
-      List<Vector> offsets,
+      Map<Long, ItemFrame> byCell,
       Vector rightBase,
       Vector downBase) {
-    GridAssembly best = null;
-
-    Vector[][] orientations =
-        new Vector[][] {
-          {rightBase.clone(), downBase.clone()},
-          {rightBase.clone(), downBase.clone().multiply(-1)},
-          {rightBase.clone().multiply(-1), downBase.clone()},
-          {rightBase.clone().multiply(-1), downBase.clone().multiply(-1)}
-        };
-
-    for (Vector[] pair : orientations) {
-      ItemFrame[][] grid =
-          assembleGrid(width, height, baseLoc, topLeft, candidates, offsets, pair[0], pair[1]);
-      if (grid == null) continue;
-      int count = countFrames(grid);
-      if (best == null || count > best.existingCount) {
-        best = new GridAssembly(grid, pair[0], pair[1], count);
+    ItemFrame origin = byCell.get(cellKey(0, 0));
+    if (origin == null || !origin.getUniqueId().equals(topLeft.getUniqueId())) return null;
+
+    int bestSu = 0;
+    int bestSv = 0;
+    int bestCount = -1;
+    for (int su = 1; su >= -1; su -= 2) {
+      for (int sv = 1; sv >= -1; sv -= 2) {
+        int count = 0;
+        for (long key : byCell.keySet()) {
+          int x = su * (int) (key >> 32);
+          int y = sv * (int) key;
+          if (x >= 0 && x < width && y >= 0 && y < height) count++;
+        }
+        if (count > bestCount) {
+          bestSu = su;
+          bestSv = sv;
+          bestCount = count;
+        }
       }
     }
-    return best;
-  }
 
-  private ItemFrame[][] assembleGrid(
-      int width,
-      int height,
-      Location baseLoc,
-      ItemFrame topLeft,
-      List<ItemFrame> candidates,
-      List<Vector> offsets,
-      Vector right,
-      Vector down) {
-    final double tolerance = 0.60;
     ItemFrame[][] grid = new ItemFrame[height][width];
-    double[][] bestDist = new double[height][width];
-    for (int y = 0; y < height; y++) Arrays.fill(bestDist[y], Double.POSITIVE_INFINITY);
-
-    Vector baseVec = baseLoc.toVector();
-    for (int i = 0; i < candidates.size(); i++) {
-      Vector rel = offsets.get(i);
-      double u = rel.dot(right);
-      double v = rel.dot(down);
-      int ix = (int) Math.round(u);
-      int iy = (int) Math.round(v);
-      if (ix < 0 || ix >= width || iy < 0 || iy >= height) continue;
-      if (Math.abs(u - ix) > tolerance || Math.abs(v - iy) > tolerance) continue;
-
-      ItemFrame frame = candidates.get(i);
-      Vector expected =
-          baseVec
-              .clone()
-              .add(right.clone().multiply(ix))
-              .add(down.clone().multiply(iy));
-      double distSq = frameBlockCenter(frame).toVector().distanceSquared(expected);
-      if (distSq < bestDist[iy][ix]) {
-        grid[iy][ix] = frame;
-        bestDist[iy][ix] = distSq;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        grid[y][x] = byCell.get(cellKey(bestSu * x, bestSv * y));
       }
     }
-
-    if (grid[0][0] == null || !grid[0][0].getUniqueId().equals(topLeft.getUniqueId())) return null;
-    return grid;
-  }
-
-  private int countFrames(ItemFrame[][] grid) {
-    int count = 0;
-    for (ItemFrame[] row : grid) {
-      for (ItemFrame frame : row) if (frame != null) count++;
-    }
-    return count;
+    return new GridAssembly(
+        grid,
+        rightBase.clone().multiply(bestSu),
+        downBase.clone().multiply(bestSv),
+        bestCount);
   }
 
   private Location computeFrameCenter(Location base, Vector right, Vector down, int x, int y) {
@@ -2429,51 +2864,25 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     }
   }
 
-  private static final class HtmlStyle {
-    final Color color;
-    final int size;
-
-    HtmlStyle(Color color, int size) {
-      this.color = color;
-      this.size = size;
-    }
-  }
-
-  private static final class HtmlToken {
-    final String text;
-    final Color color;
-    final int size;
-    final boolean lineBreak;
-
-    private HtmlToken(String text, Color color, int size, boolean lineBreak) {
-      this.text = text;
-      this.color = color;
-      this.size = size;
-      this.lineBreak = lineBreak;
-    }
-
-    static HtmlToken text(String text, Color color, int size) {
-      return new HtmlToken(text, color, size, false);
-    }
-
-    static HtmlToken lineBreak() {
-      return new HtmlToken("", null, 0, true);
-    }
-  }
-
   static final class BoardGroup {
     final String id;
     final int W, H;
     final WhiteboardRenderer[][] tiles; // [H][W]
     final Location[][] centers; // [H][W]
     final UUID[][] frames; // [H][W] ItemFrame UUID
+    final int[][] mapIds; // [H][W] MapView ID
     Location baseTopLeft;
     Vector rightUnit, downUnit;
+    BlockFace facing;
+    Color background = Color.WHITE;
+    Font font; // null の間はタイルのフォントを使う
     boolean locked = true;
-    String password;
+    String password; // BoardPassword.hash() の結果
+    boolean unsaved; // 次の自動保存で書き出す
+    int sequence; // 描画内容が変わるたびに増える（古いレイアウト結果の検出用）
 
-    final Deque<TextAction> undo = new ArrayDeque<>();
-    final Deque<TextAction> redo = new ArrayDeque<>();
+    BoardHistory history;
+    BoardStats stats;
 
     BoardGroup(String id, int W, int H) {
       this.id = id;
@@ -2482,12 +2891,25 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
       this.tiles = new WhiteboardRenderer[H][W];
       this.centers = new Location[H][W];
       this.frames = new UUID[H][W];
+      this.mapIds = new int[H][W];
     }
   }
 
   static final class TextAction {
-    final UUID id = UUID.randomUUID();
+    final UUID id;
     final List<TextAtom> atoms = new ArrayList<>();
+    // 以下は保存しない実行時の情報
+    final BitSet tiles = new BitSet(); // 文字を置いたタイル番号 (y*W+x)
+    Map<Integer, List<TextEntry>> placed; // undo で外したエントリ（redo 側にある間だけ）
+    BoardStore.Slot spilled; // null 以外なら atoms は履歴ログ上にある
+
+    TextAction() {
+      this(UUID.randomUUID());
+    }
+
+    TextAction(UUID id) {
+      this.id = id;
+    }
   }
 
   static final class TextAtom {
@@ -2505,120 +2927,3 @@ public final class WhiteboardPlugin extends JavaPlugin implements Listener {
     }
   }
 }
-
-/* =================== テキスト要素 & レンダラー =================== */
-
-final class TextEntry {
-  final String text;
-  final int size;
-  final Color color;
-  final int x, y;
-  final UUID actionId;
-
-  TextEntry(String t, int s, Color c, int x, int y) {
-    this(t, s, c, x, y, null);
-  }
-
-  TextEntry(String t, int s, Color c, int x, int y, UUID actionId) {
-    this.text = t;
-    this.size = s;
-    this.color = c;
-    this.x = x;
-    this.y = y;
-    this.actionId = actionId;
-  }
-}
-
-final class WhiteboardRenderer extends MapRenderer {
-
-  private final BufferedImage buffer = new BufferedImage(128, 128, BufferedImage.TYPE_INT_ARGB);
-  private final List<TextEntry> texts = new ArrayList<>();
-  private Color background = Color.WHITE;
-  private boolean border = true;
-  private volatile boolean dirty = true;
-
-  // 既定フォント：Noto（Ubuntu: sudo apt install fonts-noto-cjk 推奨）
-  private Font baseFont = new Font("Noto Sans CJK JP", Font.PLAIN, 16);
-
-  WhiteboardRenderer() {
-    super(true);
-  }
-
-  void setBackground(Color c) {
-    this.background = c;
-    dirty = true;
-  }
-
-  void setBorderVisible(boolean v) {
-    this.border = v;
-    dirty = true;
-  }
-
-  void addText(TextEntry te) {
-    this.texts.add(te);
-    dirty = true;
-  }
-
-  void clearTexts() {
-    this.texts.clear();
-    dirty = true;
-  }
-
-  void resetToDefaults() {
-    this.background = Color.WHITE;
-    this.border = true;
-    this.texts.clear();
-    this.dirty = true;
-  }
-
-  void setBaseFont(Font f) {
-    if (f != null) this.baseFont = f;
-    this.dirty = true;
-  }
-
-  Font getBaseFont() {
-    return baseFont;
-  }
-
-  void requestRedraw() {
-    this.dirty = true;
-  }
-
-  void removeByActionId(UUID id) {
-    if (id == null) return;
-    texts.removeIf(te -> id.equals(te.actionId));
-    dirty = true;
-  }
-
-  @Override
-  public void render(MapView view, MapCanvas canvas, Player player) {
-    if (dirty) {
-      Graphics2D g = (Graphics2D) buffer.getGraphics();
-      try {
-        g.setColor(background);
-        g.fillRect(0, 0, 128, 128);
-
-        if (border) {
-          g.setColor(new Color(0x404040));
-          g.fillRect(0, 0, 128, 2);
-          g.fillRect(0, 126, 128, 2);
-          g.fillRect(0, 0, 2, 128);
-          g.fillRect(126, 0, 2, 128);
-        }
-
-        g.setRenderingHint(
-            RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-        for (TextEntry te : texts) {
-          g.setFont(baseFont.deriveFont((float) te.size));
-          g.setColor(te.color);
-          g.drawString(te.text, te.x, te.y);
-        }
-      } finally {
-        g.dispose();
-      }
-      dirty = false;
-    }
-    canvas.drawImage(0, 0, buffer);
-  }
-}
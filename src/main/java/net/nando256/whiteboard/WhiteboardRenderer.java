@@ -0,0 +1,352 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import org.bukkit.Location;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Player;
+import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapRenderer;
+import org.bukkit.map.MapView;
+
+/* =================== レンダラー（1タイル = 1マップ） =================== */
+
+final class WhiteboardRenderer extends MapRenderer {
+
+  private static final int MAX_DAMAGE_RECTS = 8;
+  // 塗り直す前の内容の写し（全タイルで共有。塗る範囲だけを同じ位置へ写す）と、
+  // diffBounds の結果（markChanged が写し取る）。どちらもメインスレッド専用
+  private static final byte[] BEFORE = new byte[TileRasterizer.SIZE * TileRasterizer.SIZE];
+  private static final Rectangle CHANGED = new Rectangle();
+
+  // dirty 時だけ作り直すパレット番号（マップ色）のバッファ。
+  // チャンクが読み込まれていない間は null（次の render で全面を描き直す）
+  private byte[] pixels = new byte[128 * 128];
+  // pixels を確保してから一度でも塗り終えたか。塗り終えるまではキャンバスへ何も書かない
+  private boolean painted;
+  // タイルの文字（列ごとの配列）。追加順 = 描画順
+  private final TileTexts texts = new TileTexts();
+  // 次の render で塗り直す範囲（重なるものはまとめる。多すぎたら1つに潰す）
+  private final List<Rectangle> damage = new ArrayList<>();
+  // キャンバス -> 前回書き込んでから変わった範囲（共有描画ならキャンバスは1つ）。
+  // まだ載っていないキャンバスは一度も書き込んでいないので、タイル全体を書く
+  private final Map<MapCanvas, Rectangle> unsentRegions = new WeakHashMap<>();
+  private Color background = Color.WHITE;
+  private byte[] image; // 背景の代わりに敷く画像（パレット番号、差し替えのみで中身は変えない）
+  private boolean border = true;
+  private BoardStats stats; // ボードに属していなければ null
+  // 塗り直しを任せる先（null なら render の中で塗る）と、優先度を決めるための額縁の位置・向き
+  private RenderScheduler scheduler;
+  private Location center;
+  private BlockFace facing;
+  private TileMemory memory; // 描画結果の合計の上限（null なら数えない）
+
+  // 既定フォント：Noto（Ubuntu: sudo apt install fonts-noto-cjk 推奨）
+  private Font baseFont = new Font("Noto Sans CJK JP", Font.PLAIN, 16);
+
+  // 既定は全プレイヤー共通の描画（タイルごとに1回だけ描く）
+  WhiteboardRenderer() {
+    this(false);
+  }
+
+  // perPlayer=true はプレイヤーごとに内容を変える機能向けのオプトイン
+  WhiteboardRenderer(boolean perPlayer) {
+    super(perPlayer);
+    damageAll();
+  }
+
+  void setBackground(Color c) {
+    if (c.equals(this.background)) return;
+    this.background = c;
+    damageAll();
+  }
+
+  // null で画像を外す
+  void setImage(byte[] image) {
+    if (image == this.image) return;
+    this.image = image;
+    damageAll();
+  }
+
+  byte[] getImage() {
+    return image;
+  }
+
+  void setBorderVisible(boolean v) {
+    if (v == this.border) return;
+    this.border = v;
+    damageAll();
+  }
+
+  void addText(TextEntry te) {
+    texts.add(te);
+    damage(texts.bounds(baseFont, texts.size() - 1));
+  }
+
+  // redo 用：undo で外したエントリをそのまま戻す
+  void addEntries(UUID actionId, List<TextEntry> entries) {
+    for (TextEntry te : entries) {
+      texts.add(te.text, te.size, te.color.getRGB(), te.x, te.y, actionId);
+      damage(texts.bounds(baseFont, texts.size() - 1));
+    }
+  }
+
+  void clearTexts() {
+    for (int i = 0; i < texts.size(); i++) damage(texts.bounds(baseFont, i));
+    texts.clear();
+  }
+
+  void resetToDefaults() {
+    this.background = Color.WHITE;
+    this.image = null;
+    this.border = true;
+    texts.clear();
+    damageAll();
+  }
+
+  void setBaseFont(Font f) {
+    if (f != null) this.baseFont = f;
+    damageAll();
+  }
+
+  Font getBaseFont() {
+    return baseFont;
+  }
+
+  void requestRedraw() {
+    damageAll();
+  }
+
+  // 操作の文字をまとめて外し、外したものを返す（無ければ空）
+  List<TextEntry> removeAction(UUID id) {
+    List<TextEntry> removed = texts.removeAction(id);
+    for (TextEntry te : removed) damage(TileRasterizer.textBounds(baseFont, te));
+    return removed;
+  }
+
+  void attachStats(BoardStats stats) {
+    this.stats = stats;
+  }
+
+  // scheduler に null を渡すと render の中で塗る方式へ戻る
+  void attachScheduler(RenderScheduler scheduler, Location center, BlockFace facing) {
+    if (this.scheduler != null) this.scheduler.forget(this);
+    this.scheduler = scheduler;
+    this.center = center;
+    this.facing = facing;
+    if (scheduler != null && !damage.isEmpty()) scheduler.markDirty(this);
+  }
+
+  void attachMemory(TileMemory memory) {
+    if (this.memory != null) this.memory.released(this);
+    this.memory = memory;
+    if (memory != null && pixels != null) memory.allocated(this, false);
+  }
+
+  Location center() {
+    return center;
+  }
+
+  BlockFace facing() {
+    return facing;
+  }
+
+  // 描画結果・下地の画像・文字が抱えるおおよそのバイト数
+  long estimateBytes() {
+    long bytes = pixels != null ? pixels.length : 0;
+    if (image != null) bytes += image.length;
+    return bytes + texts.estimateBytes();
+  }
+
+  Color getBackground() {
+    return background;
+  }
+
+  boolean isBorderVisible() {
+    return border;
+  }
+
+  // ワーカーへ渡す読み取り専用のコピー
+  TileTexts snapshotTexts() {
+    return texts.copy();
+  }
+
+  // ワーカーで描画済みの結果を取り込む（rasterized が null なら通常の再描画に任せる）
+  void publish(List<TextEntry> added, byte[] rasterized) {
+    int first = texts.size();
+    for (TextEntry te : added) texts.add(te);
+    if (pixels == null) return; // 解放中：次に表示されたときに描く
+    if (rasterized == null) {
+      for (int i = first; i < texts.size(); i++) damage(texts.bounds(baseFont, i));
+      return;
+    }
+    // 未反映の damage は残しておき、次の render で上から塗り直す
+    if (diffBounds(pixels, rasterized, TileRasterizer.FULL, CHANGED)) markChanged(CHANGED);
+    System.arraycopy(rasterized, 0, pixels, 0, pixels.length);
+    painted = true; // タイル全体を描いたものなので、そのまま送ってよい
+  }
+
+  // 描画結果を捨て、文字などの元データだけを残す（チャンクの読み込み解除・メモリ上限）
+  void release() {
+    if (pixels == null) return;
+    pixels = null;
+    damage.clear();
+    unsentRegions.clear();
+    if (scheduler != null) scheduler.forget(this);
+    if (memory != null) memory.released(this);
+  }
+
+  private void damageAll() {
+    if (pixels == null) return;
+    damage.clear();
+    damage.add(new Rectangle(TileRasterizer.FULL));
+    if (scheduler != null) scheduler.markDirty(this);
+  }
+
+  private void damage(Rectangle r) {
+    if (pixels == null) return;
+    Rectangle area = r.intersection(TileRasterizer.FULL);
+    if (area.isEmpty()) return;
+    // 重なる矩形は吸収して1つにまとめる
+    boolean merged = true;
+    while (merged) {
+      merged = false;
+      for (Iterator<Rectangle> it = damage.iterator(); it.hasNext(); ) {
+        Rectangle d = it.next();
+        if (d.contains(area)) return;
+        if (d.intersects(area)) {
+          area = area.union(d);
+          it.remove();
+          merged = true;
+        }
+      }
+    }
+    damage.add(area);
+    if (damage.size() > MAX_DAMAGE_RECTS) {
+      Rectangle union = damage.get(0);
+      for (Rectangle d : damage) union = union.union(d);
+      damage.clear();
+      damage.add(union);
+    }
+    if (scheduler != null) scheduler.markDirty(this);
+  }
+
+  // スケジューラーから呼ばれる：溜まった damage を今すぐ pixels へ塗る
+  void redraw() {
+    if (pixels == null || damage.isEmpty()) return;
+    long start = System.nanoTime();
+    paintDamage();
+    if (stats != null) stats.recordRepaint(System.nanoTime() - start);
+  }
+
+  @Override
+  public void render(MapView view, MapCanvas canvas, Player player) {
+    long start = System.nanoTime();
+    boolean redrew;
+    if (pixels == null) {
+      // 解放後に初めて表示された：全面を damage にして、スケジューラーが予算の中で描く。
+      // 描き終わるまでは何も送らないので、地図には捨てる前の内容が残って見える
+      pixels = new byte[TileRasterizer.SIZE * TileRasterizer.SIZE];
+      painted = false;
+      if (memory != null) memory.allocated(this, true); // 上限を超えれば他のタイルを捨てる
+      damageAll();
+      redrew = scheduler == null;
+      if (redrew) paintDamage();
+      else scheduler.markVisible(this);
+    } else {
+      // スケジューラーがあれば塗り直しは任せ、ここでは塗り終わった分を送るだけ
+      // （表示されていることは伝え、近くに誰もいなくても後回しにされ続けないようにする）
+      redrew = scheduler == null && !damage.isEmpty();
+      if (redrew) paintDamage();
+      else if (scheduler != null && !damage.isEmpty()) scheduler.markVisible(this);
+    }
+    writeUnsent(canvas);
+    if (memory != null) memory.touch(this);
+    if (stats != null) stats.recordRender(System.nanoTime() - start, redrew);
+  }
+
+  private void paintDamage() {
+    for (Rectangle r : damage) {
+      // 塗り直す前の内容と比べて、実際に変わった範囲だけを送信対象にする
+      copyRegion(pixels, BEFORE, r);
+      TileRasterizer.rasterize(background, border, baseFont, texts, image, pixels, r);
+      if (diffBounds(BEFORE, pixels, r, CHANGED)) markChanged(CHANGED);
+    }
+    damage.clear();
+    painted = true;
+  }
+
+  // キャンバスは前回の内容を保持するので、変わった矩形だけを書き込む。
+  // setPixel は値が変わった画素だけを dirty にするため、送信されるのもその範囲だけになる
+  private void writeUnsent(MapCanvas canvas) {
+    // 確保したばかりの pixels は空なので送らない（塗り終えた後の render でタイル全体を書く）
+    if (!painted) return;
+    if (!unsentRegions.containsKey(canvas)) {
+      writePixels(canvas, TileRasterizer.FULL);
+    } else {
+      Rectangle region = unsentRegions.get(canvas);
+      if (region == null) return;
+      writePixels(canvas, region);
+    }
+    unsentRegions.put(canvas, null);
+  }
+
+  // changed は使い回しの矩形なので、キャンバスごとの範囲へは写し取る（広げるのはその場で）
+  private void markChanged(Rectangle changed) {
+    for (Map.Entry<MapCanvas, Rectangle> e : unsentRegions.entrySet()) {
+      Rectangle pending = e.getValue();
+      if (pending == null) e.setValue(new Rectangle(changed));
+      else pending.add(changed);
+    }
+  }
+
+  // region の行だけを dst の同じ位置へ写す
+  private static void copyRegion(byte[] src, byte[] dst, Rectangle r) {
+    for (int y = r.y; y < r.y + r.height; y++) {
+      int i = y * TileRasterizer.SIZE + r.x;
+      System.arraycopy(src, i, dst, i, r.width);
+    }
+  }
+
+  // region の中で before と current（どちらもタイル全体の並び）が違う画素を囲む矩形を
+  // out へ入れる。差が無ければ false
+  private static boolean diffBounds(byte[] before, byte[] current, Rectangle region, Rectangle out) {
+    int size = TileRasterizer.SIZE;
+    int minX = Integer.MAX_VALUE;
+    int minY = Integer.MAX_VALUE;
+    int maxX = -1;
+    int maxY = -1;
+    for (int y = region.y; y < region.y + region.height; y++) {
+      int row = y * size;
+      for (int x = region.x; x < region.x + region.width; x++) {
+        if (before[row + x] == current[row + x]) continue;
+        if (x < minX) minX = x;
+        if (x > maxX) maxX = x;
+        if (y < minY) minY = y;
+        maxY = y;
+      }
+    }
+    if (maxX < 0) return false;
+    out.setBounds(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    return true;
+  }
+
+  @SuppressWarnings("deprecation")
+  private void writePixels(MapCanvas canvas, Rectangle region) {
+    int size = TileRasterizer.SIZE;
+    for (int y = region.y; y < region.y + region.height; y++) {
+      int i = y * size + region.x;
+      for (int x = region.x; x < region.x + region.width; x++) {
+        canvas.setPixel(x, y, pixels[i++]);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,293 @@
+package net.nando256.whiteboard;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/* =========================================================
+ * プラグイン全体の計測値と JMX への登録
+ *
+ *  - net.nando256.whiteboard:type=Stats …全体
+ *  - net.nando256.whiteboard:type=Board,name=<groupId> …ボードごと
+ *  - JMX が使えない環境でも計測自体は続ける（登録失敗はログのみ）
+ * ========================================================= */
+final class WhiteboardStats implements WhiteboardStatsMBean {
+
+  private static final String DOMAIN = "net.nando256.whiteboard";
+
+  final Histogram render = new Histogram();
+  final Histogram repaint = new Histogram();
+  final Histogram layout = new Histogram();
+  final Histogram fanOut = new Histogram();
+  final LongAdder redraws = new LongAdder();
+  final LongAdder entriesAdded = new LongAdder();
+  // 塗り直し待ちのタイル（RenderScheduler が毎ティック写す）
+  private volatile int queuedTiles;
+  private volatile int deferredTiles;
+  private volatile TileMemory tileMemory; // 描画結果のメモリ上限（未設定なら 0 を返す）
+
+  private final Map<String, BoardStats> boards = new ConcurrentHashMap<>();
+  private final Logger logger;
+  private final MBeanServer server;
+
+  WhiteboardStats(Logger logger) {
+    this.logger = logger;
+    this.server = ManagementFactory.getPlatformMBeanServer();
+    register(new StandardMBean(this, WhiteboardStatsMBean.class, false), globalName());
+  }
+
+  BoardStats open(String groupId, int tiles) {
+    BoardStats stats = new BoardStats(groupId, tiles, this);
+    boards.put(groupId, stats);
+    register(new StandardMBean(stats, BoardStatsMBean.class, false), boardName(groupId));
+    return stats;
+  }
+
+  void close(String groupId) {
+    if (boards.remove(groupId) != null) unregister(boardName(groupId));
+  }
+
+  void shutdown() {
+    for (String id : boards.keySet()) unregister(boardName(id));
+    boards.clear();
+    unregister(globalName());
+  }
+
+  void attachTileMemory(TileMemory memory) {
+    this.tileMemory = memory;
+  }
+
+  void sampleQueue(int queued, int deferred) {
+    queuedTiles = queued;
+    deferredTiles = deferred;
+  }
+
+  // render と塗り直しの累計時間が大きい順
+  List<BoardStats> top(int limit) {
+    List<BoardStats> sorted = new ArrayList<>(boards.values());
+    sorted.sort(Comparator.comparingLong(BoardStats::paintNanos).reversed());
+    return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+  }
+
+  private void register(StandardMBean bean, ObjectName name) {
+    if (name == null) return;
+    try {
+      if (server.isRegistered(name)) server.unregisterMBean(name); // /reload の取り残し
+      server.registerMBean(bean, name);
+    } catch (JMException ex) {
+      logger.log(Level.WARNING, "Could not register MBean " + name, ex);
+    }
+  }
+
+  private void unregister(ObjectName name) {
+    if (name == null) return;
+    try {
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+    } catch (JMException ex) {
+      logger.log(Level.FINE, "Could not unregister MBean " + name, ex);
+    }
+  }
+
+  private ObjectName globalName() {
+    return objectName(DOMAIN + ":type=Stats");
+  }
+
+  private ObjectName boardName(String groupId) {
+    return objectName(DOMAIN + ":type=Board,name=" + ObjectName.quote(groupId));
+  }
+
+  private ObjectName objectName(String name) {
+    try {
+      return new ObjectName(name);
+    } catch (JMException ex) {
+      logger.log(Level.WARNING, "Invalid MBean name " + name, ex);
+      return null;
+    }
+  }
+
+  /* =================== JMX =================== */
+
+  @Override
+  public int getBoardCount() {
+    return boards.size();
+  }
+
+  @Override
+  public long getRenderCount() {
+    return render.count();
+  }
+
+  @Override
+  public long getRedrawCount() {
+    return redraws.sum();
+  }
+
+  @Override
+  public long getRenderTimeMeanMicros() {
+    return BoardStats.micros(render.mean());
+  }
+
+  @Override
+  public long getRenderTimeP99Micros() {
+    return BoardStats.micros(render.percentile(0.99));
+  }
+
+  @Override
+  public long getRenderTimeMaxMicros() {
+    return BoardStats.micros(render.max());
+  }
+
+  @Override
+  public long getRepaintCount() {
+    return repaint.count();
+  }
+
+  @Override
+  public long getRepaintTimeMeanMicros() {
+    return BoardStats.micros(repaint.mean());
+  }
+
+  @Override
+  public long getRepaintTimeP99Micros() {
+    return BoardStats.micros(repaint.percentile(0.99));
+  }
+
+  @Override
+  public long getRepaintTimeMaxMicros() {
+    return BoardStats.micros(repaint.max());
+  }
+
+  @Override
+  public long getLayoutCount() {
+    return layout.count();
+  }
+
+  @Override
+  public long getLayoutTimeMeanMicros() {
+    return BoardStats.micros(layout.mean());
+  }
+
+  @Override
+  public long getLayoutTimeP99Micros() {
+    return BoardStats.micros(layout.percentile(0.99));
+  }
+
+  @Override
+  public long getAtomsApplied() {
+    return fanOut.count();
+  }
+
+  @Override
+  public long getTileEntriesAdded() {
+    return entriesAdded.sum();
+  }
+
+  @Override
+  public int getUndoDepth() {
+    int sum = 0;
+    for (BoardStats s : boards.values()) sum += s.getUndoDepth();
+    return sum;
+  }
+
+  @Override
+  public int getRedoDepth() {
+    int sum = 0;
+    for (BoardStats s : boards.values()) sum += s.getRedoDepth();
+    return sum;
+  }
+
+  @Override
+  public int getSpilledActions() {
+    int sum = 0;
+    for (BoardStats s : boards.values()) sum += s.getSpilledActions();
+    return sum;
+  }
+
+  @Override
+  public long getHeldBytes() {
+    long sum = 0;
+    for (BoardStats s : boards.values()) sum += s.getHeldBytes();
+    return sum;
+  }
+
+  @Override
+  public int getQueuedTiles() {
+    return queuedTiles;
+  }
+
+  @Override
+  public int getDeferredTiles() {
+    return deferredTiles;
+  }
+
+  @Override
+  public int getResidentTiles() {
+    TileMemory m = tileMemory;
+    return m == null ? 0 : m.tiles();
+  }
+
+  @Override
+  public long getTileBytes() {
+    TileMemory m = tileMemory;
+    return m == null ? 0 : m.bytes();
+  }
+
+  @Override
+  public long getTileBytesLimit() {
+    TileMemory m = tileMemory;
+    return m == null ? 0 : m.limitBytes();
+  }
+
+  @Override
+  public long getTileEvictions() {
+    TileMemory m = tileMemory;
+    return m == null ? 0 : m.evictions();
+  }
+
+  @Override
+  public long getTileRebuilds() {
+    TileMemory m = tileMemory;
+    return m == null ? 0 : m.rebuilds();
+  }
+
+  @Override
+  public long getTileRebuildsPerMinute() {
+    TileMemory m = tileMemory;
+    return m == null ? 0 : m.rebuildsPerMinute();
+  }
+
+  @Override
+  public int getCachedFonts() {
+    return FontCache.cachedFonts();
+  }
+
+  @Override
+  public long getFontCacheHits() {
+    return FontCache.fontHits();
+  }
+
+  @Override
+  public long getFontCacheMisses() {
+    return FontCache.fontMisses();
+  }
+
+  @Override
+  public long getGlyphAtlasHits() {
+    return GlyphAtlas.hits();
+  }
+
+  @Override
+  public long getGlyphAtlasMisses() {
+    return GlyphAtlas.misses();
+  }
+}
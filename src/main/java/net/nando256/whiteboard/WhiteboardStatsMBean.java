@@ -0,0 +1,72 @@
+package net.nando256.whiteboard;
+
+// JMX 用（net.nando256.whiteboard:type=Stats）。全ボードの合計。時間はマイクロ秒
+public interface WhiteboardStatsMBean {
+
+  int getBoardCount();
+
+  long getRenderCount();
+
+  long getRedrawCount();
+
+  long getRenderTimeMeanMicros();
+
+  long getRenderTimeP99Micros();
+
+  long getRenderTimeMaxMicros();
+
+  // スケジューラーによる塗り直し（render の回数・時間には含まない）
+  long getRepaintCount();
+
+  long getRepaintTimeMeanMicros();
+
+  long getRepaintTimeP99Micros();
+
+  long getRepaintTimeMaxMicros();
+
+  long getLayoutCount();
+
+  long getLayoutTimeMeanMicros();
+
+  long getLayoutTimeP99Micros();
+
+  long getAtomsApplied();
+
+  long getTileEntriesAdded();
+
+  int getUndoDepth();
+
+  int getRedoDepth();
+
+  int getSpilledActions();
+
+  long getHeldBytes();
+
+  // 塗り直し待ちのタイル数と、そのうち近くに誰もいないため見送っている数
+  int getQueuedTiles();
+
+  int getDeferredTiles();
+
+  // タイルの描画結果（render.max-tile-bytes で上限）。捨てた回数と、捨てた後に描き直した回数
+  int getResidentTiles();
+
+  long getTileBytes();
+
+  long getTileBytesLimit();
+
+  long getTileEvictions();
+
+  long getTileRebuilds();
+
+  long getTileRebuildsPerMinute();
+
+  int getCachedFonts();
+
+  long getFontCacheHits();
+
+  long getFontCacheMisses();
+
+  long getGlyphAtlasHits();
+
+  long getGlyphAtlasMisses();
+}
@@ -0,0 +1,211 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+
+/* =========================================================
+ * BoardHistory が予算を超えた操作をログへ逃がし、読み戻せるかの確認
+ *
+ *  - 2 件分の予算に 6 件積み、古い 4 件がログへ逃げること
+ *  - pageInUndo / pageInRedo で読み戻してから undo / redo し、
+ *    取り出した操作の文字と spilled() の件数が手順ごとに期待どおりであること
+ *  - メインスレッドでログを読んだ警告（読み戻し忘れ）が出ないこと
+ *
+ *   ./gradlew checkBoardHistory（./gradlew check からも呼ばれる）
+ * ========================================================= */
+public final class BoardHistoryCheck {
+
+  private static final int ACTIONS = 6;
+
+  private BoardHistoryCheck() {}
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    Logger logger = Logger.getLogger("BoardHistoryCheck");
+    AtomicInteger warnings = new AtomicInteger();
+    logger.addHandler(
+        new Handler() {
+          @Override
+          public void publish(LogRecord record) {
+            if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+              warnings.incrementAndGet();
+            }
+          }
+
+          @Override
+          public void flush() {}
+
+          @Override
+          public void close() {}
+        });
+    File folder = Files.createTempDirectory("whiteboard-history").toFile();
+    BoardStore store = new BoardStore(folder, logger);
+    int failures;
+    try {
+      failures = check(store);
+    } finally {
+      store.shutdown(List.of());
+      deleteTree(folder);
+    }
+    if (warnings.get() > 0) {
+      System.err.println(warnings.get() + " warning(s) were logged");
+      failures++;
+    }
+    if (failures > 0) {
+      System.err.println(failures + " board history check(s) failed");
+      System.exit(1);
+    }
+    System.out.println("spilled history pages back in for undo and redo");
+  }
+
+  private static int check(BoardStore store) throws Exception {
+    // 予算はちょうど 2 件分（操作の大きさはどれも同じ）
+    long weight = weightOf(store);
+    BoardHistory history = new BoardHistory(store.openSpillLog("check"), 2 * weight);
+    BlockingQueue<Runnable> mainThread = new LinkedBlockingQueue<>();
+    int failures = 0;
+
+    for (int i = 0; i < ACTIONS; i++) history.push(action(i));
+    failures += expect("after pushes", history, 4, ACTIONS, 0);
+
+    // 直近の 2 件はメモリ上なので読み戻し無しで undo できる
+    failures += expectAtoms("undo", history.undo(), 5);
+    failures += expectAtoms("undo", history.undo(), 4);
+    failures += expect("after resident undos", history, 4, 4, 2);
+    if (!history.undoNeedsPageIn()) {
+      System.err.println("undo of a spilled action does not ask for a page-in");
+      failures++;
+    }
+
+    failures += pageIn(history::pageInUndo, mainThread);
+    failures += expect("after pageInUndo", history, 3, 4, 2);
+    failures += expectAtoms("paged-in undo", history.undo(), 3);
+    failures += expect("after paged-in undo", history, 3, 3, 3);
+
+    // redo で 3 件分になるので、最も遠い redo（5）がログへ逃げる
+    failures += expectAtoms("redo", history.redo(), 3);
+    failures += expect("after redo", history, 4, 4, 2);
+    failures += expectAtoms("redo", history.redo(), 4);
+    failures += expect("after redo", history, 4, 5, 1);
+    if (!history.redoNeedsPageIn()) {
+      System.err.println("redo of a spilled action does not ask for a page-in");
+      failures++;
+    }
+
+    failures += pageIn(history::pageInRedo, mainThread);
+    failures += expect("after pageInRedo", history, 3, 5, 1);
+    // 読み戻した 5 を戻すと 3 件分になり、古い側の undo（3）がログへ逃げる
+    failures += expectAtoms("paged-in redo", history.redo(), 5);
+    failures += expect("after paged-in redo", history, 4, ACTIONS, 0);
+
+    history.close();
+    return failures;
+  }
+
+  // 読み戻しを頼み、メインスレッド役のキューを then が呼ばれるまで回す
+  private static int pageIn(PageIn request, BlockingQueue<Runnable> mainThread)
+      throws InterruptedException {
+    boolean[] done = new boolean[1];
+    Throwable[] error = new Throwable[1];
+    request.accept(mainThread::add, () -> done[0] = true, e -> error[0] = e);
+    while (!done[0] && error[0] == null) {
+      Runnable task = mainThread.poll(30, TimeUnit.SECONDS);
+      if (task == null) {
+        System.err.println("page-in did not finish");
+        return 1;
+      }
+      task.run();
+    }
+    if (error[0] != null) {
+      System.err.println("page-in failed: " + error[0]);
+      return 1;
+    }
+    return 0;
+  }
+
+  private interface PageIn {
+    void accept(Executor mainThread, Runnable then, Consumer<Throwable> failed);
+  }
+
+  private static TextAction action(int i) {
+    TextAction action = new TextAction();
+    action.atoms.add(new TextAtom("atom-" + i, 16, Color.BLACK, i * 10, i * 20));
+    return action;
+  }
+
+  // 1 件だけ積んだ時の見積もり
+  private static long weightOf(BoardStore store) {
+    BoardHistory probe = new BoardHistory(store.openSpillLog("probe"), 0);
+    probe.push(action(0));
+    long weight = probe.residentBytes();
+    probe.close();
+    return weight;
+  }
+
+  private static int expect(
+      String step, BoardHistory history, int spilled, int undoSize, int redoSize) {
+    if (history.spilled() == spilled
+        && history.undoSize() == undoSize
+        && history.redoSize() == redoSize) {
+      return 0;
+    }
+    System.err.println(
+        step + ": expected spilled=" + spilled + " undo=" + undoSize + " redo=" + redoSize
+            + " but got spilled=" + history.spilled() + " undo=" + history.undoSize()
+            + " redo=" + history.redoSize());
+    return 1;
+  }
+
+  private static int expectAtoms(String step, TextAction action, int i) {
+    if (action == null) {
+      System.err.println(step + ": expected action " + i + " but got none");
+      return 1;
+    }
+    if (action.spilled != null) {
+      System.err.println(step + ": action " + i + " is still on the history log");
+      return 1;
+    }
+    List<TextAtom> atoms = action.atoms;
+    TextAtom atom = atoms.size() == 1 ? atoms.get(0) : null;
+    if (atom != null
+        && atom.msg.equals("atom-" + i)
+        && atom.size == 16
+        && atom.col.getRGB() == Color.BLACK.getRGB()
+        && atom.gx == i * 10
+        && atom.gy == i * 20) {
+      return 0;
+    }
+    System.err.println(step + ": expected atom-" + i + " but got " + describe(atoms));
+    return 1;
+  }
+
+  private static String describe(List<TextAtom> atoms) {
+    StringBuilder sb = new StringBuilder();
+    for (TextAtom atom : atoms) {
+      sb.append(atom.msg).append('@').append(atom.gx).append(',').append(atom.gy).append(' ');
+    }
+    return sb.toString().trim();
+  }
+
+  private static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) deleteTree(child);
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,197 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import net.nando256.whiteboard.BoardStore.BoardData;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+
+/* =========================================================
+ * BoardStore の書き出し -> 読み込みで中身が変わらないかの確認
+ *
+ *  - 一時ディレクトリへ saveAsync で書き、loadAllAsync で読み戻す
+ *  - 盤面の設定・undo / redo 履歴・パスワードのハッシュ・タイルごとの画像を比べる
+ *  - 履歴の一部は履歴ログへ逃がした状態で保存する（ログから読んで書けること）
+ *
+ *   ./gradlew checkBoardStore（./gradlew check からも呼ばれる）
+ * ========================================================= */
+public final class BoardStoreCheck {
+
+  private static final String PASSWORD = "correct horse";
+  private static final int WIDTH = 3;
+  private static final int HEIGHT = 2;
+
+  private BoardStoreCheck() {}
+
+  public static void main(String[] args) throws Exception {
+    System.setProperty("java.awt.headless", "true");
+    File folder = Files.createTempDirectory("whiteboard-store").toFile();
+    BoardStore store = new BoardStore(folder, Logger.getLogger("BoardStoreCheck"));
+    int failures;
+    try {
+      failures = check(store);
+    } finally {
+      store.shutdown(List.of());
+      deleteTree(folder);
+    }
+    if (failures > 0) {
+      System.err.println(failures + " board store check(s) failed");
+      System.exit(1);
+    }
+    System.out.println("board files round-trip history, password hash and images");
+  }
+
+  private static int check(BoardStore store) throws Exception {
+    BoardData saved = board(store);
+    // ログ上の操作は読み込みが古いログを消す前に読んでおく
+    String undo = describe(saved.undo);
+    String redo = describe(saved.redo);
+    CompletableFuture<Void> written = new CompletableFuture<>();
+    store.saveAsync(saved, () -> written.completeExceptionally(new IOException("save failed")));
+    List<BoardData> loaded = new ArrayList<>();
+    // I/O スレッドは1本なので、読み込みは書き込みの後に走る
+    store.loadAllAsync(loaded::add, () -> written.complete(null));
+    try {
+      written.get(30, TimeUnit.SECONDS);
+    } catch (Exception ex) {
+      System.err.println("board was not written: " + ex);
+      return 1;
+    }
+    if (loaded.size() != 1) {
+      System.err.println("expected 1 board file, loaded " + loaded.size());
+      return 1;
+    }
+    BoardData d = loaded.get(0);
+    int failures = compare(saved, d);
+    failures += expect("undo", undo, describe(d.undo));
+    failures += expect("redo", redo, describe(d.redo));
+    return failures;
+  }
+
+  // 6 件の undo（古い 5 件はログ上）と 2 件の redo（遠い 1 件はログ上）、パスワード、
+  // 2 枚の画像を持つボード
+  private static BoardData board(BoardStore store) {
+    BoardData d = new BoardData();
+    d.id = "check-" + UUID.randomUUID();
+    d.worldId = UUID.randomUUID();
+    d.facing = "NORTH";
+    d.baseX = 10.5;
+    d.baseY = 64;
+    d.baseZ = -3.25;
+    d.right[0] = -1;
+    d.down[1] = -1;
+    d.width = WIDTH;
+    d.height = HEIGHT;
+    d.mapIds = new int[HEIGHT][WIDTH];
+    d.frameIds = new UUID[HEIGHT][WIDTH];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        d.mapIds[y][x] = 100 + y * WIDTH + x;
+        if ((x + y) % 2 == 0) d.frameIds[y][x] = UUID.randomUUID();
+      }
+    }
+    d.background = 0xFFF0E8D0;
+    d.fontFamily = "Noto Sans CJK JP";
+    d.fontStyle = 1;
+    d.locked = true;
+    d.password = BoardPassword.hash(PASSWORD);
+
+    List<TextAction> undo = new ArrayList<>();
+    for (int i = 0; i < 6; i++) undo.add(action(i));
+    List<TextAction> redo = List.of(action(7), action(6));
+    // 予算 1 バイトなので、各リストの直近の1件以外はログへ逃げる
+    BoardHistory history = new BoardHistory(store.openSpillLog(d.id), 1);
+    history.restore(undo, redo);
+    d.undo = history.undoOldestFirst();
+    d.redo = history.redoOldestFirst();
+
+    d.images = new byte[WIDTH * HEIGHT][];
+    d.images[0] = image(7);
+    d.images[4] = image(13);
+    return d;
+  }
+
+  private static TextAction action(int i) {
+    TextAction action = new TextAction();
+    action.atoms.add(new TextAtom("行 " + i, 8 + i, new Color(0x10203040 + i, true), i * 9, -i));
+    action.atoms.add(new TextAtom("line " + i, 16, Color.BLACK, 0, i * 20));
+    return action;
+  }
+
+  private static byte[] image(int seed) {
+    byte[] image = new byte[TileRasterizer.SIZE * TileRasterizer.SIZE];
+    for (int i = 0; i < image.length; i++) image[i] = (byte) (i * seed);
+    return image;
+  }
+
+  private static int compare(BoardData a, BoardData b) {
+    int failures = 0;
+    failures += expect("id", a.id, b.id);
+    failures += expect("world", a.worldId, b.worldId);
+    failures += expect("facing", a.facing, b.facing);
+    failures += expect("base", a.baseX, b.baseX) + expect("base", a.baseY, b.baseY);
+    failures += expect("base", a.baseZ, b.baseZ);
+    failures += expect("right", Arrays.toString(a.right), Arrays.toString(b.right));
+    failures += expect("down", Arrays.toString(a.down), Arrays.toString(b.down));
+    failures += expect("size", a.width + "x" + a.height, b.width + "x" + b.height);
+    failures += expect("map ids", Arrays.deepToString(a.mapIds), Arrays.deepToString(b.mapIds));
+    failures += expect("frames", Arrays.deepToString(a.frameIds), Arrays.deepToString(b.frameIds));
+    failures += expect("background", a.background, b.background);
+    failures += expect("font", a.fontFamily + "/" + a.fontStyle, b.fontFamily + "/" + b.fontStyle);
+    failures += expect("locked", a.locked, b.locked);
+    failures += expect("password hash", a.password, b.password);
+    if (!BoardPassword.matches(b.password, PASSWORD)) {
+      System.err.println("password hash: loaded hash does not match the password");
+      failures++;
+    }
+    if (BoardPassword.matches(b.password, PASSWORD + "!")) {
+      System.err.println("password hash: loaded hash matches a wrong password");
+      failures++;
+    }
+    for (int i = 0; i < WIDTH * HEIGHT; i++) {
+      if (!Arrays.equals(a.images[i], b.images[i])) {
+        System.err.println("image of tile " + i + " differs");
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  // ログ上の操作は読み戻して並べる
+  private static String describe(List<TextAction> actions) {
+    StringBuilder sb = new StringBuilder();
+    for (TextAction action : actions) {
+      sb.append(action.id).append('[');
+      for (TextAtom atom : BoardHistory.atomsOf(action)) {
+        sb.append(atom.msg).append('/').append(atom.size).append('/');
+        sb.append(Integer.toHexString(atom.col.getRGB())).append('/');
+        sb.append(atom.gx).append(',').append(atom.gy).append(';');
+      }
+      sb.append(']');
+    }
+    return sb.toString();
+  }
+
+  private static int expect(String what, Object saved, Object loaded) {
+    if (saved == null ? loaded == null : saved.equals(loaded)) return 0;
+    System.err.println(what + ": saved " + saved + " but loaded " + loaded);
+    return 1;
+  }
+
+  private static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) deleteTree(child);
+    }
+    file.delete();
+  }
+}
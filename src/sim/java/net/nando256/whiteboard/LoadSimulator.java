@@ -0,0 +1,501 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+import net.nando256.whiteboard.WhiteboardPlugin.BoardGroup;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAction;
+import net.nando256.whiteboard.WhiteboardPlugin.TextAtom;
+import org.bukkit.Location;
+import org.bukkit.util.Vector;
+
+/* =========================================================
+ * サーバー無しの負荷シミュレーター
+ *
+ *  - 本物の BoardGroup / WhiteboardRenderer / BoardHistory を、
+ *    台本どおりの操作（本の適用・undo の連打・クリア）で 20 TPS 分動かす
+ *  - 1 tick ごとにメインスレッド相当の CPU 時間・割り当てバイト数と、
+ *    視聴者へ送るはずのマップ更新バイト数を測る
+ *  - レイアウトはプラグインではワーカー上なので、メインとは分けて数える
+ *
+ *   ./gradlew simulate --args="--scenario=lecture-hall --boards=40 --viewers=200"
+ * ========================================================= */
+public final class LoadSimulator {
+
+  private static final int TPS = 20;
+  private static final long TICK_NANOS = 1_000_000_000L / TPS;
+  private static final Font FONT = new Font("Noto Sans CJK JP", Font.PLAIN, 16);
+
+  private LoadSimulator() {}
+
+  public static void main(String[] args) throws IOException {
+    Options options = Options.parse(args);
+    if (options == null) {
+      System.out.println(Options.USAGE);
+      return;
+    }
+    System.setProperty("java.awt.headless", "true");
+    new Run(options).execute();
+  }
+
+  /* ===== 設定（シナリオの既定値を引数で上書き） ===== */
+  static final class Options {
+    static final String USAGE =
+        String.join(
+            "\n",
+            "Usage: ./gradlew simulate --args=\"--scenario=<name> [--key=value ...]\"",
+            "  scenarios: classroom (default), lecture-hall, server, undo-storm",
+            "  --boards=N              number of boards",
+            "  --size=WxH              tiles per board",
+            "  --viewers=N             players looking at boards (spread at random)",
+            "  --seconds=N             simulated time at 20 TPS",
+            "  --books-per-minute=N    book applies per board per minute",
+            "  --undo-storm-every=S    seconds between undo storms per board (0 = none)",
+            "  --undo-storm-size=N     undos per storm (redone on the next tick)",
+            "  --clear-every=N         clear a board after N applies (0 = never)",
+            "  --history-bytes=N       history.max-bytes-per-board",
+            "  --rasterizer=atlas|java2d",
+            "  --seed=N                random seed",
+            "  --csv=path              write one line per tick");
+
+    String scenario = "classroom";
+    int boards = 4;
+    int width = 4;
+    int height = 3;
+    int viewers = 30;
+    int seconds = 120;
+    double booksPerMinute = 2;
+    int undoStormEvery = 60;
+    int undoStormSize = 10;
+    int clearEvery = 20;
+    long historyBytes = 262144;
+    TileRasterizer.Mode rasterizer = TileRasterizer.Mode.ATLAS;
+    long seed = 1;
+    String csv;
+
+    static Options parse(String[] args) {
+      Map<String, String> values = new HashMap<>();
+      for (String arg : args) {
+        if (arg.equals("--help") || arg.equals("-h")) return null;
+        if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+          throw new IllegalArgumentException("Expected --key=value: " + arg);
+        }
+        int eq = arg.indexOf('=');
+        values.put(arg.substring(2, eq), arg.substring(eq + 1));
+      }
+
+      Options o = new Options();
+      o.applyScenario(values.getOrDefault("scenario", o.scenario));
+      for (Map.Entry<String, String> e : values.entrySet()) {
+        String v = e.getValue();
+        switch (e.getKey()) {
+          case "scenario" -> {}
+          case "boards" -> o.boards = Integer.parseInt(v);
+          case "size" -> {
+            String[] wh = v.toLowerCase(Locale.ROOT).split("x");
+            o.width = Integer.parseInt(wh[0]);
+            o.height = Integer.parseInt(wh[1]);
+          }
+          case "viewers" -> o.viewers = Integer.parseInt(v);
+          case "seconds" -> o.seconds = Integer.parseInt(v);
+          case "books-per-minute" -> o.booksPerMinute = Double.parseDouble(v);
+          case "undo-storm-every" -> o.undoStormEvery = Integer.parseInt(v);
+          case "undo-storm-size" -> o.undoStormSize = Integer.parseInt(v);
+          case "clear-every" -> o.clearEvery = Integer.parseInt(v);
+          case "history-bytes" -> o.historyBytes = Long.parseLong(v);
+          case "rasterizer" ->
+              o.rasterizer = TileRasterizer.Mode.valueOf(v.toUpperCase(Locale.ROOT));
+          case "seed" -> o.seed = Long.parseLong(v);
+          case "csv" -> o.csv = v;
+          default -> throw new IllegalArgumentException("Unknown option --" + e.getKey());
+        }
+      }
+      if (o.boards < 1 || o.width < 1 || o.height < 1 || o.seconds < 1 || o.viewers < 0) {
+        throw new IllegalArgumentException("boards, size and seconds must be positive");
+      }
+      return o;
+    }
+
+    private void applyScenario(String name) {
+      scenario = name.toLowerCase(Locale.ROOT);
+      switch (scenario) {
+        case "classroom" -> {} // 既定値：1クラス分、数枚のボード
+        case "lecture-hall" -> {
+          // 大きな1枚を大勢が見る
+          boards = 1;
+          width = 8;
+          height = 4;
+          viewers = 200;
+          booksPerMinute = 1;
+          undoStormEvery = 120;
+          undoStormSize = 5;
+        }
+        case "server" -> {
+          // 多くのボードが同時に使われるサーバー全体
+          boards = 40;
+          viewers = 150;
+          booksPerMinute = 3;
+          undoStormEvery = 30;
+          undoStormSize = 10;
+        }
+        case "undo-storm" -> {
+          // 深い履歴を何度も行き来する（履歴ログの読み戻しを含む）
+          boards = 8;
+          viewers = 40;
+          booksPerMinute = 6;
+          undoStormEvery = 5;
+          undoStormSize = 30;
+          clearEvery = 0;
+          historyBytes = 65536;
+        }
+        default -> throw new IllegalArgumentException("Unknown scenario " + name);
+      }
+    }
+  }
+
+  /* ===== 1回分の実行 ===== */
+  private static final class Run {
+    final Options o;
+    final Random random;
+    final SimBook book;
+    final File dataFolder;
+    final BoardStore store;
+    final List<SimBoard> boards = new ArrayList<>();
+    final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final com.sun.management.ThreadMXBean allocations;
+
+    final Histogram tickCpu = new Histogram();
+    final Histogram layoutCpu = new Histogram();
+    long totalAlloc;
+    long totalSent;
+    long totalPackets;
+    long applies;
+    long undos;
+    long redos;
+    long clears;
+
+    Run(Options o) throws IOException {
+      this.o = o;
+      this.random = new Random(o.seed);
+      this.book = new SimBook(random);
+      this.dataFolder = Files.createTempDirectory("whiteboard-sim").toFile();
+      this.store = new BoardStore(dataFolder, Logger.getLogger("Whiteboard-Sim"));
+      this.allocations =
+          threads instanceof com.sun.management.ThreadMXBean sun
+                  && sun.isThreadAllocatedMemorySupported()
+              ? sun
+              : null;
+      if (allocations != null) allocations.setThreadAllocatedMemoryEnabled(true);
+      threads.setThreadCpuTimeEnabled(true);
+    }
+
+    void execute() throws IOException {
+      TileRasterizer.setMode(o.rasterizer);
+      MapColors.warmUp();
+      for (int i = 0; i < o.boards; i++) boards.add(new SimBoard(newBoard()));
+      for (int i = 0; i < o.viewers; i++) boards.get(random.nextInt(boards.size())).viewers++;
+
+      int ticks = o.seconds * TPS;
+      System.out.printf(
+          Locale.ROOT,
+          "Scenario %s: %d board(s) of %dx%d, %d viewer(s), %d s (%d ticks), rasterizer %s%n",
+          o.scenario,
+          o.boards,
+          o.width,
+          o.height,
+          o.viewers,
+          o.seconds,
+          ticks,
+          o.rasterizer.name().toLowerCase(Locale.ROOT));
+
+      // 起動直後の1回目はすべてのタイルを送るので、計測とは分ける
+      long initialSent = 0;
+      for (SimBoard b : boards) initialSent += b.render();
+
+      PrintWriter csv = o.csv != null ? openCsv(o.csv) : null;
+      double applyChance = o.booksPerMinute / (60.0 * TPS);
+      int stormTicks = o.undoStormEvery * TPS;
+      long wallStart = System.nanoTime();
+      try {
+        for (int tick = 1; tick <= ticks; tick++) {
+          // レイアウト（ワーカー相当）は tick の計測の外で済ませておく
+          List<TextAction> layouts = new ArrayList<>();
+          for (SimBoard b : boards) {
+            TextAction action = null;
+            if (random.nextDouble() < applyChance) action = layout(b);
+            layouts.add(action);
+          }
+
+          long cpu0 = threads.getCurrentThreadCpuTime();
+          long alloc0 = allocatedBytes();
+          long sent = 0;
+          long packets = 0;
+          for (int i = 0; i < boards.size(); i++) {
+            SimBoard b = boards.get(i);
+            b.redoPending();
+            if (stormTicks > 0 && (tick + b.phase) % stormTicks == 0) b.undoStorm();
+            if (layouts.get(i) != null) b.apply(layouts.get(i));
+          }
+          for (SimBoard b : boards) {
+            long bytes = b.render();
+            sent += bytes;
+            packets += b.lastPackets;
+          }
+          long cpu = threads.getCurrentThreadCpuTime() - cpu0;
+          long alloc = allocatedBytes() - alloc0;
+
+          tickCpu.record(cpu);
+          totalAlloc += alloc;
+          totalSent += sent;
+          totalPackets += packets;
+          if (csv != null) csv.printf(Locale.ROOT, "%d,%d,%d,%d,%d%n", tick, cpu, alloc, sent, packets);
+          if (tick % (10 * TPS) == 0) progress(tick);
+        }
+      } finally {
+        if (csv != null) csv.close();
+      }
+      long wall = System.nanoTime() - wallStart;
+      summary(ticks, wall, initialSent);
+
+      for (SimBoard b : boards) b.group.history.close();
+      store.shutdown(List.of());
+      deleteTree(dataFolder);
+    }
+
+    private BoardGroup newBoard() {
+      BoardGroup g = new BoardGroup(UUID.randomUUID().toString(), o.width, o.height);
+      g.baseTopLeft = new Location(null, 0, 64, 0);
+      g.rightUnit = new Vector(1, 0, 0);
+      g.downUnit = new Vector(0, -1, 0);
+      g.font = FONT;
+      for (int y = 0; y < o.height; y++) {
+        for (int x = 0; x < o.width; x++) {
+          WhiteboardRenderer r = new WhiteboardRenderer();
+          r.setBaseFont(FONT);
+          g.tiles[y][x] = r;
+          g.centers[y][x] = new Location(null, x, 64 - y, 0);
+        }
+      }
+      g.history = new BoardHistory(store.openSpillLog(g.id), o.historyBytes);
+      return g;
+    }
+
+    // 本1冊を、ボード内のランダムな位置から流し込む
+    private TextAction layout(SimBoard b) {
+      long cpu0 = threads.getCurrentThreadCpuTime();
+      BoardGroup g = b.group;
+      String html = book.next(200, 1200);
+      List<HtmlParser.HtmlToken> tokens = HtmlParser.parse(html, Color.BLACK, 16);
+      int gx = 4 + random.nextInt(Math.max(1, g.W * 128 / 3));
+      int gy = 20 + random.nextInt(Math.max(1, g.H * 128 / 2));
+      TextAction action =
+          TextLayout.layout(tokens, FONT, g.W * 128, gx, gy, TextLayout.defaultLineHeight(16));
+      layoutCpu.record(threads.getCurrentThreadCpuTime() - cpu0);
+      return action;
+    }
+
+    private long allocatedBytes() {
+      return allocations != null ? allocations.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private void progress(int tick) {
+      long resident = 0;
+      int depth = 0;
+      for (SimBoard b : boards) {
+        resident += b.group.history.residentBytes();
+        depth += b.group.history.undoSize() + b.group.history.redoSize();
+      }
+      System.out.printf(
+          Locale.ROOT,
+          "  t=%4ds  tick p50 %.2f ms  p99 %.2f ms  max %.2f ms  history %d action(s), %s resident%n",
+          tick / TPS,
+          millis(tickCpu.percentile(0.50)),
+          millis(tickCpu.percentile(0.99)),
+          millis(tickCpu.max()),
+          depth,
+          bytes(resident));
+    }
+
+    private void summary(int ticks, long wall, long initialSent) {
+      double seconds = ticks / (double) TPS;
+      double budget = millis(TICK_NANOS);
+      long resident = 0;
+      long spilled = 0;
+      long rendererBytes = 0;
+      for (SimBoard b : boards) {
+        resident += b.group.history.residentBytes();
+        spilled += b.group.history.spilled();
+        for (WhiteboardRenderer[] row : b.group.tiles) {
+          for (WhiteboardRenderer r : row) rendererBytes += r.estimateBytes();
+        }
+      }
+
+      System.out.println();
+      System.out.printf(
+          Locale.ROOT,
+          "Events:     %d book(s), %d undo(s), %d redo(s), %d clear(s)%n",
+          applies,
+          undos,
+          redos,
+          clears);
+      System.out.printf(
+          Locale.ROOT,
+          "Main tick:  mean %.3f ms  p50 %.3f  p99 %.3f  max %.3f  (%.1f%% / %.1f%% of the %.0f ms budget at mean / p99)%n",
+          millis(tickCpu.mean()),
+          millis(tickCpu.percentile(0.50)),
+          millis(tickCpu.percentile(0.99)),
+          millis(tickCpu.max()),
+          100 * millis(tickCpu.mean()) / budget,
+          100 * millis(tickCpu.percentile(0.99)) / budget,
+          budget);
+      if (layoutCpu.count() > 0) {
+        System.out.printf(
+            Locale.ROOT,
+            "Layout:     mean %.3f ms  p99 %.3f  max %.3f per book (worker threads)%n",
+            millis(layoutCpu.mean()),
+            millis(layoutCpu.percentile(0.99)),
+            millis(layoutCpu.max()));
+      }
+      if (allocations != null) {
+        System.out.printf(
+            Locale.ROOT,
+            "Allocation: %s/s on the main thread (%s total)%n",
+            bytes((long) (totalAlloc / seconds)),
+            bytes(totalAlloc));
+      } else {
+        System.out.println("Allocation: not supported by this JVM");
+      }
+      System.out.printf(
+          Locale.ROOT,
+          "Network:    %s/s total, %s/s per viewer, %.0f map packet(s)/s (initial sync %s)%n",
+          bytes((long) (totalSent / seconds)),
+          bytes(o.viewers > 0 ? (long) (totalSent / seconds / o.viewers) : 0),
+          totalPackets / seconds,
+          bytes(initialSent));
+      System.out.printf(
+          Locale.ROOT,
+          "Memory:     history %s resident, %d action(s) spilled; renderers ~%s%n",
+          bytes(resident),
+          spilled,
+          bytes(rendererBytes));
+      System.out.printf(
+          Locale.ROOT,
+          "Wall time:  %.1f s for %.0f simulated second(s)%n",
+          wall / 1e9,
+          seconds);
+    }
+
+    /* ===== ボード1枚分の状態 ===== */
+    private final class SimBoard {
+      final BoardGroup group;
+      final SimCanvas[] canvases;
+      final int phase; // undo の嵐がすべてのボードで同じ tick に重ならないようずらす
+      final List<TextAction> pendingRedo = new ArrayList<>();
+      int viewers;
+      int appliesSinceClear;
+      long lastPackets;
+
+      SimBoard(BoardGroup group) {
+        this.group = group;
+        this.canvases = new SimCanvas[group.W * group.H];
+        for (int i = 0; i < canvases.length; i++) canvases[i] = new SimCanvas();
+        this.phase = random.nextInt(Math.max(1, o.undoStormEvery * TPS));
+      }
+
+      // プラグインの publishLayout と同じ順で、メインスレッド側の処理を行う
+      void apply(TextAction layout) {
+        if (o.clearEvery > 0 && appliesSinceClear >= o.clearEvery) {
+          for (WhiteboardRenderer[] row : group.tiles) {
+            for (WhiteboardRenderer r : row) r.clearTexts();
+          }
+          group.history.clear();
+          appliesSinceClear = 0;
+          clears++;
+        }
+        TextAction action = new TextAction();
+        Font baseFont = WhiteboardPlugin.resolveBaseFont(group);
+        for (TextAtom atom : layout.atoms) {
+          if (atom.gy >= group.H * 128 + atom.size) continue; // ボードの下にはみ出た行
+          WhiteboardPlugin.applyTextAtom(group, atom, action, baseFont);
+          action.atoms.add(atom);
+        }
+        group.history.push(action);
+        appliesSinceClear++;
+        applies++;
+      }
+
+      // /wb undo の連打。同じ数の redo を次の tick で行う
+      void undoStorm() {
+        for (int i = 0; i < o.undoStormSize && group.history.canUndo(); i++) {
+          TextAction action = group.history.undo();
+          group.history.placed(action, WhiteboardPlugin.removeAction(group, action));
+          pendingRedo.add(action);
+          undos++;
+        }
+      }
+
+      void redoPending() {
+        for (int i = 0; i < pendingRedo.size() && group.history.canRedo(); i++) {
+          TextAction action = group.history.redo();
+          WhiteboardPlugin.restoreAction(group, action);
+          redos++;
+        }
+        pendingRedo.clear();
+      }
+
+      // 見ている人がいるタイルだけ描く（サーバーも視聴者のいない地図は描かない）
+      long render() {
+        lastPackets = 0;
+        if (viewers == 0) return 0;
+        long sent = 0;
+        for (int i = 0; i < canvases.length; i++) {
+          WhiteboardRenderer r = group.tiles[i / group.W][i % group.W];
+          r.render(null, canvases[i], null);
+          int bytes = canvases[i].flush();
+          if (bytes == 0) continue;
+          sent += (long) bytes * viewers;
+          lastPackets += viewers;
+        }
+        return sent;
+      }
+    }
+  }
+
+  private static PrintWriter openCsv(String path) throws IOException {
+    PrintWriter out =
+        new PrintWriter(Files.newBufferedWriter(new File(path).toPath(), StandardCharsets.UTF_8));
+    out.println("tick,cpu_ns,alloc_bytes,sent_bytes,packets");
+    return out;
+  }
+
+  private static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) deleteTree(child);
+    }
+    file.delete();
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  private static String bytes(long n) {
+    if (n < 1024) return n + " B";
+    if (n < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KiB", n / 1024.0);
+    return String.format(Locale.ROOT, "%.1f MiB", n / (1024.0 * 1024));
+  }
+}
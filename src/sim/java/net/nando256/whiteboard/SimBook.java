@@ -0,0 +1,51 @@
+package net.nando256.whiteboard;
+
+import java.util.Random;
+
+/* =========================================================
+ * シミュレーター用の本（HTML 混じりの板書）
+ *
+ *  - 長さと色はシード付きの乱数で変える（同じシードなら毎回同じ本）
+ * ========================================================= */
+final class SimBook {
+
+  private static final String[] SENTENCES = {
+    "今日のめあて：分数のわり算のしかたを考えよう。",
+    "3/4 ÷ 2/5 は、わる数の逆数をかけて 3/4 × 5/2 になります。",
+    "班で話し合ったことをノートにまとめましょう。",
+    "PDCA: Plan → Do → Check → Act を一周させてみる。",
+    "実験の結果、温度が上がると溶ける量が増えました。",
+    "次の時間までに、教科書 52 ページを読んでおくこと。",
+    "Group A: 12 votes, Group B: 9 votes, Group C: 15 votes.",
+    "気づいたこと・疑問に思ったことを付せんに書いて貼ろう。",
+  };
+
+  private static final String[] COLORS = {"#c00000", "#0050c0", "#008000", "navy", "orange"};
+
+  private final Random random;
+
+  SimBook(Random random) {
+    this.random = random;
+  }
+
+  // 1冊分（min〜max 文字程度）の本文
+  String next(int minChars, int maxChars) {
+    int target = minChars + random.nextInt(Math.max(1, maxChars - minChars + 1));
+    StringBuilder sb = new StringBuilder(target + 64);
+    while (sb.length() < target) {
+      String sentence = SENTENCES[random.nextInt(SENTENCES.length)];
+      switch (random.nextInt(6)) {
+        case 0 -> {
+          String color = COLORS[random.nextInt(COLORS.length)];
+          sb.append("<span style=\"color:").append(color).append("\">");
+          sb.append(sentence).append("</span>");
+        }
+        case 1 -> sb.append("<font size=\"24\">").append(sentence).append("</font>");
+        case 2 -> sb.append(sentence).append("<br>");
+        default -> sb.append(sentence);
+      }
+      if (random.nextInt(4) == 0) sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
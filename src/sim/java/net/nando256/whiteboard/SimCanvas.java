@@ -0,0 +1,103 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Image;
+import org.bukkit.map.MapCanvas;
+import org.bukkit.map.MapCursorCollection;
+import org.bukkit.map.MapFont;
+import org.bukkit.map.MapView;
+
+/* =========================================================
+ * サーバーのマップキャンバスの代わり
+ *
+ *  - サーバーと同じく、値が変わった画素だけを dirty にして範囲を広げる
+ *  - flush で「送るとしたら何バイトか」を返し、dirty を戻す
+ * ========================================================= */
+final class SimCanvas implements MapCanvas {
+
+  // マップ更新パケットのうち画素以外の部分（ID・縮尺・ロック・範囲・長さ）
+  static final int PACKET_OVERHEAD = 12;
+
+  private final byte[] pixels = new byte[128 * 128];
+  private MapCursorCollection cursors = new MapCursorCollection();
+  private int minX = Integer.MAX_VALUE;
+  private int minY = Integer.MAX_VALUE;
+  private int maxX = -1;
+  private int maxY = -1;
+
+  // 前回の flush 以降に変わった範囲を送った場合のバイト数（変化が無ければ 0）
+  int flush() {
+    if (maxX < 0) return 0;
+    int area = (maxX - minX + 1) * (maxY - minY + 1);
+    minX = Integer.MAX_VALUE;
+    minY = Integer.MAX_VALUE;
+    maxX = -1;
+    maxY = -1;
+    return area + PACKET_OVERHEAD;
+  }
+
+  @Override
+  @Deprecated
+  public void setPixel(int x, int y, byte color) {
+    if (x < 0 || y < 0 || x >= 128 || y >= 128) return;
+    int i = y * 128 + x;
+    if (pixels[i] == color) return;
+    pixels[i] = color;
+    if (x < minX) minX = x;
+    if (x > maxX) maxX = x;
+    if (y < minY) minY = y;
+    if (y > maxY) maxY = y;
+  }
+
+  @Override
+  @Deprecated
+  public byte getPixel(int x, int y) {
+    return pixels[y * 128 + x];
+  }
+
+  @Override
+  @Deprecated
+  public byte getBasePixel(int x, int y) {
+    return 0;
+  }
+
+  @Override
+  public MapView getMapView() {
+    return null;
+  }
+
+  @Override
+  public MapCursorCollection getCursors() {
+    return cursors;
+  }
+
+  @Override
+  public void setCursors(MapCursorCollection cursors) {
+    this.cursors = cursors;
+  }
+
+  @Override
+  public void setPixelColor(int x, int y, Color color) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Color getPixelColor(int x, int y) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Color getBasePixelColor(int x, int y) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void drawImage(int x, int y, Image image) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void drawText(int x, int y, MapFont font, String text) {
+    throw new UnsupportedOperationException();
+  }
+}
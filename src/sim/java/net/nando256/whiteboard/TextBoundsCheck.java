@@ -0,0 +1,82 @@
+package net.nando256.whiteboard;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Rectangle;
+
+/* =========================================================
+ * textBounds が実際に描かれる画素をすべて含むかの確認
+ *
+ *  - 長い英字・かな漢字混じりの1行を、行が掛かるタイルすべてで描く
+ *  - 背景だけのタイルと比べて変わった画素が、textBounds の外にあれば失敗
+ *  - 両方の描画方式（atlas / java2d）と複数の大きさで確かめる
+ *
+ *   ./gradlew checkTextBounds（./gradlew check からも呼ばれる）
+ * ========================================================= */
+public final class TextBoundsCheck {
+
+  private static final Font FONT = new Font("Noto Sans CJK JP", Font.PLAIN, 16);
+  private static final String LINE =
+      "The quick brown fox jumps over the lazy dog, illustrating kerning "
+          + "AVAWAYTo ffi ffl WWWW mmmm iiii llll 1111 "
+          + "日本語の文字と English を混ぜた長い行：ホワイトボードに書き込むテスト。"
+          + "Lorem ipsum dolor sit amet, consectetur adipiscing elit 0123456789";
+  private static final int[] SIZES = {8, 12, 16, 23, 32, 48, 64};
+  private static final int BASELINE_Y = 70;
+
+  private TextBoundsCheck() {}
+
+  public static void main(String[] args) {
+    System.setProperty("java.awt.headless", "true");
+    int failures = 0;
+    for (TileRasterizer.Mode mode : TileRasterizer.Mode.values()) {
+      TileRasterizer.setMode(mode);
+      for (int size : SIZES) {
+        failures += check(mode, size, LINE);
+        failures += check(mode, size, LINE.substring(LINE.indexOf('日')));
+      }
+    }
+    if (failures > 0) {
+      System.err.println(failures + " text bounds check(s) failed");
+      System.exit(1);
+    }
+    System.out.println("textBounds contains all drawn pixels");
+  }
+
+  // 行を x = 3 から描き、掛かる可能性のあるタイル（と1枚先）をすべて描いて調べる
+  private static int check(TileRasterizer.Mode mode, int size, String text) {
+    int x = 3;
+    Rectangle bounds = TileRasterizer.textBounds(FONT, text, size, x, BASELINE_Y);
+    int tiles = (bounds.x + bounds.width) / TileRasterizer.SIZE + 2;
+    byte[] blank = new byte[TileRasterizer.SIZE * TileRasterizer.SIZE];
+    TileRasterizer.rasterize(Color.WHITE, false, FONT, new TileTexts(), null, blank);
+
+    int outside = 0;
+    int drawn = 0;
+    for (int t = 0; t < tiles; t++) {
+      int ox = t * TileRasterizer.SIZE;
+      TileTexts texts = new TileTexts();
+      texts.add(text, size, Color.BLACK.getRGB(), x - ox, BASELINE_Y, null);
+      byte[] out = new byte[blank.length];
+      TileRasterizer.rasterize(Color.WHITE, false, FONT, texts, null, out);
+      for (int i = 0; i < out.length; i++) {
+        if (out[i] == blank[i]) continue;
+        drawn++;
+        int px = ox + i % TileRasterizer.SIZE;
+        int py = i / TileRasterizer.SIZE;
+        if (!bounds.contains(px, py)) outside++;
+      }
+    }
+    if (drawn == 0) {
+      System.err.println(mode + " size " + size + ": nothing was drawn");
+      return 1;
+    }
+    if (outside > 0) {
+      System.err.println(
+          mode + " size " + size + ": " + outside + " pixel(s) outside " + bounds
+              + " for \"" + text + "\"");
+      return 1;
+    }
+    return 0;
+  }
+}